@@ -0,0 +1,370 @@
+package com.engindearing.omnihud;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import com.atakmap.coremap.log.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Picks a {@link StreamingProfile} from motion, battery and thermal state.
+ *
+ * Motion is classified from ground speed as stationary, walking or vehicle.
+ * Each boundary has separate enter and exit speeds, and a new state must
+ * hold for {@link #MIN_DWELL_MS} before it is adopted, so GPS jitter at a
+ * threshold does not flip the profile every tick. Battery level uses the same
+ * enter/exit banding; a charging device is never constrained. Battery and
+ * thermal state outrank motion.
+ *
+ * Time spent in each profile is accumulated along with a rough estimate of
+ * the energy saved against streaming everything at the operator's selected
+ * rate. {@link #update} runs on the streaming thread; the getters may be
+ * called from the UI thread.
+ */
+public class AdaptiveProfileController {
+
+    private static final String TAG = AdaptiveProfileController.class.getSimpleName();
+
+    public enum MotionState {
+        STATIONARY,
+        WALKING,
+        VEHICLE
+    }
+
+    public interface Listener {
+        void onProfileChanged(StreamingProfile profile);
+    }
+
+    // Speed bands in m/s: a state is entered above its enter speed and left below its exit speed
+    static final double WALKING_ENTER_SPEED = 0.8;
+    static final double WALKING_EXIT_SPEED = 0.3;
+    static final double VEHICLE_ENTER_SPEED = 4.0;
+    static final double VEHICLE_EXIT_SPEED = 2.5;
+    static final long MIN_DWELL_MS = 5000;
+
+    // Battery bands in percent
+    static final int SAVER_ENTER_PERCENT = 20;
+    static final int SAVER_EXIT_PERCENT = 25;
+    static final int CRITICAL_ENTER_PERCENT = 10;
+    static final int CRITICAL_EXIT_PERCENT = 15;
+
+    private static final long POWER_POLL_INTERVAL_MS = 30000;
+
+    // Rough energy model: encoding plus one USB transfer per frame, and the rotation vector sensor
+    static final double ENERGY_PER_FRAME_MJ = 1.5;
+    static final double HEADING_SENSOR_MW = 8.0;
+
+    private static final int POWER_NORMAL = 0;
+    private static final int POWER_SAVER = 1;
+    private static final int POWER_CRITICAL = 2;
+
+    private final Context context;
+    private Listener listener;
+
+    private volatile double selectedRateHz = 1.0;
+    private MotionState motion = MotionState.STATIONARY;
+    private MotionState pendingMotion = MotionState.STATIONARY;
+    private long pendingSinceMs;
+    private int powerLevel = POWER_NORMAL;
+    private long lastPowerPollMs = Long.MIN_VALUE;
+    private int batteryPercent = -1;
+    private int thermalStatus;
+
+    private StreamingProfile profile = StreamingProfile.STATIONARY;
+    private long profileSinceMs;
+    private long lastAccountedMs;
+    private final long[] timeInProfileMs = new long[StreamingProfile.values().length];
+    private double savedMillijoules;
+    private int transitions;
+
+    /**
+     * @param context Used to read battery and thermal state; null for motion only
+     */
+    public AdaptiveProfileController(Context context) {
+        this.context = context;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The operator's selected position rate, used as the ceiling for every profile
+     */
+    public void setSelectedRate(double hz) {
+        this.selectedRateHz = hz;
+    }
+
+    public double getSelectedRate() {
+        return selectedRateHz;
+    }
+
+    /**
+     * Begin a streaming session: clear statistics and choose the initial profile without dwell
+     */
+    public synchronized StreamingProfile start(long nowMs) {
+        motion = MotionState.STATIONARY;
+        pendingMotion = motion;
+        pendingSinceMs = nowMs;
+        lastPowerPollMs = Long.MIN_VALUE;
+        pollPowerState(nowMs);
+        profile = selectProfile();
+        profileSinceMs = nowMs;
+        lastAccountedMs = nowMs;
+        Arrays.fill(timeInProfileMs, 0);
+        savedMillijoules = 0;
+        transitions = 0;
+        return profile;
+    }
+
+    /**
+     * Feed the latest ground speed; notifies the listener when the profile changes
+     * @param speed Smoothed speed over ground in m/s
+     * @param nowMs Monotonic time
+     */
+    public void update(double speed, long nowMs) {
+        StreamingProfile changed = null;
+        synchronized (this) {
+            account(nowMs);
+            updateMotion(speed, nowMs);
+            pollPowerState(nowMs);
+
+            StreamingProfile next = selectProfile();
+            if (next != profile) {
+                Log.d(TAG, "Profile " + profile + " -> " + next + " (motion " + motion
+                        + ", battery " + batteryPercent + "%, thermal " + thermalStatus + ")");
+                profile = next;
+                profileSinceMs = nowMs;
+                transitions++;
+                changed = next;
+            }
+        }
+        Listener l = listener;
+        if (changed != null && l != null) {
+            l.onProfileChanged(changed);
+        }
+    }
+
+    public synchronized StreamingProfile getProfile() {
+        return profile;
+    }
+
+    public synchronized MotionState getMotionState() {
+        return motion;
+    }
+
+    private void updateMotion(double speed, long nowMs) {
+        MotionState target = classify(motion, speed);
+        if (target == motion) {
+            pendingMotion = motion;
+            return;
+        }
+        if (target != pendingMotion) {
+            pendingMotion = target;
+            pendingSinceMs = nowMs;
+        } else if (nowMs - pendingSinceMs >= MIN_DWELL_MS) {
+            motion = target;
+        }
+    }
+
+    /**
+     * Motion state for a speed, given the current state for hysteresis
+     */
+    static MotionState classify(MotionState current, double speed) {
+        switch (current) {
+            case VEHICLE:
+                if (speed >= VEHICLE_EXIT_SPEED) {
+                    return MotionState.VEHICLE;
+                }
+                return speed >= WALKING_EXIT_SPEED ? MotionState.WALKING : MotionState.STATIONARY;
+            case WALKING:
+                if (speed >= VEHICLE_ENTER_SPEED) {
+                    return MotionState.VEHICLE;
+                }
+                return speed >= WALKING_EXIT_SPEED ? MotionState.WALKING : MotionState.STATIONARY;
+            default:
+                if (speed >= VEHICLE_ENTER_SPEED) {
+                    return MotionState.VEHICLE;
+                }
+                return speed >= WALKING_ENTER_SPEED ? MotionState.WALKING : MotionState.STATIONARY;
+        }
+    }
+
+    private void pollPowerState(long nowMs) {
+        if (context == null || (lastPowerPollMs != Long.MIN_VALUE && nowMs - lastPowerPollMs < POWER_POLL_INTERVAL_MS)) {
+            return;
+        }
+        lastPowerPollMs = nowMs;
+        int percent = -1;
+        boolean charging = false;
+        int thermal = PowerManager.THERMAL_STATUS_NONE;
+        boolean powerSave = false;
+        try {
+            // Sticky broadcast; no receiver is registered
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null) {
+                int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+                int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+                if (level >= 0 && scale > 0) {
+                    percent = level * 100 / scale;
+                }
+                charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                        || status == BatteryManager.BATTERY_STATUS_FULL;
+            }
+            PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (power != null) {
+                powerSave = power.isPowerSaveMode();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    thermal = power.getCurrentThermalStatus();
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot read battery or thermal state", e);
+        }
+        setPowerState(percent, charging, powerSave, thermal);
+    }
+
+    /**
+     * Apply battery and thermal readings with hysteresis on the battery bands
+     * @param percent Battery level 0-100, or -1 if unknown
+     */
+    synchronized void setPowerState(int percent, boolean charging, boolean powerSave, int thermal) {
+        batteryPercent = percent;
+        thermalStatus = thermal;
+
+        int battery = POWER_NORMAL;
+        if (!charging && percent >= 0) {
+            int current = powerLevel;
+            if (percent <= CRITICAL_ENTER_PERCENT
+                    || (current == POWER_CRITICAL && percent < CRITICAL_EXIT_PERCENT)) {
+                battery = POWER_CRITICAL;
+            } else if (percent <= SAVER_ENTER_PERCENT
+                    || (current >= POWER_SAVER && percent < SAVER_EXIT_PERCENT)) {
+                battery = POWER_SAVER;
+            }
+        }
+        int heat = POWER_NORMAL;
+        if (thermal >= PowerManager.THERMAL_STATUS_SEVERE) {
+            heat = POWER_CRITICAL;
+        } else if (thermal >= PowerManager.THERMAL_STATUS_MODERATE || powerSave) {
+            heat = POWER_SAVER;
+        }
+        powerLevel = Math.max(battery, heat);
+    }
+
+    private StreamingProfile selectProfile() {
+        if (powerLevel == POWER_CRITICAL) {
+            return StreamingProfile.CRITICAL;
+        } else if (powerLevel == POWER_SAVER) {
+            return StreamingProfile.SAVER;
+        }
+        switch (motion) {
+            case VEHICLE:
+                return StreamingProfile.VEHICLE;
+            case WALKING:
+                return StreamingProfile.WALKING;
+            default:
+                return StreamingProfile.STATIONARY;
+        }
+    }
+
+    /**
+     * Charge elapsed time to the current profile and estimate what it saved
+     */
+    private void account(long nowMs) {
+        long elapsed = nowMs - lastAccountedMs;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastAccountedMs = nowMs;
+        timeInProfileMs[profile.ordinal()] += elapsed;
+
+        double seconds = elapsed / 1000.0;
+        double selected = selectedRateHz;
+        double framesSaved = (selected - profile.effectiveRate(selected)) * seconds
+                + (HeadingStreamer.DEFAULT_RATE_HZ - profile.getHeadingRateHz()) * seconds;
+        savedMillijoules += framesSaved * ENERGY_PER_FRAME_MJ;
+        if (profile.getHeadingRateHz() <= 0) {
+            savedMillijoules += HEADING_SENSOR_MW * seconds;
+        }
+    }
+
+    /**
+     * Time per profile and estimated savings, with the current profile charged up to nowMs
+     */
+    public synchronized Stats getStats(long nowMs) {
+        account(nowMs);
+        Stats stats = new Stats();
+        stats.profile = profile;
+        stats.motion = motion;
+        stats.batteryPercent = batteryPercent;
+        stats.thermalStatus = thermalStatus;
+        stats.inProfileMs = nowMs - profileSinceMs;
+        stats.timeInProfileMs = timeInProfileMs.clone();
+        stats.savedJoules = savedMillijoules / 1000.0;
+        stats.transitions = transitions;
+        return stats;
+    }
+
+    /**
+     * Profile usage at one point in time
+     */
+    public static class Stats {
+        public StreamingProfile profile;
+        public MotionState motion;
+        public int batteryPercent;
+        public int thermalStatus;
+        public long inProfileMs;
+        public long[] timeInProfileMs;
+        public double savedJoules;
+        public int transitions;
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("profile", profile.name());
+            json.put("motion", motion.name());
+            json.put("batteryPercent", batteryPercent);
+            json.put("thermalStatus", thermalStatus);
+            json.put("transitions", transitions);
+            json.put("estimatedSavedJoules", savedJoules);
+            JSONObject time = new JSONObject();
+            for (StreamingProfile p : StreamingProfile.values()) {
+                time.put(p.name(), timeInProfileMs[p.ordinal()] / 1000.0);
+            }
+            json.put("secondsInProfile", time);
+            return json;
+        }
+
+        public String toDisplayString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "Profile: %s for %s, saved ~%.1f J\n",
+                    profile, formatDuration(inProfileMs), savedJoules));
+            for (StreamingProfile p : StreamingProfile.values()) {
+                long ms = timeInProfileMs[p.ordinal()];
+                if (ms > 0) {
+                    sb.append(p.name(), 0, 1).append(p.name().substring(1).toLowerCase(Locale.US))
+                            .append(' ').append(formatDuration(ms)).append("  ");
+                }
+            }
+            return sb.toString().trim();
+        }
+
+        private static String formatDuration(long ms) {
+            long s = ms / 1000;
+            if (s < 3600) {
+                return String.format(Locale.US, "%d:%02d", s / 60, s % 60);
+            }
+            return String.format(Locale.US, "%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+        }
+    }
+}
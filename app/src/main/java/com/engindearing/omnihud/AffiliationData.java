@@ -80,6 +80,10 @@ public class AffiliationData {
         return timestamp;
     }
 
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     public String getServerConnection() {
         return serverConnection;
     }
@@ -96,6 +100,16 @@ public class AffiliationData {
         this.notes = notes;
     }
 
+    /**
+     * Independent copy, so cached data is not changed through a caller's reference
+     */
+    public AffiliationData copy() {
+        AffiliationData data = new AffiliationData(uid, affiliation, markedBy, serverConnection);
+        data.timestamp = timestamp;
+        data.notes = notes;
+        return data;
+    }
+
     // JSON Serialization
     public JSONObject toJson() throws JSONException {
         JSONObject json = new JSONObject();
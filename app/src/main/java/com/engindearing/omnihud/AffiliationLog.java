@@ -0,0 +1,511 @@
+package com.engindearing.omnihud;
+
+import com.atakmap.coremap.log.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only affiliation store in a memory-mapped file.
+ *
+ * Every change appends one record, so a write costs the same however many
+ * UIDs are stored; an in-memory index maps each UID to its latest record.
+ * Records have a fixed layout:
+ * <pre>
+ * int   magic        RECORD_MAGIC
+ * int   length       whole record in bytes, CRC included
+ * byte  kind         PUT or DELETE
+ * byte  affiliation  ordinal
+ * long  timestamp
+ * short + UTF-8      uid, then for PUT markedBy, serverConnection, notes
+ * int   crc          CRC-32 of kind through the last string
+ * </pre>
+ * The file is mapped in doubling chunks; unused space is zero. On open the
+ * log is replayed up to the first record with a bad magic, length or CRC,
+ * which is where a crash tore a write, and everything after it is zeroed.
+ *
+ * Superseded records and deletes are garbage. Once garbage passes
+ * {@link #COMPACT_MIN_GARBAGE} and outweighs the live records, a background
+ * thread copies the live records to a new file, replays whatever was
+ * appended meanwhile, forces it to disk and renames it over the log.
+ */
+public class AffiliationLog {
+
+    private static final String TAG = AffiliationLog.class.getSimpleName();
+
+    private static final long FILE_MAGIC = 0x4F4841464C4F4731L; // "OHAFLOG1"
+    private static final int FILE_HEADER_BYTES = 8;
+    private static final int RECORD_MAGIC = 0x41465231; // "AFR1"
+    // magic, length, kind, affiliation, timestamp
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 1 + 1 + 8;
+    private static final int CRC_BYTES = 4;
+    private static final int MIN_RECORD_BYTES = RECORD_HEADER_BYTES + 2 + CRC_BYTES;
+    private static final int MAX_STRING_BYTES = Short.MAX_VALUE;
+    private static final byte KIND_PUT = 1;
+    private static final byte KIND_DELETE = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int INITIAL_CAPACITY = 256 * 1024;
+    static final int COMPACT_MIN_GARBAGE = 64 * 1024;
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+
+    // UID -> offset of its latest PUT record
+    private Map<String, Integer> index = new HashMap<>();
+    private long liveBytes;
+    private long garbageBytes;
+
+    private byte[] scratch = new byte[256];
+    private final CRC32 crc = new CRC32();
+
+    private boolean compacting;
+    // Bumped by clear so an in-flight compaction is discarded
+    private int generation;
+
+    private long appends;
+    private long compactions;
+    private long lastCompactionMs = -1;
+    private int tornBytesRecovered;
+
+    /**
+     * Open the log, creating it if needed, and replay it into the index
+     * @throws IOException if the file cannot be mapped or is not an affiliation log
+     */
+    public AffiliationLog(File file) throws IOException {
+        this.file = file;
+        boolean created = !file.exists() || file.length() < FILE_HEADER_BYTES;
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        int capacity = (int) Math.max(INITIAL_CAPACITY, channel.size());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (created) {
+            buffer.putLong(0, FILE_MAGIC);
+        } else if (buffer.getLong(0) != FILE_MAGIC) {
+            channel.close();
+            throw new IOException("Not an affiliation log: " + file);
+        }
+        recover();
+    }
+
+    /**
+     * Replay records into the index, stopping at the first torn one
+     */
+    private void recover() {
+        int pos = FILE_HEADER_BYTES;
+        int capacity = buffer.capacity();
+        while (pos + MIN_RECORD_BYTES <= capacity && buffer.getInt(pos) == RECORD_MAGIC) {
+            int length = buffer.getInt(pos + 4);
+            if (length < MIN_RECORD_BYTES || length > capacity - pos || !readRecord(buffer, pos, length)) {
+                break;
+            }
+            apply(index, scratch, pos, length, buffer);
+            pos += length;
+        }
+        writePosition = pos;
+
+        // Anything non-zero past the last good record is a torn write; clear it so
+        // later appends are never followed by stale bytes that look like records
+        int lastDirty = -1;
+        for (int i = pos; i < capacity; i++) {
+            if (buffer.get(i) != 0) {
+                lastDirty = i;
+            }
+        }
+        if (lastDirty >= 0) {
+            tornBytesRecovered = lastDirty + 1 - pos;
+            for (int i = pos; i <= lastDirty; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            Log.w(TAG, "Discarded " + tornBytesRecovered + " bytes of torn writes at offset " + pos);
+        }
+        Log.d(TAG, "Recovered " + index.size() + " affiliations from " + pos + " bytes");
+    }
+
+    public synchronized void put(AffiliationData data) {
+        append(KIND_PUT, data);
+    }
+
+    /**
+     * Store the data only if the UID has no entry yet
+     * @return true if it was stored
+     */
+    public synchronized boolean putIfAbsent(AffiliationData data) {
+        if (index.containsKey(data.getUid())) {
+            return false;
+        }
+        append(KIND_PUT, data);
+        return true;
+    }
+
+    public synchronized void remove(String uid) {
+        if (index.containsKey(uid)) {
+            append(KIND_DELETE, new AffiliationData(uid, AffiliationData.Affiliation.UNKNOWN, "", ""));
+        }
+    }
+
+    public synchronized boolean contains(String uid) {
+        return index.containsKey(uid);
+    }
+
+    /**
+     * Decode the latest record for a UID
+     * @return the data, or null if the UID has no entry
+     */
+    public synchronized AffiliationData get(String uid) {
+        Integer offset = index.get(uid);
+        return offset != null ? decode(buffer, offset) : null;
+    }
+
+    /**
+     * Decode up to {@code max} entries
+     */
+    public synchronized List<AffiliationData> readAll(int max) {
+        List<AffiliationData> result = new ArrayList<>(Math.min(max, index.size()));
+        for (Integer offset : index.values()) {
+            if (result.size() >= max) {
+                break;
+            }
+            result.add(decode(buffer, offset));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Drop every entry and shrink the file back to its initial size
+     */
+    public synchronized void clear() throws IOException {
+        generation++;
+        channel.close();
+        if (!file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+        buffer.putLong(0, FILE_MAGIC);
+        writePosition = FILE_HEADER_BYTES;
+        index = new HashMap<>();
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    /**
+     * Flush the mapped pages to storage. Appends only reach the page cache,
+     * which survives a process crash but not power loss.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    public synchronized void close() {
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing affiliation log", e);
+        }
+    }
+
+    public synchronized long getCompactionCount() {
+        return compactions;
+    }
+
+    public synchronized boolean isCompacting() {
+        return compacting;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("entries", index.size());
+        json.put("fileBytes", buffer.capacity());
+        json.put("usedBytes", writePosition);
+        json.put("liveBytes", liveBytes);
+        json.put("garbageBytes", garbageBytes);
+        json.put("appends", appends);
+        json.put("compactions", compactions);
+        json.put("lastCompactionMs", lastCompactionMs);
+        json.put("tornBytesRecovered", tornBytesRecovered);
+        return json;
+    }
+
+    private void append(byte kind, AffiliationData data) {
+        int length = encode(kind, data);
+        try {
+            ensureCapacity(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot grow affiliation log; dropping write for " + data.getUid(), e);
+            return;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(writePosition);
+        view.put(scratch, 0, length);
+        apply(index, scratch, writePosition, length, buffer);
+        writePosition += length;
+        appends++;
+
+        if (!compacting && garbageBytes > COMPACT_MIN_GARBAGE && garbageBytes > liveBytes) {
+            compacting = true;
+            new Thread(this::compact, "OmniHUD-AffiliationCompact").start();
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        int capacity = buffer.capacity();
+        if (writePosition + length <= capacity) {
+            return;
+        }
+        while (writePosition + length > capacity) {
+            capacity *= 2;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Write a record into {@link #scratch}
+     * @return its length
+     */
+    private int encode(byte kind, AffiliationData data) {
+        byte[] uid = bytes(data.getUid());
+        byte[] markedBy = kind == KIND_PUT ? bytes(data.getMarkedBy()) : null;
+        byte[] server = kind == KIND_PUT ? bytes(data.getServerConnection()) : null;
+        byte[] notes = kind == KIND_PUT ? bytes(data.getNotes()) : null;
+        int length = RECORD_HEADER_BYTES + 2 + uid.length + CRC_BYTES;
+        if (kind == KIND_PUT) {
+            length += 6 + markedBy.length + server.length + notes.length;
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+
+        ByteBuffer out = ByteBuffer.wrap(scratch);
+        out.putInt(RECORD_MAGIC);
+        out.putInt(length);
+        out.put(kind);
+        AffiliationData.Affiliation affiliation = data.getAffiliation();
+        out.put((byte) (affiliation != null ? affiliation.ordinal() : 0));
+        out.putLong(data.getTimestamp());
+        putString(out, uid);
+        if (kind == KIND_PUT) {
+            putString(out, markedBy);
+            putString(out, server);
+            putString(out, notes);
+        }
+        crc.reset();
+        crc.update(scratch, 8, out.position() - 8);
+        out.putInt((int) crc.getValue());
+        return length;
+    }
+
+    private static byte[] bytes(String value) {
+        byte[] encoded = value != null ? value.getBytes(UTF8) : new byte[0];
+        if (encoded.length > MAX_STRING_BYTES) {
+            byte[] truncated = new byte[MAX_STRING_BYTES];
+            System.arraycopy(encoded, 0, truncated, 0, MAX_STRING_BYTES);
+            return truncated;
+        }
+        return encoded;
+    }
+
+    private static void putString(ByteBuffer out, byte[] value) {
+        out.putShort((short) value.length);
+        out.put(value);
+    }
+
+    /**
+     * Copy a record into {@link #scratch} and check its CRC
+     */
+    private boolean readRecord(ByteBuffer source, int pos, int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer view = source.duplicate();
+        view.position(pos);
+        view.get(scratch, 0, length);
+        crc.reset();
+        crc.update(scratch, 8, length - 8 - CRC_BYTES);
+        return ByteBuffer.wrap(scratch, length - CRC_BYTES, CRC_BYTES).getInt() == (int) crc.getValue();
+    }
+
+    /**
+     * Update an index for a record written at {@code pos}, whose bytes are in {@code record}
+     * @param source Buffer holding the records the index points at, for their lengths
+     */
+    private void apply(Map<String, Integer> target, byte[] record, int pos, int length, ByteBuffer source) {
+        int uidLength = ((record[RECORD_HEADER_BYTES] & 0xFF) << 8) | (record[RECORD_HEADER_BYTES + 1] & 0xFF);
+        String uid = new String(record, RECORD_HEADER_BYTES + 2, uidLength, UTF8);
+        Integer previous = record[8] == KIND_PUT ? target.put(uid, pos) : target.remove(uid);
+        if (previous != null) {
+            int previousLength = source.getInt(previous + 4);
+            liveBytes -= previousLength;
+            garbageBytes += previousLength;
+        }
+        if (record[8] == KIND_PUT) {
+            liveBytes += length;
+        } else {
+            garbageBytes += length;
+        }
+    }
+
+    private static AffiliationData decode(ByteBuffer source, int offset) {
+        ByteBuffer in = source.duplicate();
+        in.position(offset + 9);
+        int ordinal = in.get();
+        long timestamp = in.getLong();
+        String uid = getString(in);
+        String markedBy = getString(in);
+        String server = getString(in);
+        String notes = getString(in);
+        AffiliationData.Affiliation[] values = AffiliationData.Affiliation.values();
+        AffiliationData data = new AffiliationData(uid,
+                ordinal >= 0 && ordinal < values.length ? values[ordinal] : AffiliationData.Affiliation.UNKNOWN,
+                markedBy, server);
+        data.setNotes(notes);
+        data.setTimestamp(timestamp);
+        return data;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Rewrite the live records into a fresh file. Runs on its own thread;
+     * appends continue against the old file and are replayed at the end.
+     */
+    private void compact() {
+        long start = System.currentTimeMillis();
+        File target = new File(file.getPath() + ".compact");
+        FileChannel targetChannel = null;
+        try {
+            int startGeneration;
+            int snapshotEnd;
+            ByteBuffer source;
+            int[] offsets;
+            long live;
+            synchronized (this) {
+                startGeneration = generation;
+                snapshotEnd = writePosition;
+                source = buffer;
+                live = liveBytes;
+                offsets = new int[index.size()];
+                int n = 0;
+                for (Integer offset : index.values()) {
+                    offsets[n++] = offset;
+                }
+            }
+
+            // Records below snapshotEnd never change, so they are copied without the lock
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Cannot replace " + target);
+            }
+            targetChannel = new RandomAccessFile(target, "rw").getChannel();
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < FILE_HEADER_BYTES + live * 2) {
+                capacity *= 2;
+            }
+            MappedByteBuffer out = targetChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            out.putLong(0, FILE_MAGIC);
+            int outPosition = FILE_HEADER_BYTES;
+            byte[] copy = new byte[256];
+            for (int offset : offsets) {
+                int length = source.getInt(offset + 4);
+                if (copy.length < length) {
+                    copy = new byte[Math.max(length, copy.length * 2)];
+                }
+                ByteBuffer view = source.duplicate();
+                view.position(offset);
+                view.get(copy, 0, length);
+                out.position(outPosition);
+                out.put(copy, 0, length);
+                outPosition += length;
+            }
+
+            synchronized (this) {
+                if (generation != startGeneration) {
+                    return;
+                }
+                // Replay appends made while copying, then rebuild the index from the new file
+                int tail = writePosition - snapshotEnd;
+                if (outPosition + tail > out.capacity()) {
+                    while (outPosition + tail > capacity) {
+                        capacity *= 2;
+                    }
+                    out = targetChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                }
+                if (tail > 0) {
+                    if (copy.length < tail) {
+                        copy = new byte[tail];
+                    }
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(snapshotEnd);
+                    view.get(copy, 0, tail);
+                    out.position(outPosition);
+                    out.put(copy, 0, tail);
+                    outPosition += tail;
+                }
+                out.force();
+
+                Map<String, Integer> newIndex = new HashMap<>(index.size() * 2);
+                liveBytes = 0;
+                garbageBytes = 0;
+                for (int pos = FILE_HEADER_BYTES; pos < outPosition; ) {
+                    int length = out.getInt(pos + 4);
+                    readRecord(out, pos, length);
+                    apply(newIndex, scratch, pos, length, out);
+                    pos += length;
+                }
+
+                if (!target.renameTo(file)) {
+                    throw new IOException("Cannot rename " + target + " over " + file);
+                }
+                channel.close();
+                channel = targetChannel;
+                targetChannel = null;
+                buffer = out;
+                writePosition = outPosition;
+                index = newIndex;
+                compactions++;
+                lastCompactionMs = System.currentTimeMillis() - start;
+                Log.d(TAG, "Compacted affiliation log to " + outPosition + " bytes in " + lastCompactionMs + " ms");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Affiliation log compaction failed", e);
+        } finally {
+            if (targetChannel != null) {
+                try {
+                    targetChannel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing compaction target", e);
+                }
+                if (!target.delete()) {
+                    Log.w(TAG, "Could not delete " + target);
+                }
+            }
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+}
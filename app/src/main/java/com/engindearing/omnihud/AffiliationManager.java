@@ -7,22 +7,64 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manager for storing and retrieving CoT affiliation data
- * Uses SharedPreferences for persistent storage
+ * Uses an {@link AffiliationLog} for persistent storage
+ *
+ * Decoded entries are kept in a bounded concurrent cache in front of the
+ * log, written through on every change and warmed on a background thread
+ * at startup, so the per-CoT lookups on the comms thread rarely decode
+ * anything. Past {@link #MAX_CACHED} entries a clock sweep evicts entries
+ * not read since the last sweep; those are decoded from the log again on
+ * their next read. Affiliations stored in SharedPreferences by earlier
+ * versions are moved into the log on the first start, before the instance
+ * is handed out, so no lookup can miss an entry that has not been moved yet.
  */
 public class AffiliationManager {
     private static final String TAG = "AffiliationManager";
     private static final String PREFS_NAME = "omnihud_affiliations";
     private static final String KEY_PREFIX = "affiliation_";
+    private static final String LOG_FILE_NAME = "omnihud_affiliations.log";
+
+    static final int MAX_CACHED = 8192;
+    // A sweep evicts down to this many entries so it does not run on every insert
+    private static final int EVICT_TO = MAX_CACHED * 7 / 8;
 
     private static AffiliationManager instance;
     private final SharedPreferences prefs;
     private final Context context;
+    private final AffiliationLog store;
+
+    private static class CachedAffiliation {
+        final AffiliationData data;
+        // Read since the last sweep
+        volatile boolean referenced;
+
+        CachedAffiliation(AffiliationData data) {
+            this.data = data;
+        }
+    }
+
+    private final ConcurrentHashMap<String, CachedAffiliation> cache = new ConcurrentHashMap<>();
+    private volatile boolean warming;
+    // Bumped by clearAll so warming stops re-adding cleared entries
+    private volatile int generation;
+    private final Set<String> removedWhileWarming =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long warmMs = -1;
 
     private AffiliationManager(Context context) {
         if (context == null) {
@@ -30,6 +72,12 @@ public class AffiliationManager {
         }
         this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
         this.prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.store = openStore(new File(this.context.getFilesDir(), LOG_FILE_NAME));
+        int imported = importPreferences();
+        if (imported > 0) {
+            Log.d(TAG, "Imported " + imported + " affiliations from preferences");
+        }
+        warmCache();
     }
 
     public static synchronized AffiliationManager getInstance(Context context) {
@@ -43,18 +91,32 @@ public class AffiliationManager {
         return instance;
     }
 
+    private static AffiliationLog openStore(File file) {
+        try {
+            return new AffiliationLog(file);
+        } catch (IOException e) {
+            // Keep the unreadable file for inspection and start an empty log
+            Log.e(TAG, "Cannot open affiliation log, starting a new one", e);
+            File broken = new File(file.getPath() + ".broken");
+            if (!file.renameTo(broken)) {
+                Log.w(TAG, "Could not move aside " + file);
+            }
+            try {
+                return new AffiliationLog(file);
+            } catch (IOException retry) {
+                throw new IllegalStateException("Cannot create affiliation log " + file, retry);
+            }
+        }
+    }
+
     /**
      * Store affiliation data for a CoT UID
      */
     public void setAffiliation(AffiliationData data) {
-        try {
-            String key = KEY_PREFIX + data.getUid();
-            String jsonString = data.toJson().toString();
-            prefs.edit().putString(key, jsonString).apply();
-            Log.d(TAG, "Stored affiliation for UID: " + data.getUid() + " -> " + data.getAffiliation());
-        } catch (JSONException e) {
-            Log.e(TAG, "Error storing affiliation data", e);
-        }
+        cachePut(data.getUid(), data.copy());
+        store.put(data);
+        updateTrackStore(data.getUid(), data.getAffiliation());
+        Log.d(TAG, "Stored affiliation for UID: " + data.getUid() + " -> " + data.getAffiliation());
     }
 
     /**
@@ -62,18 +124,25 @@ public class AffiliationManager {
      * @return AffiliationData or null if not found
      */
     public AffiliationData getAffiliation(String uid) {
-        String key = KEY_PREFIX + uid;
-        String jsonString = prefs.getString(key, null);
+        CachedAffiliation cached = cache.get(uid);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            cached.referenced = true;
+            return cached.data.copy();
+        }
+        cacheMisses.incrementAndGet();
 
-        if (jsonString != null) {
-            try {
-                JSONObject json = new JSONObject(jsonString);
-                return AffiliationData.fromJson(json);
-            } catch (JSONException e) {
-                Log.e(TAG, "Error parsing affiliation data for UID: " + uid, e);
+        AffiliationData data = store.get(uid);
+        if (data != null) {
+            CachedAffiliation entry = new CachedAffiliation(data);
+            if (cache.putIfAbsent(uid, entry) == null && !store.contains(uid)) {
+                // Removed since the read; removeAffiliation() drops it from the log before
+                // the cache, so this check cannot miss a removal that came after the insert
+                cache.remove(uid, entry);
             }
+            trimCache();
+            return data.copy();
         }
-
         return null;
     }
 
@@ -81,57 +150,170 @@ public class AffiliationManager {
      * Check if affiliation exists for a UID
      */
     public boolean hasAffiliation(String uid) {
-        String key = KEY_PREFIX + uid;
-        return prefs.contains(key);
+        CachedAffiliation cached = cache.get(uid);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            cached.referenced = true;
+            return true;
+        }
+        return store.contains(uid);
     }
 
     /**
      * Remove affiliation data for a CoT UID
      */
     public void removeAffiliation(String uid) {
-        String key = KEY_PREFIX + uid;
-        prefs.edit().remove(key).apply();
+        if (warming) {
+            removedWhileWarming.add(uid);
+        }
+        // Log first, so a concurrent cache miss either re-reads nothing or has its entry removed here
+        store.remove(uid);
+        cache.remove(uid);
+        updateTrackStore(uid, null);
         Log.d(TAG, "Removed affiliation for UID: " + uid);
     }
 
+    private void cachePut(String uid, AffiliationData data) {
+        CachedAffiliation entry = new CachedAffiliation(data);
+        entry.referenced = true;
+        cache.put(uid, entry);
+        trimCache();
+    }
+
     /**
-     * Get all stored affiliations
+     * Clock sweep: clear the referenced bit of recently read entries and
+     * evict the rest until the cache is back under its bound
      */
-    public List<AffiliationData> getAllAffiliations() {
-        List<AffiliationData> affiliations = new ArrayList<>();
-        Map<String, ?> allPrefs = prefs.getAll();
+    private void trimCache() {
+        if (cache.size() <= MAX_CACHED) {
+            return;
+        }
+        synchronized (cache) {
+            int passes = 0;
+            while (cache.size() > EVICT_TO && passes++ < 2) {
+                Iterator<CachedAffiliation> it = cache.values().iterator();
+                while (it.hasNext() && cache.size() > EVICT_TO) {
+                    CachedAffiliation entry = it.next();
+                    if (entry.referenced) {
+                        entry.referenced = false;
+                    } else {
+                        it.remove();
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * On a background thread, decode stored entries into the cache.
+     * Entries written meanwhile win over what this thread read.
+     */
+    private void warmCache() {
+        warming = true;
+        Thread warmer = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            int startGeneration = generation;
+            int loaded = 0;
+            for (AffiliationData data : store.readAll(MAX_CACHED)) {
+                if (generation != startGeneration) {
+                    // Cleared meanwhile; everything since was written through
+                    break;
+                }
+                if (!removedWhileWarming.contains(data.getUid())
+                        && cache.putIfAbsent(data.getUid(), new CachedAffiliation(data)) == null) {
+                    loaded++;
+                }
+            }
+            warming = false;
+            removedWhileWarming.clear();
+            warmMs = System.currentTimeMillis() - start;
+            Log.d(TAG, "Affiliation cache warmed with " + loaded + " entries in " + warmMs + " ms");
+        }, "OmniHUD-AffiliationWarm");
+        warmer.setPriority(Thread.MIN_PRIORITY);
+        warmer.start();
+    }
 
+    /**
+     * One-time move of entries from the SharedPreferences store.
+     * Runs in the constructor, so it is only slow on the first start after upgrading.
+     * @return number of entries imported
+     */
+    private int importPreferences() {
+        Map<String, ?> allPrefs = prefs.getAll();
+        if (allPrefs.isEmpty()) {
+            return 0;
+        }
+        int imported = 0;
+        SharedPreferences.Editor editor = prefs.edit();
         for (Map.Entry<String, ?> entry : allPrefs.entrySet()) {
-            if (entry.getKey().startsWith(KEY_PREFIX)) {
+            if (!entry.getKey().startsWith(KEY_PREFIX)) {
+                continue;
+            }
+            if (entry.getValue() instanceof String) {
                 try {
-                    String jsonString = (String) entry.getValue();
-                    if (jsonString != null) {
-                        JSONObject json = new JSONObject(jsonString);
-                        affiliations.add(AffiliationData.fromJson(json));
+                    AffiliationData data = AffiliationData.fromJson(new JSONObject((String) entry.getValue()));
+                    // Anything already in the log was written since and is newer
+                    if (store.putIfAbsent(data)) {
+                        imported++;
                     }
                 } catch (JSONException e) {
                     Log.e(TAG, "Error parsing affiliation data", e);
                 }
             }
+            editor.remove(entry.getKey());
+        }
+        editor.apply();
+        return imported;
+    }
+
+    /**
+     * Cache and log statistics, for the metrics export
+     */
+    public JSONObject getStats() throws JSONException {
+        long hits = cacheHits.get();
+        long misses = cacheMisses.get();
+        JSONObject json = new JSONObject();
+        json.put("cacheEntries", cache.size());
+        json.put("cacheMaxEntries", MAX_CACHED);
+        json.put("cacheHits", hits);
+        json.put("cacheMisses", misses);
+        json.put("cacheHitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+        json.put("cacheEvictions", evictions.get());
+        json.put("warmMs", warmMs);
+        json.put("log", store.toJson());
+        return json;
+    }
+
+    /**
+     * Keep the track store's affiliation column in step for tracks it holds
+     */
+    private static void updateTrackStore(String uid, AffiliationData.Affiliation affiliation) {
+        TrackStore tracks = TrackStore.getInstance();
+        int handle = tracks.find(uid);
+        if (handle != TrackStore.NONE) {
+            tracks.setAffiliation(handle, affiliation);
         }
+    }
 
-        return affiliations;
+    /**
+     * Get all stored affiliations
+     */
+    public List<AffiliationData> getAllAffiliations() {
+        return store.readAll(Integer.MAX_VALUE);
     }
 
     /**
      * Clear all affiliation data
      */
     public void clearAll() {
-        SharedPreferences.Editor editor = prefs.edit();
-        Map<String, ?> allPrefs = prefs.getAll();
-
-        for (String key : allPrefs.keySet()) {
-            if (key.startsWith(KEY_PREFIX)) {
-                editor.remove(key);
-            }
+        generation++;
+        try {
+            store.clear();
+        } catch (IOException e) {
+            Log.e(TAG, "Error clearing affiliation log", e);
         }
-
-        editor.apply();
+        cache.clear();
         Log.d(TAG, "Cleared all affiliation data");
     }
 
@@ -139,16 +321,7 @@ public class AffiliationManager {
      * Get count of stored affiliations
      */
     public int getAffiliationCount() {
-        int count = 0;
-        Map<String, ?> allPrefs = prefs.getAll();
-
-        for (String key : allPrefs.keySet()) {
-            if (key.startsWith(KEY_PREFIX)) {
-                count++;
-            }
-        }
-
-        return count;
+        return store.size();
     }
 
     /**
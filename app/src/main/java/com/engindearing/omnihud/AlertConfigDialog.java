@@ -239,9 +239,15 @@ public class AlertConfigDialog {
                             " - Item: " + itemUID + " - Type: " + breachType);
 
                     // Show notification
-                    Toast.makeText(context,
-                            "ALERT: COT " + breachType + " AOI " + aoiItem.getName(),
-                            Toast.LENGTH_LONG).show();
+                    String message = "ALERT: COT " + breachType + " AOI " + aoiItem.getName();
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+
+                    // Forward to the HUD; the dashboard receiver puts it in the alert lane
+                    Intent hudAlert = new Intent(OmniHUDDropDownReceiver.HUD_ALERT);
+                    hudAlert.putExtra("fenceUID", fenceUID);
+                    hudAlert.putExtra("itemUID", itemUID);
+                    hudAlert.putExtra("message", message);
+                    AtakBroadcast.getInstance().sendBroadcast(hudAlert);
                 }
             }
         };
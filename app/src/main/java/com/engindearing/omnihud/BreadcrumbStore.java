@@ -0,0 +1,301 @@
+package com.engindearing.omnihud;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Recent position history per track, for HUD trails and movement alerts.
+ *
+ * All samples live in shared primitive arrays carved into fixed-size
+ * blocks; a track that has moved owns one block and uses it as a ring, so
+ * the newest samples overwrite its oldest. The total sample count is a hard
+ * cap: when every block is taken, the block of the least recently updated
+ * track is reclaimed. Blocks sit on an intrusive LRU list, so touching and
+ * evicting are O(1).
+ *
+ * Sampling is adaptive: a sample is kept once the track has moved
+ * {@link #MIN_DISTANCE_M} from its last sample, at most once per
+ * {@link #MIN_INTERVAL_MS}. Stationary tracks never consume slots, and only
+ * tracks that have moved at all are given a block.
+ * Tracks are identified by {@link TrackStore} handles.
+ */
+public class BreadcrumbStore {
+
+    public static final int DEFAULT_SAMPLES_PER_TRACK = 32;
+    public static final int DEFAULT_MAX_SAMPLES = 65536;
+    static final double MIN_DISTANCE_M = 5.0;
+    static final long MIN_INTERVAL_MS = 1000;
+
+    private static final int NO_BLOCK = -1;
+
+    private final int samplesPerTrack;
+    private final int blockCount;
+
+    // Samples, block b owns [b * samplesPerTrack, (b + 1) * samplesPerTrack)
+    private final long[] times;
+    private final double[] lats;
+    private final double[] lons;
+    private final float[] haes;
+
+    // Per block
+    private final int[] owner;
+    private final int[] start;
+    private final int[] count;
+    private final int[] lruPrev;
+    private final int[] lruNext;
+    private int lruOldest = NO_BLOCK;
+    private int lruNewest = NO_BLOCK;
+    private int[] freeBlocks;
+    private int freeCount;
+
+    // Per track handle; last position seen, used until the track earns a block
+    private int[] blockOf = new int[0];
+    private double[] pendingLat = new double[0];
+    private double[] pendingLon = new double[0];
+    private float[] pendingHae = new float[0];
+    private long[] pendingTime = new long[0];
+    private boolean[] seen = new boolean[0];
+
+    private long recorded;
+    private long skipped;
+    private long evictions;
+
+    public BreadcrumbStore() {
+        this(DEFAULT_MAX_SAMPLES, DEFAULT_SAMPLES_PER_TRACK);
+    }
+
+    /**
+     * @param maxSamples Hard cap on samples held across all tracks
+     * @param samplesPerTrack Ring size per track
+     */
+    public BreadcrumbStore(int maxSamples, int samplesPerTrack) {
+        this.samplesPerTrack = samplesPerTrack;
+        this.blockCount = Math.max(1, maxSamples / samplesPerTrack);
+        int samples = blockCount * samplesPerTrack;
+        times = new long[samples];
+        lats = new double[samples];
+        lons = new double[samples];
+        haes = new float[samples];
+        owner = new int[blockCount];
+        start = new int[blockCount];
+        count = new int[blockCount];
+        lruPrev = new int[blockCount];
+        lruNext = new int[blockCount];
+        freeBlocks = new int[blockCount];
+        clear();
+    }
+
+    /**
+     * Offer a position report for a track
+     * @return true if it was kept as a sample
+     */
+    public synchronized boolean record(int handle, double lat, double lon, double hae, long timeMs) {
+        ensureHandle(handle);
+        int block = blockOf[handle];
+        if (block == NO_BLOCK) {
+            if (!seen[handle]) {
+                // First report: remember it without spending a block on a possibly static track
+                seen[handle] = true;
+                pendingLat[handle] = lat;
+                pendingLon[handle] = lon;
+                pendingHae[handle] = (float) hae;
+                pendingTime[handle] = timeMs;
+                skipped++;
+                return false;
+            }
+            if (DeadReckoningModel.distanceMeters(pendingLat[handle], pendingLon[handle], lat, lon) < MIN_DISTANCE_M) {
+                skipped++;
+                return false;
+            }
+            block = allocateBlock(handle);
+            append(block, pendingLat[handle], pendingLon[handle], pendingHae[handle], pendingTime[handle]);
+            append(block, lat, lon, hae, timeMs);
+            recorded += 2;
+            return true;
+        }
+
+        touch(block);
+        int newest = newestSlot(block);
+        if (timeMs - times[newest] < MIN_INTERVAL_MS
+                || DeadReckoningModel.distanceMeters(lats[newest], lons[newest], lat, lon) < MIN_DISTANCE_M) {
+            skipped++;
+            return false;
+        }
+        append(block, lat, lon, hae, timeMs);
+        recorded++;
+        return true;
+    }
+
+    /**
+     * Copy a track's samples into the output arrays, oldest first
+     * @return number of samples copied
+     */
+    public synchronized int read(int handle, long[] outTime, double[] outLat, double[] outLon, float[] outHae) {
+        if (handle < 0 || handle >= blockOf.length || blockOf[handle] == NO_BLOCK) {
+            return 0;
+        }
+        int block = blockOf[handle];
+        int base = block * samplesPerTrack;
+        int n = Math.min(count[block], outTime.length);
+        int first = count[block] - n;
+        for (int k = 0; k < n; k++) {
+            int slot = base + (start[block] + first + k) % samplesPerTrack;
+            outTime[k] = times[slot];
+            outLat[k] = lats[slot];
+            outLon[k] = lons[slot];
+            if (outHae != null) {
+                outHae[k] = haes[slot];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Forget a track's history, e.g. when its handle is released
+     */
+    public synchronized void remove(int handle) {
+        if (handle < 0 || handle >= blockOf.length) {
+            return;
+        }
+        seen[handle] = false;
+        int block = blockOf[handle];
+        if (block != NO_BLOCK) {
+            unlink(block);
+            blockOf[handle] = NO_BLOCK;
+            freeBlocks[freeCount++] = block;
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(blockOf, NO_BLOCK);
+        Arrays.fill(seen, false);
+        lruOldest = NO_BLOCK;
+        lruNewest = NO_BLOCK;
+        freeCount = 0;
+        for (int b = blockCount - 1; b >= 0; b--) {
+            freeBlocks[freeCount++] = b;
+        }
+    }
+
+    /**
+     * Tracks currently holding history
+     */
+    public synchronized int getTrackCount() {
+        return blockCount - freeCount;
+    }
+
+    /**
+     * Bytes held by the sample and block arrays, fixed at construction
+     */
+    public long getCapacityBytes() {
+        return (long) times.length * (8 + 8 + 8 + 4) + (long) blockCount * 4 * 6;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("tracks", blockCount - freeCount);
+        json.put("maxTracks", blockCount);
+        json.put("samplesPerTrack", samplesPerTrack);
+        json.put("recorded", recorded);
+        json.put("skipped", skipped);
+        json.put("evictions", evictions);
+        json.put("capacityBytes", getCapacityBytes());
+        return json;
+    }
+
+    private int allocateBlock(int handle) {
+        int block;
+        if (freeCount > 0) {
+            block = freeBlocks[--freeCount];
+        } else {
+            // Reclaim the least recently updated track's history. Its newest sample
+            // becomes its pending one, so a later block starts where the track was last seen.
+            block = lruOldest;
+            unlink(block);
+            int evicted = owner[block];
+            int newest = newestSlot(block);
+            pendingLat[evicted] = lats[newest];
+            pendingLon[evicted] = lons[newest];
+            pendingHae[evicted] = haes[newest];
+            pendingTime[evicted] = times[newest];
+            blockOf[evicted] = NO_BLOCK;
+            evictions++;
+        }
+        owner[block] = handle;
+        start[block] = 0;
+        count[block] = 0;
+        blockOf[handle] = block;
+        linkNewest(block);
+        return block;
+    }
+
+    private void append(int block, double lat, double lon, double hae, long timeMs) {
+        int slot;
+        if (count[block] < samplesPerTrack) {
+            slot = (start[block] + count[block]) % samplesPerTrack;
+            count[block]++;
+        } else {
+            slot = start[block];
+            start[block] = (start[block] + 1) % samplesPerTrack;
+        }
+        int i = block * samplesPerTrack + slot;
+        times[i] = timeMs;
+        lats[i] = lat;
+        lons[i] = lon;
+        haes[i] = Double.isNaN(hae) ? Float.NaN : (float) hae;
+    }
+
+    private int newestSlot(int block) {
+        return block * samplesPerTrack + (start[block] + count[block] - 1) % samplesPerTrack;
+    }
+
+    private void touch(int block) {
+        if (block != lruNewest) {
+            unlink(block);
+            linkNewest(block);
+        }
+    }
+
+    private void linkNewest(int block) {
+        lruPrev[block] = lruNewest;
+        lruNext[block] = NO_BLOCK;
+        if (lruNewest != NO_BLOCK) {
+            lruNext[lruNewest] = block;
+        } else {
+            lruOldest = block;
+        }
+        lruNewest = block;
+    }
+
+    private void unlink(int block) {
+        int prev = lruPrev[block];
+        int next = lruNext[block];
+        if (prev != NO_BLOCK) {
+            lruNext[prev] = next;
+        } else {
+            lruOldest = next;
+        }
+        if (next != NO_BLOCK) {
+            lruPrev[next] = prev;
+        } else {
+            lruNewest = prev;
+        }
+    }
+
+    private void ensureHandle(int handle) {
+        if (handle < blockOf.length) {
+            return;
+        }
+        int size = Math.max(handle + 1, blockOf.length * 2);
+        int old = blockOf.length;
+        blockOf = Arrays.copyOf(blockOf, size);
+        Arrays.fill(blockOf, old, size, NO_BLOCK);
+        pendingLat = Arrays.copyOf(pendingLat, size);
+        pendingLon = Arrays.copyOf(pendingLon, size);
+        pendingHae = Arrays.copyOf(pendingHae, size);
+        pendingTime = Arrays.copyOf(pendingTime, size);
+        seen = Arrays.copyOf(seen, size);
+    }
+}
@@ -0,0 +1,113 @@
+package com.engindearing.omnihud;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbInterface;
+
+import com.atakmap.coremap.log.Log;
+
+/**
+ * Driver for USB CDC-ACM (Communications Device Class) serial ports.
+ * Also used as the fallback for adapters without a known chipset; if no
+ * CDC control interface is present the line coding requests are skipped
+ * and the port behaves like the raw bulk pipe it always was.
+ */
+public class CdcAcmSerialDriver extends UsbSerialDriver {
+
+    private static final String TAG = CdcAcmSerialDriver.class.getSimpleName();
+
+    private static final int SET_LINE_CODING = 0x20;
+    private static final int SET_CONTROL_LINE_STATE = 0x22;
+
+    private static final int CONTROL_LINE_DTR = 0x01;
+    private static final int CONTROL_LINE_RTS = 0x02;
+
+    // CDC devices are virtual UARTs; the rate is only passed through to the far side
+    private static final int MAX_BAUD_RATE = 3000000;
+
+    private UsbInterface controlInterface;
+
+    public CdcAcmSerialDriver(UsbDevice device) {
+        super(device);
+    }
+
+    @Override
+    public String getChipName() {
+        return controlInterface != null ? "CDC-ACM" : "USB serial";
+    }
+
+    @Override
+    public int getMaxBaudRate() {
+        return MAX_BAUD_RATE;
+    }
+
+    @Override
+    public boolean supportsFlowControl() {
+        // CDC-ACM has no request that sets up an RTS/CTS handshake
+        return false;
+    }
+
+    @Override
+    protected boolean claimInterfaces() {
+        UsbInterface data = null;
+        for (int i = 0; i < device.getInterfaceCount(); i++) {
+            UsbInterface iface = device.getInterface(i);
+            if (iface.getInterfaceClass() == UsbConstants.USB_CLASS_COMM && controlInterface == null) {
+                controlInterface = iface;
+            } else if (iface.getInterfaceClass() == UsbConstants.USB_CLASS_CDC_DATA && data == null) {
+                data = iface;
+            }
+        }
+
+        if (controlInterface == null || data == null) {
+            // Not a composite CDC device - use interface 0 as a plain bulk pipe
+            controlInterface = null;
+            Log.d(TAG, "No CDC control/data interface pair, using interface 0 without line coding");
+            return super.claimInterfaces();
+        }
+
+        if (!connection.claimInterface(controlInterface, true)) {
+            setLastError("Failed to claim CDC control interface");
+            return false;
+        }
+        if (!connection.claimInterface(data, true)) {
+            setLastError("Failed to claim CDC data interface");
+            return false;
+        }
+        dataInterface = data;
+        return true;
+    }
+
+    @Override
+    protected boolean initChip() {
+        return true;
+    }
+
+    @Override
+    protected boolean applyLineCoding(int baudRate) {
+        if (controlInterface == null) {
+            return true;
+        }
+        return controlOut(REQTYPE_HOST_TO_INTERFACE_CLASS, SET_LINE_CODING, 0,
+                controlInterface.getId(), cdcLineCoding(baudRate));
+    }
+
+    @Override
+    protected boolean applyFlowControl(boolean enabled) {
+        if (controlInterface == null) {
+            return true;
+        }
+        // Never enabled here; only raise DTR/RTS, which many CDC devices wait for before sending
+        return controlOut(REQTYPE_HOST_TO_INTERFACE_CLASS, SET_CONTROL_LINE_STATE,
+                CONTROL_LINE_DTR | CONTROL_LINE_RTS, controlInterface.getId());
+    }
+
+    @Override
+    public void close() {
+        if (connection != null && controlInterface != null) {
+            connection.releaseInterface(controlInterface);
+        }
+        controlInterface = null;
+        super.close();
+    }
+}
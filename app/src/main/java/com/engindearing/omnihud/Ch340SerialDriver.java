@@ -0,0 +1,104 @@
+package com.engindearing.omnihud;
+
+import android.hardware.usb.UsbDevice;
+
+import com.atakmap.coremap.log.Log;
+
+/**
+ * Driver for QinHeng CH340/CH341 USB-serial chips.
+ * Configuration is written to internal registers with the vendor WRITE_REG
+ * request; the baud rate is a prescaler/divisor pair derived from a 12 MHz clock.
+ */
+public class Ch340SerialDriver extends UsbSerialDriver {
+
+    private static final String TAG = Ch340SerialDriver.class.getSimpleName();
+
+    private static final int REQ_READ_VERSION = 0x5F;
+    private static final int REQ_WRITE_REG = 0x9A;
+    private static final int REQ_SERIAL_INIT = 0xA1;
+    private static final int REQ_MODEM_CTRL = 0xA4;
+
+    private static final int REG_PRESCALER_DIVISOR = 0x1312;
+    private static final int REG_DIVISOR_LOW = 0x0F2C;
+    private static final int REG_LCR = 0x2518;
+
+    // LCR: enable RX and TX, 8 data bits, no parity, 1 stop bit
+    private static final int LCR_ENABLE_RX = 0x80;
+    private static final int LCR_ENABLE_TX = 0x40;
+    private static final int LCR_CS8 = 0x03;
+
+    // Modem control lines are active-low in the request value
+    private static final int MODEM_DTR = 1 << 5;
+    private static final int MODEM_RTS = 1 << 6;
+
+    private static final long BAUDBASE_FACTOR = 1532620800L;
+    private static final int BAUDBASE_DIVMAX = 3;
+    private static final int MAX_BAUD_RATE = 2000000;
+
+    public Ch340SerialDriver(UsbDevice device) {
+        super(device);
+    }
+
+    @Override
+    public String getChipName() {
+        return "CH340";
+    }
+
+    @Override
+    public int getMaxBaudRate() {
+        return MAX_BAUD_RATE;
+    }
+
+    @Override
+    public boolean supportsFlowControl() {
+        // The CH340 has no hardware CTS handshake
+        return false;
+    }
+
+    @Override
+    protected boolean initChip() {
+        byte[] version = new byte[2];
+        if (controlIn(REQ_READ_VERSION, 0, 0, version) >= 0) {
+            Log.d(TAG, String.format("CH34x chip version 0x%02X", version[0] & 0xFF));
+        }
+        return controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, REQ_SERIAL_INIT, 0, 0)
+                && controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, REQ_WRITE_REG, REG_LCR,
+                        LCR_ENABLE_RX | LCR_ENABLE_TX | LCR_CS8);
+    }
+
+    @Override
+    protected boolean applyLineCoding(int baudRate) {
+        long factor;
+        int divisor;
+        if (baudRate == 921600) {
+            // Not reachable with the generic formula
+            divisor = 7;
+            factor = 0xF300;
+        } else {
+            factor = BAUDBASE_FACTOR / baudRate;
+            divisor = BAUDBASE_DIVMAX;
+            while (factor > 0xFFF0 && divisor > 0) {
+                factor >>= 3;
+                divisor--;
+            }
+            if (factor > 0xFFF0) {
+                setLastError("Baud rate " + baudRate + " not supported by CH340");
+                return false;
+            }
+            factor = 0x10000 - factor;
+        }
+        // Bit 7 stops the chip from waiting for a full buffer before sending
+        divisor |= 0x80;
+
+        int prescaler = (int) ((factor & 0xFF00) | divisor);
+        int low = (int) (factor & 0xFF);
+        return controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, REQ_WRITE_REG, REG_PRESCALER_DIVISOR, prescaler)
+                && controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, REQ_WRITE_REG, REG_DIVISOR_LOW, low);
+    }
+
+    @Override
+    protected boolean applyFlowControl(boolean enabled) {
+        int lines = MODEM_DTR | MODEM_RTS;
+        return controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, REQ_MODEM_CTRL, ~lines & 0xFFFF, 0);
+    }
+}
@@ -0,0 +1,156 @@
+package com.engindearing.omnihud;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ranks candidate contacts for the limited number of symbols a HUD can show.
+ *
+ * The score blends closeness, hostility (CoT type or an operator-assigned
+ * {@link AffiliationData.Affiliation#ASSUMED_HOSTILE}), freshness and whether
+ * the contact lies inside the wearer's heading cone. The top entries are
+ * found with quickselect, so only the selected few are ever sorted.
+ * Not thread-safe; call from the streaming thread only.
+ */
+public class ContactRanker {
+
+    public static final double DEFAULT_CONE_HALF_ANGLE_DEG = 30.0;
+
+    private static final double WEIGHT_DISTANCE = 1.0;
+    private static final double WEIGHT_HOSTILE = 2.0;
+    private static final double WEIGHT_FRESHNESS = 0.5;
+    private static final double WEIGHT_IN_CONE = 1.0;
+    private static final double FRESHNESS_HALF_LIFE_MS = 30000.0;
+
+    private final TrackStore tracks;
+    private double coneHalfAngleDeg = DEFAULT_CONE_HALF_ANGLE_DEG;
+
+    private double[] scores = new double[64];
+    private int[] order = new int[64];
+
+    /**
+     * @param tracks Track store whose affiliation column holds operator-assigned
+     *               affiliations, or null to rank on CoT type only
+     */
+    public ContactRanker(TrackStore tracks) {
+        this.tracks = tracks;
+    }
+
+    public void setConeHalfAngle(double degrees) {
+        this.coneHalfAngleDeg = degrees;
+    }
+
+    /**
+     * Pick the highest-scoring contacts, best first
+     * @param candidates Contacts inside the radius with distanceM filled in
+     * @param heading Wearer heading in degrees true
+     * @param radiusM Search radius, used to normalise distance
+     * @param limit Maximum number of contacts to return
+     */
+    public List<ContactTracker.Contact> select(List<ContactTracker.Contact> candidates,
+                                               double selfLat, double selfLon, double heading,
+                                               double radiusM, long nowMs, int limit) {
+        int n = candidates.size();
+        if (scores.length < n) {
+            scores = new double[n];
+            order = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            scores[i] = score(candidates.get(i), selfLat, selfLon, heading, radiusM, nowMs);
+            order[i] = i;
+        }
+
+        int selected = Math.min(limit, n);
+        if (selected < n) {
+            quickselect(n, selected);
+        }
+        // Only the selected prefix is ordered; it is a HUD's worth of symbols, so insertion sort
+        for (int i = 1; i < selected; i++) {
+            int index = order[i];
+            int j = i - 1;
+            while (j >= 0 && scores[order[j]] < scores[index]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+
+        List<ContactTracker.Contact> result = new ArrayList<>(selected);
+        for (int i = 0; i < selected; i++) {
+            result.add(candidates.get(order[i]));
+        }
+        return result;
+    }
+
+    double score(ContactTracker.Contact contact, double selfLat, double selfLon, double heading,
+                 double radiusM, long nowMs) {
+        double score = WEIGHT_DISTANCE * (1.0 - Math.min(1.0, contact.distanceM / radiusM));
+        if (isHostile(contact)) {
+            score += WEIGHT_HOSTILE;
+        }
+        long age = Math.max(0, nowMs - contact.updatedMs);
+        score += WEIGHT_FRESHNESS * Math.pow(0.5, age / FRESHNESS_HALF_LIFE_MS);
+        if (inCone(contact, selfLat, selfLon, heading)) {
+            score += WEIGHT_IN_CONE;
+        }
+        return score;
+    }
+
+    private boolean isHostile(ContactTracker.Contact contact) {
+        if (CotFormatter.isHostile(contact.type)) {
+            return true;
+        }
+        if (tracks == null) {
+            return false;
+        }
+        // A column read; the affiliation store is never touched per candidate
+        int handle = tracks.find(contact.uid);
+        return handle != TrackStore.NONE
+                && tracks.getAffiliation(handle) == AffiliationData.Affiliation.ASSUMED_HOSTILE;
+    }
+
+    private boolean inCone(ContactTracker.Contact contact, double selfLat, double selfLon, double heading) {
+        double north = contact.lat - selfLat;
+        double east = (contact.lon - selfLon) * Math.cos(Math.toRadians(selfLat));
+        if (north == 0 && east == 0) {
+            return true;
+        }
+        double bearing = Math.toDegrees(Math.atan2(east, north));
+        return PositionChangeFilter.headingDelta(bearing, heading) <= coneHalfAngleDeg;
+    }
+
+    /**
+     * Hoare-style partition of order[0..n) until the k highest scores occupy order[0..k)
+     */
+    private void quickselect(int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            double pivot = scores[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (scores[order[i]] > pivot) {
+                    i++;
+                }
+                while (scores[order[j]] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k - 1 <= j) {
+                hi = j;
+            } else if (k - 1 >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
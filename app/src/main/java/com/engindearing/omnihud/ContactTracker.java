@@ -0,0 +1,365 @@
+package com.engindearing.omnihud;
+
+import com.atakmap.android.maps.MapItem;
+import com.atakmap.android.maps.PointMapItem;
+import com.atakmap.coremap.maps.coords.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Live table of map contacts near the wearer, fed by ITEM_ADDED,
+ * ITEM_REMOVED and ITEM_REFRESH events.
+ *
+ * Positions are kept in a {@link SpatialIndex}, updated in place on every
+ * event, so {@link #nearest} only visits grid cells around the wearer and its
+ * cost does not grow with how many items the map holds. Events may arrive on
+ * any thread; queries run on the streaming thread.
+ *
+ * For streaming, {@link #nextDelta} ranks the contacts in range with a
+ * {@link ContactRanker}, keeps the best {@link #getMaxContacts()} as the HUD's
+ * symbol set, and returns only those that changed since the last tick plus
+ * removals for those that dropped out, with a periodic full resync to recover
+ * from lost frames. Changed contacts are sent in priority order until the
+ * per-tick byte budget is used; the rest wait for the next tick.
+ */
+public class ContactTracker {
+
+    public static final double DEFAULT_RADIUS_M = 2000.0;
+    public static final int DEFAULT_MAX_CONTACTS = 20;
+    public static final long DEFAULT_RESYNC_INTERVAL_MS = 10000;
+    public static final int DEFAULT_BYTE_BUDGET = 4096;
+    // Nearest contacts handed to the ranker; bounds ranking work per tick
+    static final int MAX_CANDIDATES = 128;
+
+    /**
+     * Last known state of one tracked item
+     */
+    public static class Contact {
+        public final String uid;
+        public String type;
+        public String callsign;
+        public double lat;
+        public double lon;
+        public double hae;
+        public long updatedMs;
+
+        // Distance from self at the last nearest() query
+        public double distanceM;
+
+        int handle;
+
+        Contact(String uid) {
+            this.uid = uid;
+        }
+
+        Contact copy() {
+            Contact c = new Contact(uid);
+            c.type = type;
+            c.callsign = callsign;
+            c.lat = lat;
+            c.lon = lon;
+            c.hae = hae;
+            c.updatedMs = updatedMs;
+            c.distanceM = distanceM;
+            return c;
+        }
+    }
+
+    /**
+     * Decides whether a contact may be streamed at all, before ranking
+     */
+    public interface Filter {
+        boolean accept(Contact contact);
+    }
+
+    private final Map<String, Contact> contacts = new HashMap<>();
+    private final SpatialIndex index = new SpatialIndex();
+    private Contact[] byHandle = new Contact[1024];
+
+    private volatile double radiusM = DEFAULT_RADIUS_M;
+    private volatile int maxContacts = DEFAULT_MAX_CONTACTS;
+    private volatile String selfUid;
+    private volatile int lastNearCount;
+    private volatile long resyncIntervalMs = DEFAULT_RESYNC_INTERVAL_MS;
+    private volatile int byteBudget = DEFAULT_BYTE_BUDGET;
+    private ContactRanker ranker;
+    private Filter filter;
+    private final SpatialIndex.Accept acceptFiltered = id -> filter.accept(byHandle[id]);
+
+    // Contacts refreshed since the last delta, and contacts the HUD currently holds
+    private final Set<String> dirty = new HashSet<>();
+    private Set<String> streamed = new HashSet<>();
+    private long lastResyncMs;
+
+    private int[] resultIds = new int[DEFAULT_MAX_CONTACTS];
+    private double[] resultDistances = new double[DEFAULT_MAX_CONTACTS];
+
+    public void setRadius(double meters) {
+        this.radiusM = meters;
+    }
+
+    public double getRadius() {
+        return radiusM;
+    }
+
+    public void setMaxContacts(int k) {
+        this.maxContacts = k;
+    }
+
+    public int getMaxContacts() {
+        return maxContacts;
+    }
+
+    public void setResyncInterval(long millis) {
+        this.resyncIntervalMs = millis;
+    }
+
+    /**
+     * Approximate encoded bytes of changed contacts sent per tick
+     */
+    public void setByteBudget(int bytes) {
+        this.byteBudget = bytes;
+    }
+
+    /**
+     * Ranking used to choose the HUD's symbols; null keeps the nearest
+     */
+    public synchronized void setRanker(ContactRanker ranker) {
+        this.ranker = ranker;
+    }
+
+    /**
+     * Contacts the filter rejects are never selected; null streams all of them.
+     * It runs during the spatial search, so the nearest accepted contacts
+     * are ranked however many rejected ones are closer.
+     */
+    public synchronized void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * UID of the wearer's own marker, which is never reported as a contact
+     */
+    public void setSelfUid(String uid) {
+        this.selfUid = uid;
+        if (uid != null) {
+            remove(uid);
+        }
+    }
+
+    /**
+     * Only atoms (friendly, hostile, neutral, unknown units) are contacts;
+     * waypoints, shapes and other drawings are ignored
+     */
+    public static boolean isTrackable(MapItem item) {
+        return item instanceof PointMapItem && isTrackableType(item.getType());
+    }
+
+    /**
+     * Same test on a CoT type captured from an event
+     */
+    public static boolean isTrackableType(String type) {
+        return type != null && type.startsWith("a-");
+    }
+
+    /**
+     * Add or update a contact from an ITEM_ADDED or ITEM_REFRESH event
+     */
+    public void update(PointMapItem item) {
+        GeoPoint point = item.getPoint();
+        if (point == null) {
+            return;
+        }
+        update(item.getUID(), item.getType(), item.getTitle(),
+                point.getLatitude(), point.getLongitude(), point.getAltitude(), System.currentTimeMillis());
+    }
+
+    /**
+     * Add or update a contact from fields captured when its event arrived
+     * @param timeMs Wall-clock time of the event
+     */
+    public synchronized void update(String uid, String type, String callsign,
+                                    double lat, double lon, double hae, long timeMs) {
+        if (uid == null || uid.equals(selfUid)) {
+            return;
+        }
+
+        Contact contact = contacts.get(uid);
+        if (contact == null) {
+            contact = new Contact(uid);
+            contact.handle = index.insert(lat, lon);
+            if (contact.handle >= byHandle.length) {
+                byHandle = Arrays.copyOf(byHandle, Math.max(contact.handle + 1, byHandle.length * 2));
+            }
+            byHandle[contact.handle] = contact;
+            contacts.put(uid, contact);
+        } else {
+            index.update(contact.handle, lat, lon);
+        }
+        contact.type = type;
+        contact.callsign = callsign;
+        contact.lat = lat;
+        contact.lon = lon;
+        contact.hae = hae;
+        contact.updatedMs = timeMs;
+        dirty.add(uid);
+    }
+
+    /**
+     * Forget a contact after ITEM_REMOVED
+     */
+    public synchronized void remove(String uid) {
+        Contact contact = contacts.remove(uid);
+        if (contact != null) {
+            index.remove(contact.handle);
+            byHandle[contact.handle] = null;
+            dirty.remove(uid);
+        }
+    }
+
+    public synchronized void clear() {
+        contacts.clear();
+        index.clear();
+        Arrays.fill(byHandle, null);
+        dirty.clear();
+        // Keep what the HUD holds, so contacts missing after a reseed still get deletes
+        lastResyncMs = 0;
+    }
+
+    /**
+     * Forget what the HUD holds so the next delta is a full resync.
+     * Call when streaming starts or contacts stop being streamed.
+     * @return UIDs the HUD was holding, which it needs deletes for if streaming stops
+     */
+    public synchronized List<String> resetStream() {
+        List<String> held = new ArrayList<>(streamed);
+        streamed = new HashSet<>();
+        lastResyncMs = 0;
+        return held;
+    }
+
+    /**
+     * Contacts to send this tick: selected contacts that entered the set or
+     * were refreshed since the last call, and removals for contacts the HUD
+     * holds that left the radius, lost their slot to a higher-ranked contact
+     * or were deleted. Every resync interval all selected contacts are sent.
+     * @param heading Wearer heading, for the ranker's view cone
+     * @param nowMs Monotonic time, for the resync interval
+     */
+    public synchronized Delta nextDelta(double selfLat, double selfLon, double heading, long nowMs) {
+        List<Contact> candidates = nearest(selfLat, selfLon, MAX_CANDIDATES,
+                filter != null ? acceptFiltered : null);
+        List<Contact> current;
+        if (ranker != null) {
+            current = ranker.select(candidates, selfLat, selfLon, heading, radiusM,
+                    System.currentTimeMillis(), maxContacts);
+        } else {
+            current = candidates.subList(0, Math.min(maxContacts, candidates.size()));
+        }
+
+        Delta delta = new Delta();
+        delta.full = nowMs - lastResyncMs >= resyncIntervalMs;
+        if (delta.full) {
+            lastResyncMs = nowMs;
+        }
+
+        // Removals go first and are never deferred; they free HUD symbols
+        Set<String> selected = new HashSet<>(current.size() * 2);
+        for (Contact contact : current) {
+            selected.add(contact.uid);
+        }
+        for (String uid : streamed) {
+            if (!selected.contains(uid)) {
+                delta.removed.add(uid);
+                delta.bytes += CotFormatter.estimateDeleteCotLength(uid);
+            }
+        }
+
+        Set<String> deferred = new HashSet<>();
+        Set<String> nowStreamed = new HashSet<>(current.size() * 2);
+        int budget = byteBudget;
+        for (Contact contact : current) {
+            boolean known = streamed.contains(contact.uid);
+            if (!delta.full && known && !dirty.contains(contact.uid)) {
+                nowStreamed.add(contact.uid);
+                continue;
+            }
+            int size = CotFormatter.estimateContactCotLength(contact);
+            if (delta.bytes + size > budget && !delta.changed.isEmpty()) {
+                // Out of budget: an update waits as dirty, a new contact is offered again next tick
+                delta.deferred++;
+                if (known) {
+                    nowStreamed.add(contact.uid);
+                    deferred.add(contact.uid);
+                }
+                continue;
+            }
+            delta.changed.add(contact);
+            delta.bytes += size;
+            nowStreamed.add(contact.uid);
+        }
+
+        streamed = nowStreamed;
+        dirty.clear();
+        dirty.addAll(deferred);
+        delta.inView = current.size();
+        return delta;
+    }
+
+    /**
+     * The K nearest contacts inside the radius, closest first.
+     * Returns copies so callers can encode them while events keep arriving.
+     */
+    public synchronized List<Contact> nearest(double selfLat, double selfLon) {
+        return nearest(selfLat, selfLon, maxContacts, null);
+    }
+
+    private List<Contact> nearest(double selfLat, double selfLon, int k, SpatialIndex.Accept accept) {
+        if (resultIds.length < k) {
+            resultIds = new int[k];
+            resultDistances = new double[k];
+        }
+        int count = index.nearest(selfLat, selfLon, k, radiusM, resultIds, resultDistances, accept);
+        List<Contact> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Contact contact = byHandle[resultIds[i]];
+            contact.distanceM = resultDistances[i];
+            result.add(contact.copy());
+        }
+        lastNearCount = count;
+        return result;
+    }
+
+    public synchronized int getTrackedCount() {
+        return contacts.size();
+    }
+
+    /**
+     * Contacts returned by the last {@link #nearest} query
+     */
+    public int getNearCount() {
+        return lastNearCount;
+    }
+
+    /**
+     * Contact changes to stream for one tick
+     */
+    public static class Delta {
+        public final List<Contact> changed = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+        public int inView;
+        public int deferred;
+        public int bytes;
+        public boolean full;
+
+        public boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+}
@@ -11,6 +11,7 @@ import com.atakmap.coremap.cot.event.CotEvent;
 /**
  * CoT listener that monitors incoming CoT messages for affiliation information
  * Implements CommsLogger to hook into ATAK's CoT processing pipeline
+ * Also passes each event's stale time on, since map item events do not carry it
  */
 public class CotAffiliationListener implements CommsLogger {
     private static final String TAG = "CotAffiliationListener";
@@ -19,6 +20,14 @@ public class CotAffiliationListener implements CommsLogger {
     private final Context context;
     private final AffiliationManager affiliationManager;
     private final String localCallsign;
+    private volatile StaleListener staleListener;
+
+    /**
+     * Receives the stale time of every incoming CoT event, on the comms thread
+     */
+    public interface StaleListener {
+        void onCotStale(String uid, String type, long staleMs);
+    }
 
     public CotAffiliationListener(Context context) {
         this.context = context;
@@ -35,6 +44,10 @@ public class CotAffiliationListener implements CommsLogger {
         Log.d(TAG, "CotAffiliationListener initialized with callsign: " + localCallsign);
     }
 
+    public void setStaleListener(StaleListener listener) {
+        this.staleListener = listener;
+    }
+
     @Override
     public void logReceive(CotEvent event, String rxid, String server) {
         if (event == null) {
@@ -47,6 +60,11 @@ public class CotAffiliationListener implements CommsLogger {
                 return;
             }
 
+            StaleListener listener = staleListener;
+            if (listener != null && event.getStale() != null) {
+                listener.onCotStale(uid, event.getType(), event.getStale().getMilliseconds());
+            }
+
             // Check if the CoT event contains affiliation detail
             CotDetail detail = event.getDetail();
             if (detail != null) {
@@ -102,7 +120,8 @@ public class CotAffiliationListener implements CommsLogger {
 
             // Also check if we have existing affiliation data for this UID
             // This helps maintain affiliation even when the CoT doesn't include the detail
-            if (!affiliationManager.hasAffiliation(uid)) {
+            AffiliationData storedData = affiliationManager.getAffiliation(uid);
+            if (storedData == null) {
                 // Create default UNKNOWN affiliation for new CoT items
                 AffiliationData defaultData = new AffiliationData(
                     uid,
@@ -115,10 +134,9 @@ public class CotAffiliationListener implements CommsLogger {
                 Log.d(TAG, "Created default UNKNOWN affiliation for new CoT: " + uid);
             } else {
                 // Update server connection for existing affiliation
-                AffiliationData existingData = affiliationManager.getAffiliation(uid);
-                if (existingData != null && !server.equals(existingData.getServerConnection())) {
-                    existingData.setServerConnection(server);
-                    affiliationManager.setAffiliation(existingData);
+                if (!server.equals(storedData.getServerConnection())) {
+                    storedData.setServerConnection(server);
+                    affiliationManager.setAffiliation(storedData);
                 }
             }
 
@@ -7,6 +7,11 @@ import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 
 import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.UUID;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -18,6 +23,21 @@ public class CotFormatter {
 
     private static final String TAG = CotFormatter.class.getSimpleName();
 
+    // CoT type for geofence breach alarms
+    public static final String TYPE_GEOFENCE_ALERT = "b-a-g";
+    // CoT type for route waypoints
+    public static final String TYPE_WAYPOINT = "b-m-p-w";
+    // CoT type telling the receiver to delete the linked item
+    public static final String TYPE_DELETE = "t-x-d-d";
+
+    private static final long POSITION_STALE_MS = 3600000; // 1 hour
+    private static final long ALERT_STALE_MS = 300000;     // 5 minutes
+    private static final long CONTACT_STALE_MS = 60000;    // 1 minute
+
+    // Fixed template bytes of contact and delete events, timestamps included
+    private static final int CONTACT_COT_OVERHEAD = 297;
+    private static final int DELETE_COT_OVERHEAD = 363;
+
     /**
      * Data extracted from a CoT message
      */
@@ -191,6 +211,168 @@ public class CotFormatter {
         return sb.toString();
     }
 
+    /**
+     * Build the CoT XML position event sent to the HUD for the wearer's own position
+     */
+    public static String buildPositionCot(double lat, double lon, double alt, double heading, String callsign) {
+        return buildPositionCot(lat, lon, alt, heading, 0.0, heading, callsign);
+    }
+
+    /**
+     * Build the self position event with a velocity vector so the HUD can
+     * dead-reckon between frames (see {@link DeadReckoningModel})
+     * @param speed Speed over ground in m/s
+     * @param course Course over ground in degrees true
+     */
+    public static String buildPositionCot(double lat, double lon, double alt, double heading,
+                                          double speed, double course, String callsign) {
+        long now = System.currentTimeMillis();
+        String time = formatCotTime(now);
+        String stale = formatCotTime(now + POSITION_STALE_MS);
+
+        String uid = UUID.randomUUID().toString();
+
+        return "<?xml version='1.0'?>\n" +
+               "<event version='2.0' uid='" + uid + "' type='a-u-G' " +
+               "time='" + time + "' start='" + time + "' stale='" + stale + "' " +
+               "how='h-g-i-g-o' access='Undefined'>\n" +
+               "<point lat='" + lat + "' lon='" + lon + "' hae='" + alt + "' " +
+               "ce='9999999.0' le='9999999.0' />\n" +
+               "<detail>\n" +
+               "<contact callsign='" + (callsign != null ? callsign : "OmniHUD") + "'/>\n" +
+               "<track course='" + String.format(Locale.US, "%.1f", course) + "' " +
+               "speed='" + String.format(Locale.US, "%.2f", speed) + "'/>\n" +
+               "<status readiness='true'/>\n" +
+               "</detail>\n" +
+               "</event>";
+    }
+
+    /**
+     * Build a CoT event for a nearby contact, keeping the contact's own UID
+     * and type so the HUD can update it in place
+     */
+    public static String buildContactCot(ContactTracker.Contact contact) {
+        long now = System.currentTimeMillis();
+        String time = formatCotTime(now);
+        String stale = formatCotTime(now + CONTACT_STALE_MS);
+        String type = contact.type != null ? contact.type : "a-u-G";
+
+        return "<?xml version='1.0'?>\n" +
+               "<event version='2.0' uid='" + escapeXml(contact.uid) + "' type='" + escapeXml(type) + "' " +
+               "time='" + time + "' start='" + time + "' stale='" + stale + "' " +
+               "how='m-g' access='Undefined'>\n" +
+               "<point lat='" + contact.lat + "' lon='" + contact.lon + "' hae='" + contact.hae + "' " +
+               "ce='9999999.0' le='9999999.0' />\n" +
+               "<detail>\n" +
+               "<contact callsign='" + escapeXml(contact.callsign != null ? contact.callsign : contact.uid) + "'/>\n" +
+               "</detail>\n" +
+               "</event>";
+    }
+
+    /**
+     * Build a CoT waypoint event carrying the wearer's range, bearing and ETA to it
+     */
+    public static String buildWaypointCot(WaypointStreamer.Cue cue) {
+        long now = System.currentTimeMillis();
+        String time = formatCotTime(now);
+        String stale = formatCotTime(now + CONTACT_STALE_MS);
+
+        return "<?xml version='1.0'?>\n" +
+               "<event version='2.0' uid='" + escapeXml(cue.uid) + "' type='" + TYPE_WAYPOINT + "' " +
+               "time='" + time + "' start='" + time + "' stale='" + stale + "' " +
+               "how='h-g-i-g-o' access='Undefined'>\n" +
+               "<point lat='" + cue.lat + "' lon='" + cue.lon + "' hae='" + cue.hae + "' " +
+               "ce='9999999.0' le='9999999.0' />\n" +
+               "<detail>\n" +
+               "<contact callsign='" + escapeXml(cue.name) + "'/>\n" +
+               "<navcue order='" + cue.order + "' range='" + cue.rangeM + "' " +
+               "bearing='" + cue.bearingDeg + "' eta='" + cue.etaS + "'/>\n" +
+               "</detail>\n" +
+               "</event>";
+    }
+
+    /**
+     * Encoded length of {@link #buildContactCot} without building it, for budgeting.
+     * Exact except for XML escaping and number formatting, which vary by a few bytes.
+     */
+    public static int estimateContactCotLength(ContactTracker.Contact contact) {
+        return CONTACT_COT_OVERHEAD
+                + (contact.uid != null ? contact.uid.length() : 0)
+                + (contact.type != null ? contact.type.length() : 5)
+                + (contact.callsign != null ? contact.callsign.length() : 0)
+                + 3 * 12;
+    }
+
+    public static int estimateDeleteCotLength(String uid) {
+        return DELETE_COT_OVERHEAD + 2 * uid.length();
+    }
+
+    /**
+     * Build a CoT delete event so the HUD drops a contact it is displaying
+     * @param uid UID of the contact to remove
+     */
+    public static String buildDeleteCot(String uid) {
+        long now = System.currentTimeMillis();
+        String time = formatCotTime(now);
+        String stale = formatCotTime(now + CONTACT_STALE_MS);
+
+        return "<?xml version='1.0'?>\n" +
+               "<event version='2.0' uid='" + escapeXml(uid) + ".delete' type='" + TYPE_DELETE + "' " +
+               "time='" + time + "' start='" + time + "' stale='" + stale + "' " +
+               "how='h-g-i-g-o' access='Undefined'>\n" +
+               "<point lat='0.0' lon='0.0' hae='0.0' ce='9999999.0' le='9999999.0' />\n" +
+               "<detail>\n" +
+               "<link uid='" + escapeXml(uid) + "' relation='none' type='none'/>\n" +
+               "<__forcedelete/>\n" +
+               "</detail>\n" +
+               "</event>";
+    }
+
+    /**
+     * Build a CoT alarm event for a geofence breach
+     * @param fenceUid UID of the geofence shape, used as the alert UID so repeats replace each other
+     * @param message Text shown on the HUD
+     */
+    public static String buildAlertCot(String fenceUid, String message, double lat, double lon, double hae) {
+        long now = System.currentTimeMillis();
+        String time = formatCotTime(now);
+        String stale = formatCotTime(now + ALERT_STALE_MS);
+
+        return "<?xml version='1.0'?>\n" +
+               "<event version='2.0' uid='" + escapeXml(fenceUid) + ".alert' type='" + TYPE_GEOFENCE_ALERT + "' " +
+               "time='" + time + "' start='" + time + "' stale='" + stale + "' " +
+               "how='h-e' access='Undefined'>\n" +
+               "<point lat='" + lat + "' lon='" + lon + "' hae='" + hae + "' " +
+               "ce='9999999.0' le='9999999.0' />\n" +
+               "<detail>\n" +
+               "<remarks>" + escapeXml(message) + "</remarks>\n" +
+               "</detail>\n" +
+               "</event>";
+    }
+
+    /**
+     * Format epoch millis as a CoT Zulu timestamp
+     */
+    public static String formatCotTime(long timeMs) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat.format(new Date(timeMs));
+    }
+
+    /**
+     * Escape text for use in an XML attribute or element
+     */
+    public static String escapeXml(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&", "&amp;")
+                   .replace("<", "&lt;")
+                   .replace(">", "&gt;")
+                   .replace("'", "&apos;")
+                   .replace("\"", "&quot;");
+    }
+
     /**
      * Safe double parsing with default value
      */
@@ -0,0 +1,98 @@
+package com.engindearing.omnihud;
+
+import android.hardware.usb.UsbDevice;
+
+/**
+ * Driver for Silicon Labs CP210x USB-serial bridges.
+ * The chip must be enabled with IFC_ENABLE before it accepts any other
+ * configuration; the baud rate is then set directly in bits per second.
+ */
+public class Cp210xSerialDriver extends UsbSerialDriver {
+
+    private static final int IFC_ENABLE = 0x00;
+    private static final int SET_LINE_CTL = 0x03;
+    private static final int SET_MHS = 0x07;
+    private static final int SET_FLOW = 0x13;
+    private static final int SET_BAUDRATE = 0x1E;
+
+    private static final int UART_ENABLE = 0x0001;
+
+    // Bits 8-15: data bits (8), bits 4-7: parity (none), bits 0-3: stop bits (1)
+    private static final int LINE_CTL_8N1 = 0x0800;
+
+    // Mask bits in the high byte enable the DTR/RTS state bits in the low byte
+    private static final int MHS_DTR_HIGH = 0x0101;
+    private static final int MHS_DTR_RTS_HIGH = 0x0303;
+
+    // SERIAL_FLOW_CTL fields
+    private static final int CONTROL_DTR_ACTIVE = 0x01;
+    private static final int CONTROL_CTS_HANDSHAKE = 0x08;
+    private static final int FLOW_RTS_ACTIVE = 0x40;
+    private static final int FLOW_RTS_HANDSHAKE = 0x80;
+
+    // CP2102/CP2104 top out at 921600; the CP2102N reaches 3 Mbaud but shares the same PID
+    private static final int MAX_BAUD_RATE = 921600;
+
+    public Cp210xSerialDriver(UsbDevice device) {
+        super(device);
+    }
+
+    @Override
+    public String getChipName() {
+        return "CP210x";
+    }
+
+    @Override
+    public int getMaxBaudRate() {
+        return MAX_BAUD_RATE;
+    }
+
+    @Override
+    public boolean supportsFlowControl() {
+        return true;
+    }
+
+    @Override
+    protected boolean initChip() {
+        return controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, IFC_ENABLE, UART_ENABLE, dataInterface.getId());
+    }
+
+    @Override
+    protected boolean applyLineCoding(int baudRate) {
+        byte[] rate = new byte[4];
+        putIntLE(rate, 0, baudRate);
+        return controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, SET_BAUDRATE, 0, dataInterface.getId(), rate)
+                && controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, SET_LINE_CTL, LINE_CTL_8N1, dataInterface.getId());
+    }
+
+    @Override
+    protected boolean applyFlowControl(boolean enabled) {
+        byte[] flow = new byte[16];
+        int controlHandshake = CONTROL_DTR_ACTIVE;
+        int flowReplace = FLOW_RTS_ACTIVE;
+        if (enabled) {
+            controlHandshake |= CONTROL_CTS_HANDSHAKE;
+            flowReplace = FLOW_RTS_HANDSHAKE;
+        }
+        putIntLE(flow, 0, controlHandshake);
+        putIntLE(flow, 4, flowReplace);
+        // XON/XOFF limits (bytes 8-15) are unused for hardware handshaking
+
+        if (!controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, SET_FLOW, 0, dataInterface.getId(), flow)) {
+            return false;
+        }
+        if (enabled) {
+            // RTS is driven by the handshake logic; only DTR is set manually
+            return controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, SET_MHS, MHS_DTR_HIGH, dataInterface.getId());
+        }
+        return controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, SET_MHS, MHS_DTR_RTS_HIGH, dataInterface.getId());
+    }
+
+    @Override
+    public void close() {
+        if (connection != null && dataInterface != null) {
+            controlOut(REQTYPE_HOST_TO_INTERFACE_VENDOR, IFC_ENABLE, 0, dataInterface.getId());
+        }
+        super.close();
+    }
+}
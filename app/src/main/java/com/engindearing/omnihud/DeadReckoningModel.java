@@ -0,0 +1,90 @@
+package com.engindearing.omnihud;
+
+/**
+ * Reference extrapolation model shared by the plugin and the HUD.
+ *
+ * Given the last received fix with its speed over ground and course, the HUD
+ * predicts the current position as a constant-velocity straight line on a
+ * local flat-earth tangent plane. The plugin runs the same model against the
+ * last frame it sent and only sends again once the prediction has drifted
+ * too far from the real position, so both sides stay within that threshold
+ * without streaming every tick.
+ *
+ * HUD firmware must implement {@link #predict} exactly as written here.
+ */
+public class DeadReckoningModel {
+
+    static final double EARTH_RADIUS_M = 6371008.8;
+
+    /**
+     * Never extrapolate further than this; a stale fix is shown where it was
+     */
+    public static final double MAX_EXTRAPOLATION_S = 10.0;
+
+    private boolean hasReference;
+    private double refLat;
+    private double refLon;
+    private double refSpeed;
+    private double refCourse;
+    private long refTimeMs;
+
+    /**
+     * Set the fix that predictions are made from (the last frame sent)
+     * @param speed Speed over ground in m/s
+     * @param course Course over ground in degrees true
+     */
+    public void setReference(double lat, double lon, double speed, double course, long timeMs) {
+        hasReference = true;
+        refLat = lat;
+        refLon = lon;
+        refSpeed = speed;
+        refCourse = course;
+        refTimeMs = timeMs;
+    }
+
+    public boolean hasReference() {
+        return hasReference;
+    }
+
+    public void clear() {
+        hasReference = false;
+    }
+
+    /**
+     * Distance in metres between the predicted position at nowMs and the actual fix
+     */
+    public double divergenceMeters(double lat, double lon, long nowMs) {
+        double[] predicted = predict(refLat, refLon, refSpeed, refCourse, (nowMs - refTimeMs) / 1000.0);
+        return distanceMeters(predicted[0], predicted[1], lat, lon);
+    }
+
+    /**
+     * Constant-velocity extrapolation of a fix
+     * @param speed m/s
+     * @param course degrees true
+     * @param dtSeconds time since the fix, clamped to [0, MAX_EXTRAPOLATION_S]
+     * @return {lat, lon} in degrees
+     */
+    public static double[] predict(double lat, double lon, double speed, double course, double dtSeconds) {
+        double dt = Math.max(0.0, Math.min(MAX_EXTRAPOLATION_S, dtSeconds));
+        double dist = speed * dt;
+        if (dist <= 0.0) {
+            return new double[] { lat, lon };
+        }
+        double courseRad = Math.toRadians(course);
+        double north = dist * Math.cos(courseRad);
+        double east = dist * Math.sin(courseRad);
+        double dLat = Math.toDegrees(north / EARTH_RADIUS_M);
+        double dLon = Math.toDegrees(east / (EARTH_RADIUS_M * Math.cos(Math.toRadians(lat))));
+        return new double[] { lat + dLat, lon + dLon };
+    }
+
+    /**
+     * Equirectangular distance - accurate to well under a metre at HUD ranges
+     */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        return Math.sqrt(dLat * dLat + dLon * dLon) * EARTH_RADIUS_M;
+    }
+}
@@ -1,6 +1,5 @@
 package com.engindearing.omnihud;
 
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
@@ -10,11 +9,6 @@ import android.hardware.usb.UsbManager;
 import com.atakmap.coremap.log.Log;
 
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.UUID;
 
 /**
  * ECOTI HUD device implementation.
@@ -44,7 +38,13 @@ public class ECOTIDevice implements HUDDevice {
     private UsbDevice usbDevice;
     private UsbDeviceConnection connection;
     private UsbEndpoint endpointOut;
+    private UsbSerialDriver serialDriver;
     private String lastError;
+    private TransportMetrics metrics = new TransportMetrics();
+
+    // Serial line settings applied on connect
+    private int baudRate = UsbSerialDriver.DEFAULT_BAUD_RATE;
+    private boolean flowControl = false;
 
     private static final int TIMEOUT_MS = 1000;
 
@@ -52,6 +52,31 @@ public class ECOTIDevice implements HUDDevice {
         this.usbManager = usbManager;
     }
 
+    /**
+     * Set the serial baud rate used on the next connect.
+     * Rates above the adapter's limit are clamped by the driver.
+     */
+    public void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    public int getBaudRate() {
+        return serialDriver != null ? serialDriver.getBaudRate() : baudRate;
+    }
+
+    /**
+     * Enable RTS/CTS hardware flow control on the next connect
+     */
+    public void setFlowControl(boolean enabled) {
+        this.flowControl = enabled;
+    }
+
+    @Override
+    public void setSerialParameters(int baudRate, boolean flowControl) {
+        setBaudRate(baudRate);
+        setFlowControl(flowControl);
+    }
+
     @Override
     public String getDeviceName() {
         return "ECOTI";
@@ -174,51 +199,29 @@ public class ECOTIDevice implements HUDDevice {
             }
             Log.d(TAG, "✓ USB device opened successfully");
 
-            // Find the output endpoint
-            if (device.getInterfaceCount() > 0) {
-                UsbInterface usbInterface = device.getInterface(0);
-                Log.d(TAG, "Using interface 0: Class=" + usbInterface.getInterfaceClass() +
-                           " Endpoints=" + usbInterface.getEndpointCount());
-
-                if (!connection.claimInterface(usbInterface, true)) {
-                    lastError = "Failed to claim USB interface";
-                    Log.e(TAG, "✗ CONNECTION FAILED: " + lastError);
-                    Log.e(TAG, "Interface may be in use by kernel driver or another app");
-                    connection.close();
-                    connection = null;
-                    return false;
-                }
-                Log.d(TAG, "✓ USB interface claimed");
-
-                // Find OUT endpoint
-                Log.d(TAG, "Searching for output endpoint...");
-                for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
-                    UsbEndpoint endpoint = usbInterface.getEndpoint(i);
-                    Log.d(TAG, "  Endpoint " + i + ": " +
-                               "Direction=" + (endpoint.getDirection() == UsbConstants.USB_DIR_OUT ? "OUT" : "IN") +
-                               " Type=" + endpoint.getType() +
-                               " MaxPacketSize=" + endpoint.getMaxPacketSize());
-
-                    if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
-                        endpointOut = endpoint;
-                        Log.d(TAG, "✓ Found OUT endpoint at index " + i);
-                        break;
-                    }
-                }
-
-                if (endpointOut == null) {
-                    lastError = "No OUT endpoint found on USB device";
-                    Log.e(TAG, "✗ CONNECTION FAILED: " + lastError);
-                    Log.e(TAG, "Device has " + usbInterface.getEndpointCount() + " endpoints but none are OUT");
-                    disconnect();
-                    return false;
-                }
-            } else {
-                lastError = "USB device has no interfaces";
+            // Open the port through the chipset driver so the line coding is actually programmed
+            serialDriver = UsbSerialDriver.forDevice(device);
+            Log.d(TAG, "Using " + serialDriver.getChipName() + " serial driver");
+
+            if (!serialDriver.open(connection)) {
+                lastError = serialDriver.getLastError();
                 Log.e(TAG, "✗ CONNECTION FAILED: " + lastError);
                 disconnect();
                 return false;
             }
+            Log.d(TAG, "✓ Serial port opened");
+
+            if (!serialDriver.setParameters(baudRate, flowControl)) {
+                lastError = serialDriver.getLastError();
+                Log.e(TAG, "✗ CONNECTION FAILED: " + lastError);
+                disconnect();
+                return false;
+            }
+            Log.d(TAG, "✓ Line configured: " + serialDriver.getBaudRate() + " baud, flow control " +
+                       (serialDriver.isFlowControlEnabled() ? "RTS/CTS" : "off"));
+
+            endpointOut = serialDriver.getWriteEndpoint();
+            metrics = new TransportMetrics();
 
             Log.i(TAG, "========================================");
             Log.i(TAG, "✓ SUCCESSFULLY CONNECTED TO ECOTI");
@@ -239,6 +242,10 @@ public class ECOTIDevice implements HUDDevice {
 
     @Override
     public void disconnect() {
+        if (serialDriver != null) {
+            serialDriver.close();
+            serialDriver = null;
+        }
         if (connection != null) {
             connection.close();
             connection = null;
@@ -250,7 +257,7 @@ public class ECOTIDevice implements HUDDevice {
 
     @Override
     public boolean isConnected() {
-        return connection != null && endpointOut != null;
+        return connection != null && serialDriver != null && endpointOut != null;
     }
 
     @Override
@@ -267,7 +274,9 @@ public class ECOTIDevice implements HUDDevice {
             Log.d(TAG, "Sending CoT data to ECOTI: " + data.length + " bytes");
             Log.v(TAG, "CoT XML preview: " + cotXml.substring(0, Math.min(200, cotXml.length())) + "...");
 
-            int bytesTransferred = connection.bulkTransfer(endpointOut, data, data.length, TIMEOUT_MS);
+            long startNanos = System.nanoTime();
+            int bytesTransferred = serialDriver.write(data, data.length, TIMEOUT_MS);
+            metrics.recordTransfer(data.length, bytesTransferred, System.nanoTime() - startNanos, TIMEOUT_MS);
 
             if (bytesTransferred < 0) {
                 lastError = "Failed to send data to device (bulkTransfer returned " + bytesTransferred + ")";
@@ -290,10 +299,16 @@ public class ECOTIDevice implements HUDDevice {
         }
     }
 
+    @Override
+    public int readData(byte[] buffer, int timeoutMs) {
+        UsbSerialDriver driver = serialDriver;
+        return driver != null ? driver.read(buffer, timeoutMs) : -1;
+    }
+
     @Override
     public boolean sendPosition(double lat, double lon, double alt, double heading, String callsign) {
         // Generate CoT XML for position
-        String cotXml = generatePositionCot(lat, lon, alt, heading, callsign);
+        String cotXml = CotFormatter.buildPositionCot(lat, lon, alt, heading, callsign);
         return sendCotData(cotXml);
     }
 
@@ -302,37 +317,17 @@ public class ECOTIDevice implements HUDDevice {
         return lastError;
     }
 
+    @Override
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public String getStatusString() {
         if (isConnected()) {
-            return "Connected to " + (usbDevice != null ? usbDevice.getDeviceName() : "ECOTI");
+            return "Connected to " + (usbDevice != null ? usbDevice.getDeviceName() : "ECOTI") +
+                   " (" + serialDriver.getChipName() + ", " + serialDriver.getBaudRate() + " baud)";
         }
         return "Not connected";
     }
-
-    /**
-     * Generate CoT XML for position data in ECOTI format
-     */
-    private String generatePositionCot(double lat, double lon, double alt, double heading, String callsign) {
-        // Generate timestamp in Zulu time
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        String time = dateFormat.format(new Date());
-        String stale = dateFormat.format(new Date(System.currentTimeMillis() + 3600000)); // 1 hour stale
-
-        String uid = UUID.randomUUID().toString();
-
-        return "<?xml version='1.0'?>\n" +
-               "<event version='2.0' uid='" + uid + "' type='a-u-G' " +
-               "time='" + time + "' start='" + time + "' stale='" + stale + "' " +
-               "how='h-g-i-g-o' access='Undefined'>\n" +
-               "<point lat='" + lat + "' lon='" + lon + "' hae='" + alt + "' " +
-               "ce='9999999.0' le='9999999.0' />\n" +
-               "<detail>\n" +
-               "<contact callsign='" + (callsign != null ? callsign : "OmniHUD") + "'/>\n" +
-               "<status readiness='true'/>\n" +
-               "</detail>\n" +
-               "</event>";
-    }
 }
@@ -0,0 +1,281 @@
+package com.engindearing.omnihud;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * End-to-end latency from position fix to HUD display.
+ *
+ * A device that supports it announces so by sending
+ * <pre>$OHACK,0*&lt;checksum&gt;\r\n</pre>
+ * after connecting. From then on every transferred frame is followed on the
+ * wire by a sequence sentence
+ * <pre>$OHSEQ,&lt;seq&gt;*&lt;checksum&gt;\r\n</pre>
+ * which the device answers once the frame is on the glass with
+ * <pre>$OHACK,&lt;seq&gt;*&lt;checksum&gt;\r\n</pre>
+ * Sequence numbers start at 1.
+ * Transferred frames wait in a fixed ring indexed by sequence number until
+ * their ack arrives; an ack that finds its slot reused counts as unmatched.
+ * Acked frames feed per-stage histograms and a bounded log of recent frames
+ * for export.
+ */
+public class FrameLatencyTracker {
+
+    static final String SEQ_SENTENCE = "OHSEQ";
+    static final String ACK_SENTENCE = "OHACK";
+
+    // Power of two; at 10 Hz per lane this covers tens of seconds of unacked frames
+    private static final int IN_FLIGHT_SLOTS = 1024;
+    private static final int LOG_CAPACITY = 512;
+
+    /**
+     * Stage durations for one acknowledged frame, in microseconds (-1 when unknown)
+     */
+    public static class Record {
+        public long sequence;
+        public SendPriority priority;
+        public long fixToEncodeUs;
+        public long queueUs;
+        public long transferUs;
+        public long displayUs;
+        public long fixToDisplayUs;
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("seq", sequence);
+            json.put("lane", priority.name());
+            json.put("fixToEncodeUs", fixToEncodeUs);
+            json.put("queueUs", queueUs);
+            json.put("transferUs", transferUs);
+            json.put("displayUs", displayUs);
+            json.put("fixToDisplayUs", fixToDisplayUs);
+            return json;
+        }
+    }
+
+    private final HUDFrame[] inFlight = new HUDFrame[IN_FLIGHT_SLOTS];
+    private final Record[] log = new Record[LOG_CAPACITY];
+    private int logNext;
+    private int logSize;
+    private long transferred;
+    private long acked;
+    private long unmatched;
+
+    private final LatencyHistogram fixToDisplay = new LatencyHistogram();
+    private final LatencyHistogram enqueueToDisplay = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram transfer = new LatencyHistogram();
+    private final LatencyHistogram display = new LatencyHistogram();
+
+    /**
+     * Remember a frame that was written successfully, until its ack arrives
+     */
+    public synchronized void onTransferred(HUDFrame frame) {
+        inFlight[(int) (frame.getSequence() & (IN_FLIGHT_SLOTS - 1))] = frame;
+        transferred++;
+    }
+
+    /**
+     * Close out the frame with this sequence number
+     * @return false if the frame is unknown or its slot was already reused
+     */
+    public boolean onAck(long sequence, long ackNanos) {
+        HUDFrame frame;
+        synchronized (this) {
+            int slot = (int) (sequence & (IN_FLIGHT_SLOTS - 1));
+            frame = inFlight[slot];
+            if (frame == null || frame.getSequence() != sequence) {
+                unmatched++;
+                return false;
+            }
+            inFlight[slot] = null;
+            acked++;
+        }
+
+        Record record = new Record();
+        record.sequence = sequence;
+        record.priority = frame.getPriority();
+        record.queueUs = (frame.getTransferStartNanos() - frame.getEnqueueNanos()) / 1000;
+        record.transferUs = (frame.getTransferEndNanos() - frame.getTransferStartNanos()) / 1000;
+        record.displayUs = (ackNanos - frame.getTransferEndNanos()) / 1000;
+        if (frame.getFixNanos() != 0) {
+            record.fixToEncodeUs = (frame.getEncodeNanos() - frame.getFixNanos()) / 1000;
+            record.fixToDisplayUs = (ackNanos - frame.getFixNanos()) / 1000;
+            fixToDisplay.recordMicros(record.fixToDisplayUs);
+        } else {
+            record.fixToEncodeUs = -1;
+            record.fixToDisplayUs = -1;
+        }
+        enqueueToDisplay.recordNanos(ackNanos - frame.getEnqueueNanos());
+        queueWait.recordMicros(record.queueUs);
+        transfer.recordMicros(record.transferUs);
+        display.recordMicros(record.displayUs);
+
+        synchronized (this) {
+            log[logNext] = record;
+            logNext = (logNext + 1) % LOG_CAPACITY;
+            logSize = Math.min(logSize + 1, LOG_CAPACITY);
+        }
+        return true;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(inFlight, null);
+        Arrays.fill(log, null);
+        logNext = 0;
+        logSize = 0;
+        transferred = 0;
+        acked = 0;
+        unmatched = 0;
+        fixToDisplay.reset();
+        enqueueToDisplay.reset();
+        queueWait.reset();
+        transfer.reset();
+        display.reset();
+    }
+
+    public synchronized long getAckedCount() {
+        return acked;
+    }
+
+    /**
+     * Stage percentiles for the dashboard and export
+     */
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        synchronized (this) {
+            s.transferred = transferred;
+            s.acked = acked;
+            s.unmatched = unmatched;
+        }
+        s.fixToDisplayCount = fixToDisplay.getCount();
+        s.fixToDisplayP50Ms = fixToDisplay.getPercentileMicros(50) / 1000.0;
+        s.fixToDisplayP90Ms = fixToDisplay.getPercentileMicros(90) / 1000.0;
+        s.fixToDisplayP99Ms = fixToDisplay.getPercentileMicros(99) / 1000.0;
+        s.fixToDisplayMaxMs = fixToDisplay.getMaxMicros() / 1000.0;
+        s.enqueueToDisplayP50Ms = enqueueToDisplay.getPercentileMicros(50) / 1000.0;
+        s.enqueueToDisplayP99Ms = enqueueToDisplay.getPercentileMicros(99) / 1000.0;
+        s.queueP99Ms = queueWait.getPercentileMicros(99) / 1000.0;
+        s.transferP99Ms = transfer.getPercentileMicros(99) / 1000.0;
+        s.displayP99Ms = display.getPercentileMicros(99) / 1000.0;
+        return s;
+    }
+
+    /**
+     * Recent acknowledged frames, oldest first
+     */
+    public synchronized JSONArray exportLog() throws JSONException {
+        JSONArray array = new JSONArray();
+        int start = (logNext - logSize + LOG_CAPACITY) % LOG_CAPACITY;
+        for (int i = 0; i < logSize; i++) {
+            array.put(log[(start + i) % LOG_CAPACITY].toJson());
+        }
+        return array;
+    }
+
+    /**
+     * Sequence sentence appended after a frame's payload
+     */
+    static String formatSequence(long sequence) {
+        String body = SEQ_SENTENCE + "," + sequence;
+        return String.format(Locale.US, "$%s*%02X\r\n", body, checksum(body));
+    }
+
+    /**
+     * Parse one line from the device
+     * @return the acknowledged sequence number, or -1 if the line is not a valid ack
+     */
+    static long parseAck(CharSequence line) {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\r' || line.charAt(end - 1) == '\n')) {
+            end--;
+        }
+        int prefix = ACK_SENTENCE.length() + 2; // '$' and ','
+        // "$OHACK," + at least one digit + "*XX"
+        if (end < prefix + 4 || line.charAt(0) != '$' || line.charAt(end - 3) != '*') {
+            return -1;
+        }
+        String body = line.subSequence(1, end - 3).toString();
+        if (!body.startsWith(ACK_SENTENCE + ",")) {
+            return -1;
+        }
+        int expected;
+        try {
+            expected = Integer.parseInt(line.subSequence(end - 2, end).toString(), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (expected != checksum(body)) {
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = prefix - 1; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sequence = sequence * 10 + (c - '0');
+        }
+        return sequence;
+    }
+
+    /**
+     * NMEA checksum: XOR of the characters between '$' and '*'
+     */
+    static int checksum(CharSequence body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return checksum;
+    }
+
+    /**
+     * End-to-end latency figures at one point in time
+     */
+    public static class Snapshot {
+        public long transferred;
+        public long acked;
+        public long unmatched;
+        public long fixToDisplayCount;
+        public double fixToDisplayP50Ms;
+        public double fixToDisplayP90Ms;
+        public double fixToDisplayP99Ms;
+        public double fixToDisplayMaxMs;
+        public double enqueueToDisplayP50Ms;
+        public double enqueueToDisplayP99Ms;
+        public double queueP99Ms;
+        public double transferP99Ms;
+        public double displayP99Ms;
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("transferred", transferred);
+            json.put("acked", acked);
+            json.put("unmatched", unmatched);
+            json.put("fixToDisplayCount", fixToDisplayCount);
+            json.put("fixToDisplayP50Ms", fixToDisplayP50Ms);
+            json.put("fixToDisplayP90Ms", fixToDisplayP90Ms);
+            json.put("fixToDisplayP99Ms", fixToDisplayP99Ms);
+            json.put("fixToDisplayMaxMs", fixToDisplayMaxMs);
+            json.put("enqueueToDisplayP50Ms", enqueueToDisplayP50Ms);
+            json.put("enqueueToDisplayP99Ms", enqueueToDisplayP99Ms);
+            json.put("queueP99Ms", queueP99Ms);
+            json.put("transferP99Ms", transferP99Ms);
+            json.put("displayP99Ms", displayP99Ms);
+            return json;
+        }
+
+        public String toDisplayString() {
+            if (acked == 0) {
+                return "Fix→display: no acks from device";
+            }
+            return String.format(Locale.US, "Fix→display p50/p90/p99: %.0f/%.0f/%.0f ms (%d acks)",
+                    fixToDisplayP50Ms, fixToDisplayP90Ms, fixToDisplayP99Ms, acked);
+        }
+    }
+}
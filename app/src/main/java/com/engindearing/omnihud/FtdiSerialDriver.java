@@ -0,0 +1,137 @@
+package com.engindearing.omnihud;
+
+import android.hardware.usb.UsbDevice;
+
+/**
+ * Driver for FTDI FT232/FT2232/FT4232 USB-serial chips.
+ * Baud rates are programmed as a divisor of the 3 MHz base clock with
+ * eighth-step fractions, which reaches 3 Mbaud on FT232R and newer parts.
+ */
+public class FtdiSerialDriver extends UsbSerialDriver {
+
+    private static final int SIO_RESET = 0x00;
+    private static final int SIO_MODEM_CTRL = 0x01;
+    private static final int SIO_SET_FLOW_CTRL = 0x02;
+    private static final int SIO_SET_BAUD_RATE = 0x03;
+    private static final int SIO_SET_DATA = 0x04;
+    private static final int SIO_SET_LATENCY_TIMER = 0x09;
+
+    private static final int SIO_RESET_SIO = 0;
+    private static final int SIO_DISABLE_FLOW_CTRL = 0x0000;
+    private static final int SIO_RTS_CTS_HS = 0x0100;
+
+    // High byte is the enable mask, low byte the line state
+    private static final int SIO_SET_DTR_HIGH = 0x0101;
+    private static final int SIO_SET_RTS_HIGH = 0x0202;
+
+    // 8 data bits, no parity, 1 stop bit
+    private static final int DATA_8N1 = 0x0008;
+
+    // Read-side flush interval; the power-on default of 16 ms adds latency to device replies
+    private static final int LATENCY_TIMER_MS = 2;
+
+    private static final int MODEM_STATUS_LENGTH = 2;
+
+    private static final int BASE_CLOCK_EIGHTHS = 3000000 * 8;
+    private static final int MAX_BAUD_RATE = 3000000;
+    private static final int[] FRACTION_CODE = {0, 3, 2, 4, 1, 5, 6, 7};
+
+    public FtdiSerialDriver(UsbDevice device) {
+        super(device);
+    }
+
+    @Override
+    public String getChipName() {
+        return "FTDI";
+    }
+
+    @Override
+    public int getMaxBaudRate() {
+        return MAX_BAUD_RATE;
+    }
+
+    @Override
+    public boolean supportsFlowControl() {
+        return true;
+    }
+
+    /**
+     * FTDI prefixes every IN packet with two modem status bytes; strip them
+     */
+    @Override
+    public int read(byte[] buffer, int timeoutMs) {
+        int length = super.read(buffer, timeoutMs);
+        if (length <= 0) {
+            return length;
+        }
+        int packetSize = Math.max(MODEM_STATUS_LENGTH + 1, endpointIn.getMaxPacketSize());
+        int out = 0;
+        for (int packet = 0; packet < length; packet += packetSize) {
+            int end = Math.min(packet + packetSize, length);
+            for (int i = packet + MODEM_STATUS_LENGTH; i < end; i++) {
+                buffer[out++] = buffer[i];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Multi-port chips (FT2232/FT4232) address each port by a 1-based index
+     */
+    private int portIndex() {
+        return device.getInterfaceCount() > 1 ? dataInterface.getId() + 1 : 0;
+    }
+
+    @Override
+    protected boolean initChip() {
+        if (!controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_RESET, SIO_RESET_SIO, portIndex())) {
+            return false;
+        }
+        // Not fatal if the chip rejects it; older FT8U232AM parts lack the timer
+        controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_SET_LATENCY_TIMER, LATENCY_TIMER_MS, portIndex());
+        return true;
+    }
+
+    @Override
+    protected boolean applyLineCoding(int baudRate) {
+        int encoded = encodeDivisor(baudRate);
+        int value = encoded & 0xFFFF;
+        int index = (encoded >> 16) & 0xFF;
+        if (portIndex() != 0) {
+            index = (index << 8) | portIndex();
+        }
+
+        return controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_SET_BAUD_RATE, value, index)
+                && controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_SET_DATA, DATA_8N1, portIndex());
+    }
+
+    @Override
+    protected boolean applyFlowControl(boolean enabled) {
+        int handshake = enabled ? SIO_RTS_CTS_HS : SIO_DISABLE_FLOW_CTRL;
+        return controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_SET_FLOW_CTRL, 0, handshake | portIndex())
+                && controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_MODEM_CTRL, SIO_SET_DTR_HIGH, portIndex())
+                && controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, SIO_MODEM_CTRL, SIO_SET_RTS_HIGH, portIndex());
+    }
+
+    /**
+     * Encode a baud rate as the 17-bit FTDI divisor (14-bit integer part,
+     * 3-bit fraction code). Divisors 1 and 1.5 are special-cased by the chip
+     * as 0 and 1, giving 3 Mbaud and 2 Mbaud.
+     */
+    static int encodeDivisor(int baudRate) {
+        int eighths = (BASE_CLOCK_EIGHTHS + baudRate / 2) / baudRate;
+        if (eighths <= 8) {
+            return 0;
+        }
+        if (eighths <= 12) {
+            return 1;
+        }
+        int whole = eighths >> 3;
+        int fraction = eighths & 0x07;
+        if (whole > 0x3FFF) {
+            whole = 0x3FFF;
+            fraction = 0;
+        }
+        return whole | (FRACTION_CODE[fraction] << 14);
+    }
+}
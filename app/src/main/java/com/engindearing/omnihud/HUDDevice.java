@@ -52,6 +52,26 @@ public interface HUDDevice {
      */
     boolean sendCotData(String cotXml);
 
+    /**
+     * Read device-to-host bytes such as display acknowledgements.
+     * Devices without a return channel can keep the default.
+     * @param buffer Destination buffer
+     * @param timeoutMs Maximum time to wait for data
+     * @return Bytes read, 0 on timeout, or -1 if the device cannot be read
+     */
+    default int readData(byte[] buffer, int timeoutMs) {
+        return -1;
+    }
+
+    /**
+     * Serial line settings to use on the next connect.
+     * Devices without a serial link can keep the default.
+     * @param baudRate Line rate; rates above the adapter's limit are clamped
+     * @param flowControl Request RTS/CTS handshaking where the adapter supports it
+     */
+    default void setSerialParameters(int baudRate, boolean flowControl) {
+    }
+
     /**
      * Send formatted position data to HUD
      * @param lat Latitude
@@ -74,4 +94,11 @@ public interface HUDDevice {
      * @return Status string
      */
     String getStatusString();
+
+    /**
+     * Get transport metrics for the current connection session.
+     * A fresh instance is expected for each successful connect.
+     * @return Metrics for the current session, never null
+     */
+    TransportMetrics getMetrics();
 }
@@ -0,0 +1,106 @@
+package com.engindearing.omnihud;
+
+/**
+ * A single encoded message waiting to be written to the HUD.
+ *
+ * Each frame carries a sequence number and System.nanoTime() stamps for the
+ * stages it passes through: the self-marker fix it was built from (if any),
+ * encoding, enqueue and transfer. {@link FrameLatencyTracker} closes the
+ * chain when the device acknowledges the sequence number.
+ */
+public class HUDFrame {
+
+    private final SendPriority priority;
+    private final String coalesceKey;
+    private String payload;
+    private long sequence;
+    private long fixNanos;
+    private long encodeNanos;
+    private long enqueueNanos;
+    private long transferStartNanos;
+    private long transferEndNanos;
+
+    /**
+     * @param priority Send lane
+     * @param coalesceKey Frames in the same lane with the same key replace each
+     *                    other while queued (latest wins); null to always append
+     * @param payload Encoded message (CoT XML or device sentence)
+     */
+    public HUDFrame(SendPriority priority, String coalesceKey, String payload) {
+        this.priority = priority;
+        this.coalesceKey = coalesceKey;
+        this.payload = payload;
+        this.encodeNanos = System.nanoTime();
+    }
+
+    public SendPriority getPriority() {
+        return priority;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Time of the position fix the payload was built from, or 0 if it has none
+     */
+    public long getFixNanos() {
+        return fixNanos;
+    }
+
+    void setFixNanos(long fixNanos) {
+        this.fixNanos = fixNanos;
+    }
+
+    /**
+     * Time the payload finished encoding (frame construction)
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public long getEnqueueNanos() {
+        return enqueueNanos;
+    }
+
+    void setEnqueueNanos(long enqueueNanos) {
+        this.enqueueNanos = enqueueNanos;
+    }
+
+    public long getTransferStartNanos() {
+        return transferStartNanos;
+    }
+
+    public long getTransferEndNanos() {
+        return transferEndNanos;
+    }
+
+    void setTransferNanos(long startNanos, long endNanos) {
+        this.transferStartNanos = startNanos;
+        this.transferEndNanos = endNanos;
+    }
+
+    /**
+     * Take over the payload of a newer frame with the same coalesce key,
+     * keeping this frame's place in the lane.
+     */
+    void replacePayload(HUDFrame newer) {
+        this.payload = newer.payload;
+        this.sequence = newer.sequence;
+        this.fixNanos = newer.fixNanos;
+        this.encodeNanos = newer.encodeNanos;
+        this.enqueueNanos = newer.enqueueNanos;
+    }
+}
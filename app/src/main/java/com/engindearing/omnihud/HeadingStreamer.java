@@ -0,0 +1,167 @@
+package com.engindearing.omnihud;
+
+import android.content.Context;
+import android.hardware.GeomagneticField;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.atakmap.coremap.log.Log;
+
+import java.util.Locale;
+
+/**
+ * High-rate heading and pitch frames driven by the rotation vector sensor.
+ *
+ * Full CoT position frames are several hundred bytes and run at the
+ * configured update rate. Heading changes much faster when the wearer turns,
+ * so it is sent separately as a short NMEA-style sentence:
+ * <pre>$OHHDG,&lt;heading&gt;,&lt;pitch&gt;*&lt;checksum&gt;\r\n</pre>
+ * Heading is degrees true (magnetic azimuth plus declination), pitch is
+ * degrees with nose-up positive, both to 0.1 degree. The checksum is the NMEA
+ * XOR of the characters between '$' and '*'. Frames are rate-capped, skipped
+ * when the change is below {@link #MIN_CHANGE_DEG}, and coalesced in the send
+ * queue so only the newest heading waits behind a busy link.
+ */
+public class HeadingStreamer implements SensorEventListener {
+
+    private static final String TAG = HeadingStreamer.class.getSimpleName();
+
+    public static final double DEFAULT_RATE_HZ = 25.0;
+    static final float MIN_CHANGE_DEG = 0.5f;
+    private static final long DECLINATION_REFRESH_MS = 60000;
+
+    private final Context context;
+    private final USBCommunicationManager usbManager;
+    private final float[] rotationMatrix = new float[9];
+    private final float[] orientation = new float[3];
+
+    private SensorManager sensorManager;
+    private HandlerThread thread;
+    private long minIntervalNanos = (long) (1e9 / DEFAULT_RATE_HZ);
+
+    private volatile float declination;
+    private long declinationUpdatedMs;
+
+    private long lastSentNanos;
+    private float lastHeading = Float.NaN;
+    private float lastPitch = Float.NaN;
+    private volatile float latestHeading = Float.NaN;
+    private volatile long framesSent;
+
+    public HeadingStreamer(Context context, USBCommunicationManager usbManager) {
+        this.context = context;
+        this.usbManager = usbManager;
+    }
+
+    /**
+     * Start listening on a dedicated sensor thread
+     * @return false if the device has no rotation vector sensor
+     */
+    public synchronized boolean start(double rateHz) {
+        minIntervalNanos = (long) (1e9 / rateHz);
+        if (thread != null) {
+            return true;
+        }
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        Sensor sensor = sensorManager != null ? sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR) : null;
+        if (sensor == null) {
+            Log.w(TAG, "No rotation vector sensor - heading frames disabled");
+            return false;
+        }
+
+        thread = new HandlerThread("OmniHUD-Heading", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        lastHeading = Float.NaN;
+        lastPitch = Float.NaN;
+        // Sample at twice the send rate so each frame uses a fresh reading
+        int samplingUs = (int) (minIntervalNanos / 2000);
+        sensorManager.registerListener(this, sensor, samplingUs, new Handler(thread.getLooper()));
+        Log.d(TAG, "Heading frames started at " + rateHz + " Hz");
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        sensorManager.unregisterListener(this);
+        thread.quitSafely();
+        thread = null;
+        latestHeading = Float.NaN;
+        Log.d(TAG, "Heading frames stopped after " + framesSent + " frames");
+    }
+
+    /**
+     * Refresh magnetic declination for the wearer's position. Cheap to call per tick;
+     * the field model is only re-evaluated once a minute.
+     */
+    public void updateDeclination(double lat, double lon, double hae, long nowMs) {
+        if (declinationUpdatedMs != 0 && nowMs - declinationUpdatedMs < DECLINATION_REFRESH_MS) {
+            return;
+        }
+        declinationUpdatedMs = nowMs;
+        float altitude = Double.isNaN(hae) ? 0f : (float) hae;
+        declination = new GeomagneticField((float) lat, (float) lon, altitude,
+                System.currentTimeMillis()).getDeclination();
+    }
+
+    /**
+     * Latest true heading in degrees, or NaN while not running
+     */
+    public float getLatestHeading() {
+        return latestHeading;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        SensorManager.getRotationMatrixFromVector(rotationMatrix, event.values);
+        SensorManager.getOrientation(rotationMatrix, orientation);
+
+        float heading = (float) Math.toDegrees(orientation[0]) + declination;
+        heading = ((heading % 360f) + 360f) % 360f;
+        float pitch = (float) -Math.toDegrees(orientation[1]);
+        latestHeading = heading;
+
+        long now = event.timestamp;
+        if (now - lastSentNanos < minIntervalNanos) {
+            return;
+        }
+        if (!Float.isNaN(lastHeading)
+                && PositionChangeFilter.headingDelta(heading, lastHeading) < MIN_CHANGE_DEG
+                && Math.abs(pitch - lastPitch) < MIN_CHANGE_DEG) {
+            return;
+        }
+
+        if (usbManager.sendHeading(formatSentence(heading, pitch))) {
+            lastSentNanos = now;
+            lastHeading = heading;
+            lastPitch = pitch;
+            framesSent++;
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Encode one heading frame, e.g. "$OHHDG,271.4,-3.0*5C\r\n"
+     */
+    static String formatSentence(float heading, float pitch) {
+        String body = String.format(Locale.US, "OHHDG,%.1f,%.1f", heading, pitch);
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return String.format(Locale.US, "$%s*%02X\r\n", body, checksum);
+    }
+}
@@ -0,0 +1,223 @@
+package com.engindearing.omnihud;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collapses bursts of map item events into one net change per UID.
+ *
+ * A TAK server push can deliver many ITEM_REFRESH events for the same UIDs
+ * in quick succession. Events are folded into a pending entry per UID and
+ * the first event of a window opens it; {@link #flushIfDue} delivers the
+ * batch once {@link #getWindow()} has passed, so the sink sees at most one
+ * change per UID per window:
+ * <ul>
+ *     <li>add then refreshes: one ADD with the latest fields</li>
+ *     <li>refreshes: one UPDATE with the latest fields</li>
+ *     <li>anything then remove: one REMOVE</li>
+ *     <li>add then remove within the window: nothing</li>
+ *     <li>remove then add: one UPDATE</li>
+ * </ul>
+ * Pending entries are pooled, so steady-state offers do not allocate.
+ * Offers and flushes run on the event worker thread; the statistics may be
+ * read from any thread.
+ */
+public class MapEventCoalescer {
+
+    public static final long DEFAULT_WINDOW_MS = 200;
+
+    public enum Change {
+        ADD,
+        UPDATE,
+        REMOVE
+    }
+
+    /**
+     * Net change for one UID. Reused after {@link Sink#onChange} returns; copy what you keep.
+     */
+    public static class Entry {
+        public String uid;
+        public Change change;
+        public String type;
+        public String callsign;
+        public double lat;
+        public double lon;
+        public double hae;
+        public long timeMs;
+
+        // First event of the window was an add, so a remove cancels it
+        boolean addedInWindow;
+    }
+
+    public interface Sink {
+        void onChange(Entry entry);
+    }
+
+    private final long windowMs;
+    private final Sink sink;
+
+    private Map<String, Entry> pending = new HashMap<>();
+    private Map<String, Entry> draining = new HashMap<>();
+    private final List<Entry> pool = new ArrayList<>();
+    private long windowStartMs;
+
+    private long eventsIn;
+    private long changesOut;
+    private long cancelled;
+    private long windows;
+
+    /**
+     * @param windowMs Coalescing window, measured from the first event after a flush
+     */
+    public MapEventCoalescer(long windowMs, Sink sink) {
+        this.windowMs = windowMs;
+        this.sink = sink;
+    }
+
+    public long getWindow() {
+        return windowMs;
+    }
+
+    /**
+     * Fold one event into the pending change for its UID
+     * @param nowMs Monotonic time, opens the window if nothing is pending
+     */
+    public void offer(Change change, String uid, String type, String callsign,
+                      double lat, double lon, double hae, long timeMs, long nowMs) {
+        if (uid == null) {
+            return;
+        }
+        synchronized (this) {
+            eventsIn++;
+            if (pending.isEmpty()) {
+                windowStartMs = nowMs;
+            }
+            Entry entry = pending.get(uid);
+            if (entry == null) {
+                entry = obtain();
+                entry.uid = uid;
+                entry.change = change;
+                entry.addedInWindow = change == Change.ADD;
+                pending.put(uid, entry);
+            } else if (change == Change.REMOVE) {
+                entry.change = Change.REMOVE;
+            } else if (entry.change == Change.REMOVE) {
+                // Removed and re-added: the sink may already hold it, so update rather than add
+                entry.change = entry.addedInWindow ? Change.ADD : Change.UPDATE;
+            }
+            if (change != Change.REMOVE) {
+                entry.type = type;
+                entry.callsign = callsign;
+                entry.lat = lat;
+                entry.lon = lon;
+                entry.hae = hae;
+            }
+            entry.timeMs = timeMs;
+        }
+    }
+
+    /**
+     * Deliver pending changes if the window has closed
+     * @return milliseconds until the open window closes, or -1 if nothing is pending
+     */
+    public long flushIfDue(long nowMs) {
+        long remaining;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return -1;
+            }
+            remaining = windowStartMs + windowMs - nowMs;
+        }
+        if (remaining > 0) {
+            return remaining;
+        }
+        flush();
+        return -1;
+    }
+
+    /**
+     * Deliver every pending change now
+     */
+    public void flush() {
+        Map<String, Entry> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = draining;
+            draining = batch;
+            windows++;
+        }
+
+        int delivered = 0;
+        int dropped = 0;
+        for (Entry entry : batch.values()) {
+            if (entry.change == Change.REMOVE && entry.addedInWindow) {
+                dropped++;
+            } else {
+                sink.onChange(entry);
+                delivered++;
+            }
+        }
+
+        synchronized (this) {
+            changesOut += delivered;
+            cancelled += dropped;
+            for (Entry entry : batch.values()) {
+                entry.uid = null;
+                entry.type = null;
+                entry.callsign = null;
+                pool.add(entry);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Drop pending changes without delivering them
+     */
+    public synchronized void clear() {
+        for (Entry entry : pending.values()) {
+            entry.uid = null;
+            entry.type = null;
+            entry.callsign = null;
+            pool.add(entry);
+        }
+        pending.clear();
+    }
+
+    private Entry obtain() {
+        int n = pool.size();
+        return n > 0 ? pool.remove(n - 1) : new Entry();
+    }
+
+    /**
+     * Events offered per change delivered; 1.0 means nothing was coalesced
+     */
+    public synchronized double getCoalescingRatio() {
+        return changesOut > 0 ? (double) eventsIn / changesOut : 1.0;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("windowMs", windowMs);
+        json.put("eventsIn", eventsIn);
+        json.put("changesOut", changesOut);
+        json.put("cancelled", cancelled);
+        json.put("windows", windows);
+        json.put("coalescingRatio", getCoalescingRatio());
+        return json;
+    }
+
+    public synchronized String toDisplayString() {
+        return String.format(Locale.US, "Map events: %d in, %d out (%.1f:1)",
+                eventsIn, changesOut, getCoalescingRatio());
+    }
+}
@@ -0,0 +1,199 @@
+package com.engindearing.omnihud;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.atakmap.coremap.log.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves map item event handling off the dispatcher thread.
+ *
+ * Listeners call {@link #offer}, which copies the event's fields into a
+ * preallocated {@link MapEventRing} and wakes the worker; it does not
+ * allocate or lock. The "OmniHUD-Events" worker drains the ring in batches,
+ * coalesces per UID and hands net changes to the sink. If the ring ever
+ * fills, events are dropped and the worker asks for a full resync once it
+ * has caught up, so no removal is silently lost.
+ */
+public class MapEventPipeline {
+
+    private static final String TAG = MapEventPipeline.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    static final int BATCH_SIZE = 256;
+    // Upper bound on a park; offers unpark the worker immediately
+    private static final long IDLE_PARK_MS = 1000;
+    private static final long STOP_JOIN_MS = 1000;
+
+    private final MapEventRing ring;
+    private final MapEventCoalescer coalescer;
+    private final Runnable resync;
+    private volatile Runnable periodicTask;
+    private final MapEventRing.Consumer drainConsumer = this::onDrained;
+
+    private volatile Thread worker;
+    private volatile boolean running;
+    private volatile boolean overflowed;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong enqueueNanos = new AtomicLong();
+    private final AtomicLong enqueueMaxNanos = new AtomicLong();
+    private volatile long batches;
+    private volatile long drained;
+    private volatile int largestBatch;
+    private volatile long resyncs;
+
+    /**
+     * @param sink Receives coalesced changes on the worker thread
+     * @param resync Run on the worker after an overflow to rebuild downstream state
+     */
+    public MapEventPipeline(int capacity, long windowMs, MapEventCoalescer.Sink sink, Runnable resync) {
+        this.ring = new MapEventRing(capacity);
+        this.coalescer = new MapEventCoalescer(windowMs, sink);
+        this.resync = resync;
+    }
+
+    /**
+     * Run on the worker after every pass, at least once a second, e.g. to
+     * expire tracks in step with the changes that refresh them
+     */
+    public void setPeriodicTask(Runnable task) {
+        this.periodicTask = task;
+    }
+
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, "OmniHUD-Events");
+        worker.start();
+    }
+
+    /**
+     * Stop the worker and wait briefly for its final flush, so no change
+     * reaches the sink after this returns
+     */
+    public synchronized void stop() {
+        running = false;
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(STOP_JOIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Snapshot one event. Called on the dispatcher thread; allocation-free.
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean offer(MapEventCoalescer.Change change, String uid, String type, String callsign,
+                         double lat, double lon, double hae, long timeMs) {
+        long start = System.nanoTime();
+        boolean accepted = ring.offer(change, uid, type, callsign, lat, lon, hae, timeMs);
+        if (!accepted) {
+            overflowed = true;
+            dropped.incrementAndGet();
+        }
+        Thread thread = worker;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        offered.incrementAndGet();
+        enqueueNanos.addAndGet(elapsed);
+        long max = enqueueMaxNanos.get();
+        while (elapsed > max && !enqueueMaxNanos.compareAndSet(max, elapsed)) {
+            max = enqueueMaxNanos.get();
+        }
+        return accepted;
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (running) {
+            int count;
+            try {
+                count = ring.drain(drainConsumer, BATCH_SIZE);
+                if (count > 0) {
+                    batches++;
+                    drained += count;
+                    if (count > largestBatch) {
+                        largestBatch = count;
+                    }
+                }
+                if (overflowed && ring.size() == 0) {
+                    overflowed = false;
+                    resyncs++;
+                    Log.w(TAG, "Event ring overflowed - resyncing from the map");
+                    coalescer.clear();
+                    resync.run();
+                }
+                long waitMs = coalescer.flushIfDue(SystemClock.elapsedRealtime());
+                Runnable task = periodicTask;
+                if (task != null) {
+                    task.run();
+                }
+                if (count == BATCH_SIZE) {
+                    // More waiting; keep draining before sleeping
+                    continue;
+                }
+                LockSupport.parkNanos(this, (waitMs > 0 ? waitMs : IDLE_PARK_MS) * 1000000L);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing map events", e);
+            }
+        }
+        coalescer.flush();
+        Log.d(TAG, "Map event worker exiting after " + drained + " events");
+    }
+
+    private void onDrained(MapEventCoalescer.Change change, String uid, String type, String callsign,
+                           double lat, double lon, double hae, long timeMs) {
+        coalescer.offer(change, uid, type, callsign, lat, lon, hae, timeMs, SystemClock.elapsedRealtime());
+    }
+
+    public MapEventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Mean dispatcher-thread cost of {@link #offer} in nanoseconds
+     */
+    public double getMeanEnqueueNanos() {
+        long count = offered.get();
+        return count > 0 ? (double) enqueueNanos.get() / count : 0.0;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = coalescer.toJson();
+        json.put("offered", offered.get());
+        json.put("dropped", dropped.get());
+        json.put("resyncs", resyncs);
+        json.put("batches", batches);
+        json.put("largestBatch", largestBatch);
+        json.put("enqueueMeanNs", getMeanEnqueueNanos());
+        json.put("enqueueMaxNs", enqueueMaxNanos.get());
+        json.put("ringCapacity", ring.capacity());
+        return json;
+    }
+
+    public String toDisplayString() {
+        return coalescer.toDisplayString() + String.format(Locale.US,
+                "\nEvent enqueue: %.0f ns mean, %d ns max, %d dropped",
+                getMeanEnqueueNanos(), enqueueMaxNanos.get(), dropped.get());
+    }
+}
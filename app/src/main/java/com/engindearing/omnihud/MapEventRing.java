@@ -0,0 +1,129 @@
+package com.engindearing.omnihud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring of map event snapshots.
+ *
+ * Slots are preallocated as parallel arrays, so an offer copies a few
+ * fields and never allocates. Each slot carries a sequence number in the
+ * style of Vyukov's bounded queue: a producer claims a slot by advancing the
+ * tail with a CAS, fills it, then publishes it by storing the next sequence;
+ * the consumer only reads slots whose sequence says they are published. A
+ * full ring rejects the offer rather than blocking the dispatcher thread.
+ */
+public class MapEventRing {
+
+    /**
+     * Receives drained events; references are only valid during the call
+     */
+    public interface Consumer {
+        void onEvent(MapEventCoalescer.Change change, String uid, String type, String callsign,
+                     double lat, double lon, double hae, long timeMs);
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final MapEventCoalescer.Change[] changes;
+    private final String[] uids;
+    private final String[] types;
+    private final String[] callsigns;
+    private final double[] lats;
+    private final double[] lons;
+    private final double[] haes;
+    private final long[] times;
+
+    /**
+     * @param capacity Rounded up to a power of two
+     */
+    public MapEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        changes = new MapEventCoalescer.Change[size];
+        uids = new String[size];
+        types = new String[size];
+        callsigns = new String[size];
+        lats = new double[size];
+        lons = new double[size];
+        haes = new double[size];
+        times = new long[size];
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Copy one event into the ring. Safe from any number of threads.
+     * @return false if the ring is full
+     */
+    public boolean offer(MapEventCoalescer.Change change, String uid, String type, String callsign,
+                         double lat, double lon, double hae, long timeMs) {
+        long pos;
+        int slot;
+        while (true) {
+            pos = tail.get();
+            slot = (int) (pos & mask);
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                // The consumer has not freed this slot yet
+                return false;
+            }
+            // Another producer claimed pos; retry with the new tail
+        }
+        changes[slot] = change;
+        uids[slot] = uid;
+        types[slot] = type;
+        callsigns[slot] = callsign;
+        lats[slot] = lat;
+        lons[slot] = lon;
+        haes[slot] = hae;
+        times[slot] = timeMs;
+        sequences.lazySet(slot, pos + 1);
+        return true;
+    }
+
+    /**
+     * Hand up to {@code max} published events to the consumer, oldest first.
+     * Single consumer thread only.
+     * @return number of events drained
+     */
+    public int drain(Consumer consumer, int max) {
+        int count = 0;
+        while (count < max) {
+            int slot = (int) (head & mask);
+            if (sequences.get(slot) != head + 1) {
+                // Empty, or the next producer has claimed but not yet published
+                break;
+            }
+            consumer.onEvent(changes[slot], uids[slot], types[slot], callsigns[slot],
+                    lats[slot], lons[slot], haes[slot], times[slot]);
+            uids[slot] = null;
+            types[slot] = null;
+            callsigns[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Approximate number of queued events
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+}
@@ -0,0 +1,121 @@
+package com.engindearing.omnihud;
+
+/**
+ * Speed and course over ground derived from successive self-marker fixes.
+ *
+ * The velocity vector is smoothed with an exponential moving average in
+ * north/east components (averaging course angles directly breaks at 0/360).
+ * Samples are timed by the GPS fix, not by the tick that observed it, and a
+ * tick that sees the same point and fix again is not a sample, so a 1 Hz GPS
+ * polled at 5 Hz reads neither as stopping nor as jumping. Fixes closer
+ * together than {@link #MIN_INTERVAL_MS} are folded into the next one. Below
+ * {@link #STATIONARY_SPEED} the course is held at its last value so GPS
+ * jitter while standing still does not spin the HUD heading.
+ * Not thread-safe; call from the streaming thread only.
+ */
+public class MotionEstimator {
+
+    static final long MIN_INTERVAL_MS = 200;
+    static final long MAX_INTERVAL_MS = 10000;
+    static final double STATIONARY_SPEED = 0.5; // m/s
+    private static final double SMOOTHING = 0.5;
+
+    private boolean hasFix;
+    private double lastLat;
+    private double lastLon;
+    private long lastTimeMs;
+
+    private boolean hasSeen;
+    private double seenLat;
+    private double seenLon;
+    private long seenFixMs;
+
+    private double velNorth;
+    private double velEast;
+    private double speed;
+    private double course;
+
+    /**
+     * Feed the self point seen on a streaming tick; only a new fix or a moved point is sampled
+     * @param fixTimeMs SystemClock.elapsedRealtime() of the fix the point came from, or <= 0 if unknown
+     * @param nowMs tick time, used in place of an unknown fix time
+     */
+    public void observe(double lat, double lon, long fixTimeMs, long nowMs) {
+        if (hasSeen && lat == seenLat && lon == seenLon && fixTimeMs == seenFixMs) {
+            return;
+        }
+        hasSeen = true;
+        seenLat = lat;
+        seenLon = lon;
+        seenFixMs = fixTimeMs;
+        update(lat, lon, fixTimeMs > 0 ? fixTimeMs : nowMs);
+    }
+
+    /**
+     * Feed one fix
+     * @param timeMs monotonic time of the fix
+     */
+    public void update(double lat, double lon, long timeMs) {
+        if (!hasFix) {
+            setLast(lat, lon, timeMs);
+            return;
+        }
+
+        long dtMs = timeMs - lastTimeMs;
+        if (dtMs < MIN_INTERVAL_MS) {
+            return;
+        }
+        if (dtMs > MAX_INTERVAL_MS) {
+            // Too long a gap to say anything about current motion
+            velNorth = 0;
+            velEast = 0;
+            speed = 0;
+            setLast(lat, lon, timeMs);
+            return;
+        }
+
+        double dt = dtMs / 1000.0;
+        double north = Math.toRadians(lat - lastLat) * DeadReckoningModel.EARTH_RADIUS_M;
+        double east = Math.toRadians(lon - lastLon) * Math.cos(Math.toRadians((lat + lastLat) / 2))
+                * DeadReckoningModel.EARTH_RADIUS_M;
+
+        velNorth += SMOOTHING * (north / dt - velNorth);
+        velEast += SMOOTHING * (east / dt - velEast);
+        speed = Math.sqrt(velNorth * velNorth + velEast * velEast);
+        if (speed >= STATIONARY_SPEED) {
+            double deg = Math.toDegrees(Math.atan2(velEast, velNorth));
+            course = deg < 0 ? deg + 360.0 : deg;
+        }
+        setLast(lat, lon, timeMs);
+    }
+
+    private void setLast(double lat, double lon, long timeMs) {
+        hasFix = true;
+        lastLat = lat;
+        lastLon = lon;
+        lastTimeMs = timeMs;
+    }
+
+    /**
+     * Smoothed speed over ground in m/s, or 0 when below the stationary threshold
+     */
+    public double getSpeed() {
+        return speed >= STATIONARY_SPEED ? speed : 0.0;
+    }
+
+    /**
+     * Course over ground in degrees true (0-360)
+     */
+    public double getCourse() {
+        return course;
+    }
+
+    public void reset() {
+        hasFix = false;
+        hasSeen = false;
+        velNorth = 0;
+        velEast = 0;
+        speed = 0;
+        course = 0;
+    }
+}
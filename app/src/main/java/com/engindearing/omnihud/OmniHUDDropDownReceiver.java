@@ -2,12 +2,13 @@ package com.engindearing.omnihud;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -21,21 +22,57 @@ import com.atakmap.android.dropdown.DropDown;
 import com.atakmap.android.dropdown.DropDownReceiver;
 import com.atakmap.android.maps.MapEvent;
 import com.atakmap.android.maps.MapEventDispatcher;
+import com.atakmap.android.maps.MapGroup;
 import com.atakmap.android.maps.MapItem;
 import com.atakmap.android.maps.MapView;
 import com.atakmap.android.maps.PointMapItem;
+import com.atakmap.android.maps.Shape;
+import com.atakmap.android.routes.Route;
+import com.atakmap.coremap.filesystem.FileSystemUtils;
 import com.atakmap.coremap.log.Log;
 import com.atakmap.coremap.maps.coords.GeoPoint;
 
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDown.OnStateListener {
 
     public static final String TAG = OmniHUDDropDownReceiver.class.getSimpleName();
     public static final String SHOW_PLUGIN = "com.engindearing.omnihud.SHOW_PLUGIN";
+    public static final String HUD_ALERT = "com.engindearing.omnihud.HUD_ALERT";
+    // Extra "rules": stream filter rules, see StreamFilter; empty or absent streams all contacts
+    public static final String SET_STREAM_FILTER = "com.engindearing.omnihud.SET_STREAM_FILTER";
+
+    private static final double DEFAULT_UPDATE_RATE_HZ = 1.0;
+    private static final long SELF_MOVE_DEBOUNCE_MS = 50;
+
+    // Positions in R.array.stream_types
+    private static final int STREAM_POSITION_ONLY = 0;
+    private static final int STREAM_POSITION_WAYPOINTS = 1;
+    private static final int STREAM_POSITION_CONTACTS = 2;
+    private static final int STREAM_ALL = 3;
+
+    // Bounds stale times for UIDs whose map event never arrives
+    private static final int MAX_PENDING_STALE = 4096;
+
+    // Stream filter rules are kept across sessions
+    private static final String FILTER_PREFS_NAME = "omnihud_stream_filter";
+    private static final String KEY_FILTER_RULES = "rules";
+
+    // Serial line settings are kept across sessions
+    private static final String SERIAL_PREFS_NAME = "omnihud_serial";
+    private static final String KEY_BAUD_RATE = "baud_rate";
+    private static final String KEY_FLOW_CONTROL = "flow_control";
 
     private final Context pluginContext;
     private final MapView mapView;
@@ -43,27 +80,57 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
     // USB Communication
     private USBCommunicationManager usbManager;
-    private Handler streamingHandler;
-    private Runnable streamingRunnable;
-    private boolean isStreaming = false;
+    private PreviewRenderer previewRenderer;
+    private StreamingScheduler streamingScheduler;
+    private HeadingStreamer headingStreamer;
+    private AdaptiveProfileController profileController;
+    private volatile boolean isStreaming = false;
+    private volatile PositionChangeFilter positionFilter = new PositionChangeFilter();
+    private volatile MotionEstimator motionEstimator = new MotionEstimator();
+    private final ContactTracker contactTracker = new ContactTracker();
+    private final TrackStore trackStore = TrackStore.getInstance();
+    private final BreadcrumbStore breadcrumbs = new BreadcrumbStore();
+    private volatile StreamFilter streamFilter = StreamFilter.acceptAll();
+    // Filter prepared for the current contact tick; streaming thread only
+    private StreamFilter tickFilter = streamFilter;
+    private final StaleExpiryWheel staleExpiry = new StaleExpiryWheel(this::expireTrack, System.currentTimeMillis());
+    // CoT stale times from the comms hook, taken by the next map event for the UID.
+    // Access-ordered, so the bound drops the UIDs reported longest ago.
+    private final Map<String, Long> cotStaleTimes = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_PENDING_STALE;
+                }
+            });
+    private final WaypointStreamer waypointStreamer = new WaypointStreamer();
+    private volatile WaypointStreamer.Update lastWaypointUpdate;
+    private volatile int streamType = STREAM_POSITION_ONLY;
+    private volatile ContactTracker.Delta lastContactDelta;
 
     // Map Event Handling (best practices)
     private MapEventDispatcher eventDispatcher;
-    private MapEventDispatcher.MapEventDispatchListener selfPositionListener;
+    private PointMapItem.OnPointChangedListener selfPointListener;
+    private volatile PointMapItem observedSelfMarker;
     private MapEventDispatcher.MapEventDispatchListener itemTrackingListener;
+    private MapEventPipeline mapEventPipeline;
 
     // UI Components
     private TextView txtConnectionStatus;
     private TextView txtDeviceInfo;
     private Spinner spinnerHUDDevices;
+    private Spinner spinnerBaudRate;
+    private SwitchCompat switchFlowControl;
     private Button btnConnect;
     private Button btnDisconnect;
     private Spinner spinnerStreamType;
     private Spinner spinnerUpdateRate;
     private SwitchCompat switchEnableStreaming;
     private TextView txtHUDPreview;
+    private TextView txtLinkMetrics;
     private Button btnRefreshDevices;
     private Button btnTestConnection;
+    private Button btnExportMetrics;
     private ImageButton btnSettings;
     private ImageButton btnHelp;
 
@@ -81,6 +148,13 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
         // Initialize MapEventDispatcher (ATAK best practices)
         eventDispatcher = mapView.getMapEventDispatcher();
         setupMapEventListeners();
+        contactTracker.setRanker(new ContactRanker(trackStore));
+        contactTracker.setFilter(contact -> tickFilter.isEmpty() || trackStore.test(contact.uid, tickFilter));
+        loadStreamFilter();
+        // Seed before the worker starts so the two never write the track store at once;
+        // events arriving meanwhile wait in the ring and are applied after the seed
+        seedContactTracker();
+        mapEventPipeline.start();
 
         // Initialize USB communication manager
         usbManager = new USBCommunicationManager(pluginContext);
@@ -117,10 +191,29 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             }
         });
 
-        // Initialize streaming handler
-        streamingHandler = new Handler(Looper.getMainLooper());
+        headingStreamer = new HeadingStreamer(pluginContext, usbManager);
+        profileController = new AdaptiveProfileController(pluginContext);
+        profileController.setListener(this::applyProfile);
+
+        // Streaming ticks run on their own thread; the preview is rendered separately on the UI thread
+        streamingScheduler = new StreamingScheduler(scheduled -> {
+            if (isStreaming && usbManager.isConnected()) {
+                sendCurrentPositionToHUD();
+                // Contacts follow the fixed rate; self-move requests only refresh our own position
+                if (scheduled && streamsContacts()) {
+                    sendNearbyContactsToHUD();
+                }
+                if (scheduled && streamsWaypoints()) {
+                    sendWaypointsToHUD();
+                }
+            }
+        });
+        // Skip ticks while the previous self position frame is still queued or on the wire
+        streamingScheduler.setBusyCheck(() -> usbManager.isPositionInFlight());
 
         initializeUI();
+        applySerialParameters();
+        previewRenderer = new PreviewRenderer(txtHUDPreview, this::updateLinkMetrics);
         refreshDeviceList();
 
         Log.d(TAG, "OmniHUDDropDownReceiver initialized");
@@ -133,6 +226,8 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
         // Device selection
         spinnerHUDDevices = dashboardView.findViewById(R.id.spinnerHUDDevices);
+        spinnerBaudRate = dashboardView.findViewById(R.id.spinnerBaudRate);
+        switchFlowControl = dashboardView.findViewById(R.id.switchFlowControl);
         btnConnect = dashboardView.findViewById(R.id.btnConnect);
         btnDisconnect = dashboardView.findViewById(R.id.btnDisconnect);
 
@@ -143,10 +238,12 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
         // Preview
         txtHUDPreview = dashboardView.findViewById(R.id.txtHUDPreview);
+        txtLinkMetrics = dashboardView.findViewById(R.id.txtLinkMetrics);
 
         // Advanced buttons
         btnRefreshDevices = dashboardView.findViewById(R.id.btnRefreshDevices);
         btnTestConnection = dashboardView.findViewById(R.id.btnTestConnection);
+        btnExportMetrics = dashboardView.findViewById(R.id.btnExportMetrics);
 
         // Header buttons
         btnSettings = dashboardView.findViewById(R.id.btnSettings);
@@ -177,6 +274,25 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             spinnerUpdateRate.setAdapter(updateRateAdapter);
         }
 
+        // Setup serial rate spinner and restore the saved line settings
+        SharedPreferences serialPrefs = pluginContext.getSharedPreferences(SERIAL_PREFS_NAME, Context.MODE_PRIVATE);
+        if (spinnerBaudRate != null) {
+            String[] baudRates = pluginContext.getResources().getStringArray(R.array.baud_rates);
+            ReadableSpinnerAdapter baudRateAdapter = new ReadableSpinnerAdapter(mapView.getContext(),
+                    Arrays.asList(baudRates));
+            spinnerBaudRate.setAdapter(baudRateAdapter);
+            int saved = serialPrefs.getInt(KEY_BAUD_RATE, UsbSerialDriver.DEFAULT_BAUD_RATE);
+            for (int i = 0; i < baudRates.length; i++) {
+                if (parseBaudRate(baudRates[i]) == saved) {
+                    spinnerBaudRate.setSelection(i);
+                    break;
+                }
+            }
+        }
+        if (switchFlowControl != null) {
+            switchFlowControl.setChecked(serialPrefs.getBoolean(KEY_FLOW_CONTROL, false));
+        }
+
         setupListeners();
 
         Log.d(TAG, "UI initialized");
@@ -200,6 +316,48 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             btnTestConnection.setOnClickListener(v -> sendTestData());
         }
 
+        if (btnExportMetrics != null) {
+            btnExportMetrics.setOnClickListener(v -> exportLinkMetrics());
+        }
+
+        if (spinnerStreamType != null) {
+            spinnerStreamType.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    // Cached for the streaming thread, which must not touch views
+                    streamType = position;
+                    if (!streamsContacts()) {
+                        clearHUDContacts();
+                    }
+                    if (!streamsWaypoints()) {
+                        clearHUDWaypoints();
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+                }
+            });
+        }
+
+        if (spinnerUpdateRate != null) {
+            spinnerUpdateRate.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    profileController.setSelectedRate(getSelectedUpdateRateHz());
+                    if (isStreaming) {
+                        streamingScheduler.setRate(profileController.getProfile()
+                                .effectiveRate(profileController.getSelectedRate()));
+                        Log.d(TAG, "Update rate changed to " + getSelectedUpdateRateHz() + " Hz");
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+                }
+            });
+        }
+
         if (switchEnableStreaming != null) {
             switchEnableStreaming.setOnCheckedChangeListener((buttonView, isChecked) -> {
                 if (isChecked) {
@@ -212,7 +370,8 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
         if (btnSettings != null) {
             btnSettings.setOnClickListener(v -> {
-                Toast.makeText(pluginContext, "Settings coming soon", Toast.LENGTH_SHORT).show();
+                // MapView's Activity context, as for the spinners
+                new StreamFilterDialog(mapView.getContext(), this).show();
             });
         }
 
@@ -228,14 +387,18 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
      * Instead of polling, we use event-driven updates for efficiency
      */
     private void setupMapEventListeners() {
-        // Listener for self position updates (efficient replacement for polling)
-        // Subscribe to MAP_MOVED event to detect when self position changes
-        selfPositionListener = new MapEventDispatcher.MapEventDispatchListener() {
+        // Listeners only snapshot events; tracking runs on the pipeline's worker thread
+        mapEventPipeline = new MapEventPipeline(MapEventPipeline.DEFAULT_CAPACITY,
+                MapEventCoalescer.DEFAULT_WINDOW_MS, this::trackContact, this::resyncContactTracker);
+        mapEventPipeline.setPeriodicTask(() -> staleExpiry.advance(System.currentTimeMillis()));
+
+        // Self marker point changes drive event-driven ticks; map pans and zooms no longer do
+        selfPointListener = new PointMapItem.OnPointChangedListener() {
             @Override
-            public void onMapEvent(MapEvent event) {
-                if (isStreaming && usbManager.isConnected()) {
-                    // Only send updates when streaming is active
-                    sendCurrentPositionToHUD();
+            public void onPointChanged(PointMapItem item) {
+                if (isStreaming) {
+                    // Coalesced and debounced by the scheduler; the send runs on its thread
+                    streamingScheduler.requestTick();
                 }
             }
         };
@@ -248,36 +411,36 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
                 MapItem item = event.getItem();
                 String eventType = event.getType();
 
-                if (item instanceof PointMapItem) {
+                if (item instanceof Route) {
+                    if (MapEvent.ITEM_REMOVED.equals(eventType)) {
+                        waypointStreamer.removeRoute(item.getUID());
+                    } else {
+                        waypointStreamer.updateRoute((Route) item);
+                    }
+                } else if (item instanceof PointMapItem) {
+                    // Copied into the event ring; bursts for a UID collapse into one change per window
                     PointMapItem pointItem = (PointMapItem) item;
-                    String callsign = pointItem.getTitle();
-                    String uid = pointItem.getUID();
-
-                    switch (eventType) {
-                        case MapEvent.ITEM_ADDED:
-                            Log.d(TAG, "COT Item added: " + callsign + " (UID: " + uid + ")");
-                            // Could send to HUD for nearby unit tracking
-                            break;
-
-                        case MapEvent.ITEM_REMOVED:
-                            Log.d(TAG, "COT Item removed: " + callsign + " (UID: " + uid + ")");
-                            // Could remove from HUD display
-                            break;
-
-                        case MapEvent.ITEM_REFRESH:
-                            // Item properties changed (position, affiliation, etc.)
-                            Log.d(TAG, "COT Item refreshed: " + callsign);
-                            // Could update HUD display
-                            break;
+                    if (MapEvent.ITEM_REMOVED.equals(eventType)) {
+                        mapEventPipeline.offer(MapEventCoalescer.Change.REMOVE, pointItem.getUID(),
+                                null, null, 0, 0, 0, System.currentTimeMillis());
+                        return;
                     }
+                    GeoPoint point = pointItem.getPoint();
+                    if (point == null) {
+                        return;
+                    }
+                    mapEventPipeline.offer(MapEvent.ITEM_ADDED.equals(eventType)
+                                    ? MapEventCoalescer.Change.ADD : MapEventCoalescer.Change.UPDATE,
+                            pointItem.getUID(), pointItem.getType(), pointItem.getTitle(),
+                            point.getLatitude(), point.getLongitude(), point.getAltitude(),
+                            System.currentTimeMillis());
                 }
             }
         };
 
         // Register listeners following best practices:
-        // - MAP_MOVED for self position updates (event-driven instead of polling)
         // - ITEM_ADDED, ITEM_REMOVED, ITEM_REFRESH for COT item tracking
-        eventDispatcher.addMapEventListener(MapEvent.MAP_MOVED, selfPositionListener);
+        // The self marker listener is attached while streaming, see observeSelfMarker()
         eventDispatcher.addMapEventListener(MapEvent.ITEM_ADDED, itemTrackingListener);
         eventDispatcher.addMapEventListener(MapEvent.ITEM_REMOVED, itemTrackingListener);
         eventDispatcher.addMapEventListener(MapEvent.ITEM_REFRESH, itemTrackingListener);
@@ -285,6 +448,213 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
         Log.d(TAG, "MapEventDispatcher listeners registered (best practices)");
     }
 
+    /**
+     * Rebuild the contact set from the map after the event ring overflowed.
+     * Runs on the map event worker thread.
+     */
+    private void resyncContactTracker() {
+        contactTracker.clear();
+        trackStore.clear();
+        breadcrumbs.clear();
+        staleExpiry.clear();
+        seedContactTracker();
+    }
+
+    /**
+     * Apply one coalesced item change to the contact tracker. Runs on the map event worker thread.
+     */
+    private void trackContact(MapEventCoalescer.Entry change) {
+        if (change.uid.equals(mapView.getSelfMarkerUID())) {
+            // Our own marker is never a contact, see seedContactTracker()
+            return;
+        }
+        if (change.change == MapEventCoalescer.Change.REMOVE) {
+            contactTracker.remove(change.uid);
+            releaseTrack(change.uid);
+        } else if (ContactTracker.isTrackableType(change.type)) {
+            storeTrack(change.uid, change.type, change.callsign, change.lat, change.lon, change.hae, change.timeMs);
+            // An expired track comes back with its next report, which carries a new stale time
+            if (!isExpired(change.uid)) {
+                contactTracker.update(change.uid, change.type, change.callsign,
+                        change.lat, change.lon, change.hae, change.timeMs);
+            }
+        } else {
+            // e.g. a marker retyped into a waypoint
+            contactTracker.remove(change.uid);
+            releaseTrack(change.uid);
+        }
+    }
+
+    /**
+     * Stale time of a CoT event that just arrived. Called on the comms thread,
+     * usually just before the map event for the same item.
+     */
+    public void onCotStale(String uid, String type, long staleMs) {
+        if (staleMs <= 0 || !ContactTracker.isTrackableType(type)) {
+            return;
+        }
+        cotStaleTimes.put(uid, staleMs);
+    }
+
+    /**
+     * Mirror a contact into the plugin-wide track store. The stored affiliation
+     * is looked up once when the track is first seen; later changes arrive
+     * through {@link AffiliationManager#setAffiliation}.
+     */
+    private void storeTrack(String uid, String type, String callsign, double lat, double lon, double hae,
+                            long timeMs) {
+        Long staleMs = cotStaleTimes.remove(uid);
+        storeTrack(uid, type, callsign, lat, lon, hae, timeMs, staleMs != null ? staleMs : 0);
+    }
+
+    /**
+     * @param staleMs Wall-clock CoT stale time, or 0 to keep the track's current
+     *                one; tracks never given a stale time do not expire
+     */
+    private void storeTrack(String uid, String type, String callsign, double lat, double lon, double hae,
+                            long timeMs, long staleMs) {
+        int handle = trackStore.find(uid);
+        if (handle == TrackStore.NONE) {
+            handle = trackStore.intern(uid);
+            AffiliationManager affiliations = AffiliationManager.getInstance(pluginContext);
+            AffiliationData data = affiliations != null ? affiliations.getAffiliation(uid) : null;
+            if (data != null) {
+                trackStore.setAffiliation(handle, data.getAffiliation());
+            }
+        }
+        trackStore.setType(handle, type);
+        trackStore.setCallsign(handle, callsign);
+        trackStore.updatePosition(handle, lat, lon, hae, timeMs);
+        if (staleMs > 0) {
+            trackStore.setStale(handle, staleMs);
+            staleExpiry.schedule(handle, staleMs);
+        }
+        breadcrumbs.record(handle, lat, lon, hae, timeMs);
+    }
+
+    private void releaseTrack(String uid) {
+        cotStaleTimes.remove(uid);
+        // The handle may be reused by the next interned UID, so drop its history and timer with it
+        int handle = trackStore.release(uid);
+        breadcrumbs.remove(handle);
+        staleExpiry.cancel(handle);
+    }
+
+    /**
+     * A track passed its stale time without a refresh. Dropping it from the
+     * contact tracker makes the next contact delta send the HUD a delete,
+     * even though ATAK keeps showing the stale item. The track store row and
+     * its breadcrumbs stay until ITEM_REMOVED; the next fresh report brings
+     * the contact back. Runs on the map event worker thread.
+     */
+    private void expireTrack(int handle) {
+        String uid = trackStore.getUid(handle);
+        if (uid != null) {
+            contactTracker.remove(uid);
+        }
+    }
+
+    /**
+     * True if the track's CoT stale time has passed
+     */
+    private boolean isExpired(String uid) {
+        int handle = trackStore.find(uid);
+        if (handle == TrackStore.NONE) {
+            return false;
+        }
+        long staleMs = trackStore.getStaleMs(handle);
+        return staleMs > 0 && staleMs <= System.currentTimeMillis();
+    }
+
+    /**
+     * Compile and apply new stream filter rules, keeping them for the next session.
+     * See {@link StreamFilter} for the rule syntax.
+     * @throws IllegalArgumentException if a rule does not compile; the current filter is kept
+     */
+    public void setStreamFilterRules(String rules) {
+        streamFilter = StreamFilter.compile(rules, this::findAreaVertices);
+        pluginContext.getSharedPreferences(FILTER_PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().putString(KEY_FILTER_RULES, rules).apply();
+        Log.d(TAG, "Stream filter updated:\n" + rules);
+    }
+
+    public String getStreamFilterRules() {
+        return streamFilter.getSource();
+    }
+
+    private void loadStreamFilter() {
+        String rules = pluginContext.getSharedPreferences(FILTER_PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_FILTER_RULES, "");
+        try {
+            streamFilter = StreamFilter.compile(rules, this::findAreaVertices);
+        } catch (IllegalArgumentException e) {
+            // e.g. an aoi rule whose shape has since been deleted
+            Log.w(TAG, "Ignoring saved stream filter: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Vertices of the shape with this UID or title, for aoi filter rules
+     */
+    private double[] findAreaVertices(final String name) {
+        MapGroup root = mapView.getRootGroup();
+        if (root == null) {
+            return null;
+        }
+        MapItem item = root.deepFindUID(name);
+        final Shape[] found = { item instanceof Shape ? (Shape) item : null };
+        if (found[0] == null) {
+            root.deepForEachItem(new MapGroup.MapItemsCallback() {
+                @Override
+                public boolean onItemFunction(MapItem candidate) {
+                    if (candidate instanceof Shape && name.equalsIgnoreCase(candidate.getTitle())) {
+                        found[0] = (Shape) candidate;
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        }
+        GeoPoint[] points = found[0] != null ? found[0].getPoints() : null;
+        if (points == null) {
+            return null;
+        }
+        double[] vertices = new double[points.length * 2];
+        for (int i = 0; i < points.length; i++) {
+            vertices[2 * i] = points[i].getLatitude();
+            vertices[2 * i + 1] = points[i].getLongitude();
+        }
+        return vertices;
+    }
+
+    /**
+     * One-time scan for items that were on the map before our listeners were registered
+     */
+    private void seedContactTracker() {
+        contactTracker.setSelfUid(mapView.getSelfMarkerUID());
+        if (mapView.getRootGroup() == null) {
+            return;
+        }
+        mapView.getRootGroup().deepForEachItem(new MapGroup.MapItemsCallback() {
+            @Override
+            public boolean onItemFunction(MapItem item) {
+                if (ContactTracker.isTrackable(item)) {
+                    PointMapItem point = (PointMapItem) item;
+                    contactTracker.update(point);
+                    GeoPoint p = point.getPoint();
+                    if (p != null && !point.getUID().equals(mapView.getSelfMarkerUID())) {
+                        storeTrack(point.getUID(), point.getType(), point.getTitle(), p.getLatitude(), p.getLongitude(),
+                                p.getAltitude(), System.currentTimeMillis());
+                    }
+                } else if (item instanceof Route) {
+                    waypointStreamer.updateRoute((Route) item);
+                }
+                return false;
+            }
+        });
+        Log.d(TAG, "Contact tracker seeded with " + contactTracker.getTrackedCount() + " items");
+    }
+
     private void refreshDeviceList() {
         if (usbManager == null || deviceAdapter == null) {
             Log.e(TAG, "Cannot refresh device list - usbManager or deviceAdapter is null");
@@ -353,6 +723,7 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
         UsbDevice selectedDevice = availableDevices.get(selectedPosition);
         Log.d(TAG, "Connecting to device: " + selectedDevice.getDeviceName());
 
+        applySerialParameters();
         usbManager.requestConnectionToDevice(selectedDevice);
     }
 
@@ -377,6 +748,7 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             if (btnDisconnect != null) btnDisconnect.setEnabled(true);
             if (switchEnableStreaming != null) switchEnableStreaming.setEnabled(true);
             if (btnTestConnection != null) btnTestConnection.setEnabled(true);
+            if (btnExportMetrics != null) btnExportMetrics.setEnabled(true);
         } else {
             if (txtConnectionStatus != null) {
                 txtConnectionStatus.setText("Not Connected");
@@ -393,13 +765,13 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
                 switchEnableStreaming.setChecked(false);
             }
             if (btnTestConnection != null) btnTestConnection.setEnabled(false);
+            if (btnExportMetrics != null) btnExportMetrics.setEnabled(false);
         }
     }
 
     /**
-     * Start streaming position data to HUD using event-driven updates (best practices)
-     * Primary updates come from MAP_MOVED events (event-driven)
-     * Fallback polling at low rate ensures updates even when map is stationary
+     * Start streaming position data to HUD at the rate selected in the update rate spinner.
+     * Ticks run on the streaming scheduler thread; self marker point changes request an extra tick.
      */
     private void startStreaming() {
         if (usbManager == null || !usbManager.isConnected()) {
@@ -411,40 +783,176 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
         }
 
         isStreaming = true;
+        // Fresh filter per session so the first tick always sends and stats start at zero
+        positionFilter = new PositionChangeFilter();
+        motionEstimator = new MotionEstimator();
+        contactTracker.resetStream();
+        waypointStreamer.resetStream();
+
+        double rateHz = getSelectedUpdateRateHz();
+        profileController.setSelectedRate(rateHz);
+        StreamingProfile profile = profileController.start(SystemClock.elapsedRealtime());
+        contactTracker.setMaxContacts(profile.getMaxContacts());
+        streamingScheduler.setDebounce(SELF_MOVE_DEBOUNCE_MS);
+        streamingScheduler.start(profile.effectiveRate(rateHz));
+        observeSelfMarker(mapView.getSelfMarker());
+        applyHeadingRate(profile.getHeadingRateHz());
+
+        Toast.makeText(pluginContext, "Started streaming data to HUD at " + formatRate(rateHz), Toast.LENGTH_SHORT).show();
+        Log.d(TAG, "Started streaming at " + rateHz + " Hz");
+    }
 
-        // Event-driven updates via MAP_MOVED are primary (already registered in setupMapEventListeners)
-        // Add fallback polling at low rate for GPS updates when map is stationary
-        long fallbackIntervalMs = 1000; // 1 Hz fallback (much lower than old polling rate)
-
-        streamingRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (isStreaming && usbManager.isConnected()) {
-                    // Fallback update (most updates come from MAP_MOVED events)
-                    sendCurrentPositionToHUD();
-                    streamingHandler.postDelayed(this, fallbackIntervalMs);
-                }
-            }
-        };
-
-        // Start fallback polling
-        streamingHandler.post(streamingRunnable);
+    /**
+     * Apply a profile chosen by the adaptive controller. Runs on the streaming scheduler thread.
+     */
+    private void applyProfile(StreamingProfile profile) {
+        if (!isStreaming) {
+            return;
+        }
+        streamingScheduler.setRate(profile.effectiveRate(profileController.getSelectedRate()));
+        contactTracker.setMaxContacts(profile.getMaxContacts());
+        applyHeadingRate(profile.getHeadingRateHz());
+    }
 
-        Toast.makeText(pluginContext, "Started streaming data to HUD (event-driven)", Toast.LENGTH_SHORT).show();
-        Log.d(TAG, "Started event-driven streaming with 1Hz fallback (ATAK best practices)");
+    /**
+     * Start heading frames at the given rate, or stop them and their sensor for 0
+     */
+    private void applyHeadingRate(double rateHz) {
+        if (rateHz > 0 && headingStreamer.start(rateHz)) {
+            // Heading has its own frames, so turning alone no longer warrants a full position frame
+            positionFilter.setHeadingThreshold(180.0);
+        } else {
+            headingStreamer.stop();
+            positionFilter.setHeadingThreshold(PositionChangeFilter.DEFAULT_HEADING_DEG);
+        }
     }
 
     private void stopStreaming() {
         isStreaming = false;
-        if (streamingRunnable != null && streamingHandler != null) {
-            streamingHandler.removeCallbacks(streamingRunnable);
+        observeSelfMarker(null);
+        if (streamingScheduler != null) {
+            streamingScheduler.stop();
+        }
+        if (headingStreamer != null) {
+            headingStreamer.stop();
         }
-        if (txtHUDPreview != null) {
-            txtHUDPreview.setText("Streaming stopped");
+        clearHUDContacts();
+        clearHUDWaypoints();
+        if (previewRenderer != null) {
+            // Replaces any frame from the last tick that has not been rendered yet
+            previewRenderer.publish("Streaming stopped");
         }
         Log.d(TAG, "Stopped streaming");
     }
 
+    /**
+     * Drop queued contact frames and queue deletes for every contact the HUD shows
+     */
+    private void clearHUDContacts() {
+        List<String> shown = contactTracker.resetStream();
+        if (usbManager == null) {
+            return;
+        }
+        usbManager.clearLane(SendPriority.CONTACTS);
+        if (usbManager.isConnected()) {
+            for (String uid : shown) {
+                usbManager.sendContactRemoval(uid);
+            }
+        }
+    }
+
+    /**
+     * Drop queued waypoint frames and queue deletes for every cue the HUD shows
+     */
+    private void clearHUDWaypoints() {
+        List<String> shown = waypointStreamer.resetStream();
+        if (usbManager == null) {
+            return;
+        }
+        usbManager.clearLane(SendPriority.WAYPOINTS);
+        if (usbManager.isConnected()) {
+            for (String uid : shown) {
+                usbManager.sendRemoval(uid, SendPriority.WAYPOINTS);
+            }
+        }
+    }
+
+    /**
+     * Move the point-change listener to the given self marker (null detaches).
+     * ATAK can replace the self marker, e.g. when GPS first locks, so ticks re-check it.
+     */
+    private synchronized void observeSelfMarker(PointMapItem marker) {
+        PointMapItem current = observedSelfMarker;
+        if (current == marker || (marker != null && !isStreaming)) {
+            // Never attach after stopStreaming() has detached
+            return;
+        }
+        if (current != null) {
+            current.removeOnPointChangedListener(selfPointListener);
+        }
+        if (marker != null) {
+            marker.addOnPointChangedListener(selfPointListener);
+        }
+        observedSelfMarker = marker;
+    }
+
+    /**
+     * Update rate in Hz from the spinner; entries are labelled "<n> Hz (...)"
+     */
+    private double getSelectedUpdateRateHz() {
+        if (spinnerUpdateRate == null) {
+            return DEFAULT_UPDATE_RATE_HZ;
+        }
+        String[] rates = pluginContext.getResources().getStringArray(R.array.update_rates);
+        int position = spinnerUpdateRate.getSelectedItemPosition();
+        if (position < 0 || position >= rates.length) {
+            return DEFAULT_UPDATE_RATE_HZ;
+        }
+        try {
+            return Double.parseDouble(rates[position].trim().split(" ")[0]);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Cannot parse update rate: " + rates[position]);
+            return DEFAULT_UPDATE_RATE_HZ;
+        }
+    }
+
+    /**
+     * Hand the selected serial rate and flow control to the USB manager for the
+     * next connect, and keep them for the next session
+     */
+    private void applySerialParameters() {
+        int baudRate = UsbSerialDriver.DEFAULT_BAUD_RATE;
+        if (spinnerBaudRate != null) {
+            String[] rates = pluginContext.getResources().getStringArray(R.array.baud_rates);
+            int position = spinnerBaudRate.getSelectedItemPosition();
+            if (position >= 0 && position < rates.length) {
+                baudRate = parseBaudRate(rates[position]);
+            }
+        }
+        boolean flowControl = switchFlowControl != null && switchFlowControl.isChecked();
+        usbManager.setSerialParameters(baudRate, flowControl);
+        pluginContext.getSharedPreferences(SERIAL_PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_BAUD_RATE, baudRate)
+                .putBoolean(KEY_FLOW_CONTROL, flowControl)
+                .apply();
+    }
+
+    private static int parseBaudRate(String item) {
+        try {
+            return Integer.parseInt(item.trim().split(" ")[0]);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Cannot parse baud rate: " + item);
+            return UsbSerialDriver.DEFAULT_BAUD_RATE;
+        }
+    }
+
+    private static String formatRate(double rateHz) {
+        return (rateHz == Math.rint(rateHz) ? String.valueOf((long) rateHz) : String.valueOf(rateHz)) + " Hz";
+    }
+
+    /**
+     * Encode and queue the current self position. Runs on the streaming scheduler thread.
+     */
     private void sendCurrentPositionToHUD() {
         if (usbManager == null || mapView == null) {
             Log.e(TAG, "Cannot send position - usbManager or mapView is null");
@@ -455,11 +963,12 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             // Get self marker from ATAK
             PointMapItem selfMarker = mapView.getSelfMarker();
             if (selfMarker == null) {
-                if (txtHUDPreview != null) {
-                    txtHUDPreview.setText("ERROR: Cannot get self position");
-                }
+                previewRenderer.publish("ERROR: Cannot get self position");
                 return;
             }
+            if (selfMarker != observedSelfMarker) {
+                observeSelfMarker(selfMarker);
+            }
 
             GeoPoint selfPoint = selfMarker.getPoint();
             String callsign = mapView.getDeviceCallsign();
@@ -467,38 +976,227 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             double lat = selfPoint.getLatitude();
             double lon = selfPoint.getLongitude();
             double alt = selfPoint.getAltitude();
-            // Get heading from ATAK MapView metadata (device bearing from GPS/sensors)
-            double heading = mapView.getMapData().getMetaDouble("mockLocationBearing", 0.0);
+            long now = SystemClock.elapsedRealtime();
+            headingStreamer.updateDeclination(lat, lon, alt, now);
+            double heading = getCurrentHeading();
+
+            MotionEstimator motion = motionEstimator;
+            motion.observe(lat, lon, getFixTimeMs(), now);
+            double speed = motion.getSpeed();
+            double course = motion.getCourse();
+            profileController.update(speed, now);
+
+            // Skip encoding while the HUD's own extrapolation is still close enough
+            PositionChangeFilter filter = positionFilter;
+            if (!filter.shouldEmit(lat, lon, alt, heading, speed, course, now)) {
+                return;
+            }
 
             // Send to HUD
-            boolean success = usbManager.sendPosition(lat, lon, alt, heading, callsign);
+            boolean success = usbManager.sendPosition(lat, lon, alt, heading, speed, course, callsign, getFixNanos());
 
-            // Update preview
+            // Publish raw values; the preview renderer formats them on the UI thread at its own rate
             if (success) {
-                String previewText = String.format(
+                previewRenderer.publish(() -> String.format(
                     "STREAMING TO HUD:\n" +
                     "Callsign: %s\n" +
                     "Lat: %.6f°\n" +
                     "Lon: %.6f°\n" +
                     "Alt: %.1f m\n" +
-                    "Hdg: %.1f°",
-                    callsign, lat, lon, alt, heading
-                );
-                if (txtHUDPreview != null) {
-                    txtHUDPreview.setText(previewText);
-                }
+                    "Hdg: %.1f°\n" +
+                    "Spd: %.1f m/s  Crs: %.0f°\n" +
+                    "Suppressed: %.0f%% of %d frames",
+                    callsign, lat, lon, alt, heading, speed, course,
+                    filter.getSuppressedPercent(), filter.getEvaluatedCount()
+                ) + formatWaypointSummary() + formatContactSummary());
             } else {
-                if (txtHUDPreview != null) {
-                    txtHUDPreview.setText("ERROR: Failed to send data");
-                }
+                previewRenderer.publish("ERROR: Failed to send data");
                 Log.e(TAG, "Failed to send position to HUD");
             }
 
         } catch (Exception e) {
             Log.e(TAG, "Error sending position to HUD", e);
-            if (txtHUDPreview != null) {
-                txtHUDPreview.setText("ERROR: " + e.getMessage());
+            previewRenderer.publish("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * System.nanoTime() of the latest GPS fix ATAK has placed the self marker
+     * from, or 0 if it has not reported one; stamped on position frames for
+     * fix-to-display latency
+     */
+    private long getFixNanos() {
+        long fixMs = getFixTimeMs();
+        long ageMs = SystemClock.elapsedRealtime() - fixMs;
+        if (fixMs <= 0 || ageMs < 0) {
+            return 0;
+        }
+        return System.nanoTime() - ageMs * 1000000L;
+    }
+
+    /**
+     * SystemClock.elapsedRealtime() of the latest GPS fix, or -1 if none has been reported
+     */
+    private long getFixTimeMs() {
+        // The mock stamp covers external GPS sources
+        return Math.max(mapView.getMapData().getMetaLong("fineLocationTime", -1),
+                mapView.getMapData().getMetaLong("mockLocationTime", -1));
+    }
+
+    private String formatContactSummary() {
+        ContactTracker.Delta delta = lastContactDelta;
+        if (!streamsContacts() || delta == null) {
+            return "";
+        }
+        return String.format("\nContacts: %d in view / %d tracked\nLast tick: %d sent, %d removed, %d deferred, %d B%s",
+                delta.inView, contactTracker.getTrackedCount(),
+                delta.changed.size(), delta.removed.size(), delta.deferred, delta.bytes,
+                delta.full ? " (resync)" : "");
+    }
+
+    /**
+     * Sensor heading while heading frames are running, else ATAK's device bearing
+     */
+    private double getCurrentHeading() {
+        float sensorHeading = headingStreamer.getLatestHeading();
+        if (!Float.isNaN(sensorHeading)) {
+            return sensorHeading;
+        }
+        return mapView.getMapData().getMetaDouble("mockLocationBearing", 0.0);
+    }
+
+    private String formatWaypointSummary() {
+        WaypointStreamer.Update update = lastWaypointUpdate;
+        if (!streamsWaypoints() || update == null) {
+            return "";
+        }
+        if (update.routeTitle == null) {
+            return "\nRoute: none visible";
+        }
+        return String.format("\nRoute: %s, next WP %d/%d",
+                update.routeTitle, update.nextIndex + 1, update.waypointCount);
+    }
+
+    private boolean streamsWaypoints() {
+        int type = streamType;
+        return type == STREAM_POSITION_WAYPOINTS || type == STREAM_ALL;
+    }
+
+    private boolean streamsContacts() {
+        int type = streamType;
+        return type == STREAM_POSITION_CONTACTS || type == STREAM_ALL;
+    }
+
+    /**
+     * Queue contacts that changed since the last tick and deletes for those that
+     * left the K nearest within the tracker radius. Runs on the streaming scheduler thread.
+     */
+    private void sendNearbyContactsToHUD() {
+        PointMapItem selfMarker = mapView.getSelfMarker();
+        if (selfMarker == null || selfMarker.getPoint() == null) {
+            return;
+        }
+        GeoPoint self = selfMarker.getPoint();
+        double heading = getCurrentHeading();
+        StreamFilter filter = streamFilter;
+        filter.prepare(self.getLatitude(), self.getLongitude(), System.currentTimeMillis());
+        tickFilter = filter;
+        // A within rule sets how far out contacts are searched for
+        contactTracker.setRadius(filter.getRange(ContactTracker.DEFAULT_RADIUS_M));
+        ContactTracker.Delta delta = contactTracker.nextDelta(
+                self.getLatitude(), self.getLongitude(), heading, SystemClock.elapsedRealtime());
+        for (ContactTracker.Contact contact : delta.changed) {
+            usbManager.sendContact(contact);
+        }
+        for (String uid : delta.removed) {
+            usbManager.sendContactRemoval(uid);
+        }
+        lastContactDelta = delta;
+    }
+
+    /**
+     * Queue range/bearing/ETA cues for the next waypoints of the active route,
+     * only for values whose displayed rounding changed. Runs on the streaming scheduler thread.
+     */
+    private void sendWaypointsToHUD() {
+        PointMapItem selfMarker = mapView.getSelfMarker();
+        if (selfMarker == null || selfMarker.getPoint() == null) {
+            return;
+        }
+        GeoPoint self = selfMarker.getPoint();
+        WaypointStreamer.Update update = waypointStreamer.tick(self.getLatitude(), self.getLongitude(),
+                self.getAltitude(), motionEstimator.getSpeed(), SystemClock.elapsedRealtime());
+        for (String uid : update.removed) {
+            usbManager.sendRemoval(uid, SendPriority.WAYPOINTS);
+        }
+        for (WaypointStreamer.Cue cue : update.changed) {
+            usbManager.sendWaypoint(cue);
+        }
+        lastWaypointUpdate = update;
+    }
+
+    /**
+     * Show the current transport metrics snapshot below the preview
+     */
+    private void updateLinkMetrics() {
+        TransportMetrics metrics = usbManager != null ? usbManager.getMetrics() : null;
+        if (metrics == null || txtLinkMetrics == null) {
+            return;
+        }
+        txtLinkMetrics.setText(metrics.snapshot().toDisplayString() + "\n"
+                + usbManager.getLatencyTracker().snapshot().toDisplayString() + "\n"
+                + streamingScheduler.getStats().toDisplayString() + "\n"
+                + mapEventPipeline.toDisplayString()
+                + (streamFilter.isEmpty() ? "" : "\n" + streamFilter.toDisplayString())
+                + (isStreaming ? "\n" + profileController.getStats(SystemClock.elapsedRealtime()).toDisplayString() : ""));
+    }
+
+    /**
+     * Write the current transport metrics and lane statistics to a JSON file
+     * under the ATAK tools directory so update rates can be sized per adapter
+     */
+    private void exportLinkMetrics() {
+        TransportMetrics metrics = usbManager != null ? usbManager.getMetrics() : null;
+        if (metrics == null) {
+            Toast.makeText(pluginContext, "Not connected to HUD device", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        try {
+            JSONObject json = metrics.snapshot().toJson();
+            HUDDevice device = usbManager.getCurrentDevice();
+            if (device != null) {
+                json.put("device", device.getStatusString());
+            }
+            json.put("lanes", usbManager.getLaneStatsSummary());
+            json.put("scheduler", streamingScheduler.getStats().toJson());
+            json.put("mapEvents", mapEventPipeline.toJson());
+            json.put("trackStore", trackStore.toJson());
+            AffiliationManager affiliations = AffiliationManager.getInstance(pluginContext);
+            if (affiliations != null) {
+                json.put("affiliations", affiliations.getStats());
             }
+            json.put("breadcrumbs", breadcrumbs.toJson());
+            json.put("staleExpiry", staleExpiry.toJson());
+            json.put("profiles", profileController.getStats(SystemClock.elapsedRealtime()).toJson());
+            FrameLatencyTracker latency = usbManager.getLatencyTracker();
+            json.put("endToEnd", latency.snapshot().toJson());
+            json.put("frameLog", latency.exportLog());
+
+            File dir = FileSystemUtils.getItem("tools/omnihud");
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            File file = new File(dir, "link_metrics_" + System.currentTimeMillis() + ".json");
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write(json.toString(2));
+            }
+
+            Toast.makeText(pluginContext, "Link metrics saved to " + file.getName(), Toast.LENGTH_SHORT).show();
+            Log.d(TAG, "Exported link metrics to " + file.getAbsolutePath());
+        } catch (Exception e) {
+            Toast.makeText(pluginContext, "Failed to export link metrics", Toast.LENGTH_SHORT).show();
+            Log.e(TAG, "Error exporting link metrics", e);
         }
     }
 
@@ -514,14 +1212,46 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
         if (success) {
             Toast.makeText(pluginContext, "Test data sent successfully", Toast.LENGTH_SHORT).show();
-            if (txtHUDPreview != null) {
-                txtHUDPreview.setText("TEST DATA SENT:\nLat: 39.2°\nLon: -77.0°\nAlt: 121.0 m\nHdg: 270.0°");
-            }
+            previewRenderer.publish("TEST DATA SENT:\nLat: 39.2°\nLon: -77.0°\nAlt: 121.0 m\nHdg: 270.0°");
         } else {
             Toast.makeText(pluginContext, "Failed to send test data", Toast.LENGTH_SHORT).show();
         }
     }
 
+    /**
+     * Send a geofence breach alert to the HUD ahead of any queued telemetry
+     */
+    private void forwardAlertToHUD(Intent intent) {
+        if (usbManager == null || !usbManager.isConnected()) {
+            return;
+        }
+
+        String fenceUID = intent.getStringExtra("fenceUID");
+        String itemUID = intent.getStringExtra("itemUID");
+        String message = intent.getStringExtra("message");
+
+        // Place the alert at the breaching item if it is on the map, otherwise at self
+        GeoPoint point = null;
+        if (itemUID != null) {
+            MapItem item = mapView.getRootGroup().deepFindUID(itemUID);
+            if (item instanceof PointMapItem) {
+                point = ((PointMapItem) item).getPoint();
+            }
+        }
+        if (point == null && mapView.getSelfMarker() != null) {
+            point = mapView.getSelfMarker().getPoint();
+        }
+        double lat = point != null ? point.getLatitude() : 0.0;
+        double lon = point != null ? point.getLongitude() : 0.0;
+        double hae = point != null ? point.getAltitude() : 0.0;
+
+        String key = fenceUID != null ? fenceUID : "alert";
+        String cotXml = CotFormatter.buildAlertCot(key, message, lat, lon, hae);
+        if (!usbManager.sendAlert(cotXml, key)) {
+            Log.w(TAG, "Failed to queue alert for HUD: " + message);
+        }
+    }
+
     private void showHelpDialog() {
         Toast.makeText(pluginContext,
             "1. Connect HUD via USB-C\n" +
@@ -539,6 +1269,20 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
             return;
         }
 
+        if (action.equals(HUD_ALERT)) {
+            forwardAlertToHUD(intent);
+            return;
+        }
+
+        if (action.equals(SET_STREAM_FILTER)) {
+            try {
+                setStreamFilterRules(intent.getStringExtra("rules"));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Rejected stream filter: " + e.getMessage());
+            }
+            return;
+        }
+
         if (action.equals(SHOW_PLUGIN)) {
             // Check if already open
             if (!isClosed()) {
@@ -560,6 +1304,8 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
     @Override
     public void onDropDownVisible(boolean v) {
+        // Preview and link metrics are only rendered while someone can see them
+        previewRenderer.setVisible(v);
     }
 
     @Override
@@ -568,20 +1314,21 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
 
     @Override
     public void onDropDownClose() {
+        previewRenderer.setVisible(false);
     }
 
     @Override
     protected void disposeImpl() {
         // Stop streaming first
         stopStreaming();
+        if (streamingScheduler != null) {
+            streamingScheduler.dispose();
+        }
+        previewRenderer.dispose();
 
         // Unregister MapEventDispatcher listeners (ATAK best practices)
         // Always clean up event listeners to prevent memory leaks
         if (eventDispatcher != null) {
-            if (selfPositionListener != null) {
-                eventDispatcher.removeMapEventListener(MapEvent.MAP_MOVED, selfPositionListener);
-                Log.d(TAG, "Unregistered MAP_MOVED listener");
-            }
             if (itemTrackingListener != null) {
                 eventDispatcher.removeMapEventListener(MapEvent.ITEM_ADDED, itemTrackingListener);
                 eventDispatcher.removeMapEventListener(MapEvent.ITEM_REMOVED, itemTrackingListener);
@@ -589,6 +1336,11 @@ public class OmniHUDDropDownReceiver extends DropDownReceiver implements DropDow
                 Log.d(TAG, "Unregistered item tracking listeners");
             }
         }
+        if (mapEventPipeline != null) {
+            mapEventPipeline.stop();
+        }
+        // The track store outlives this receiver; its handles have no timers in the next one's expiry wheel
+        trackStore.clear();
 
         // Dispose USB manager
         if (usbManager != null) {
@@ -41,11 +41,14 @@ public class OmniHUDMapComponent extends DropDownMapComponent {
         Log.d(TAG, "Registering OmniHUD DropDownReceiver: " + OmniHUDDropDownReceiver.SHOW_PLUGIN);
         DocumentedIntentFilter ddFilter = new DocumentedIntentFilter();
         ddFilter.addAction(OmniHUDDropDownReceiver.SHOW_PLUGIN, "Show the OmniHUD Dashboard");
+        ddFilter.addAction(OmniHUDDropDownReceiver.HUD_ALERT, "Forward an alert to the connected HUD");
+        ddFilter.addAction(OmniHUDDropDownReceiver.SET_STREAM_FILTER, "Set the rules for which contacts reach the HUD");
         registerDropDownReceiver(dropDownReceiver, ddFilter);
         Log.d(TAG, "Registered OmniHUD DropDownReceiver successfully");
 
         // Register CoT affiliation listener
         affiliationListener = new CotAffiliationListener(pluginContext);
+        affiliationListener.setStaleListener(dropDownReceiver::onCotStale);
         CommsMapComponent.getInstance().registerCommsLogger(affiliationListener);
         Log.d(TAG, "Registered CotAffiliationListener for monitoring CoT messages");
     }
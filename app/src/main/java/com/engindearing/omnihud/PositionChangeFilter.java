@@ -0,0 +1,120 @@
+package com.engindearing.omnihud;
+
+/**
+ * Dead-band filter that suppresses self-position frames the HUD would
+ * render identically to the last one sent.
+ *
+ * Horizontal change is measured against where the HUD will have
+ * extrapolated the last emitted fix with {@link DeadReckoningModel}, so a
+ * wearer moving at a steady speed and course needs no frames at all. A frame
+ * is emitted when that divergence, the altitude change or the heading change
+ * exceeds its threshold, or when nothing has been sent for the heartbeat
+ * interval. The filter runs before
+ * encoding so suppressed ticks cost a handful of arithmetic operations.
+ * Not thread-safe; call from the streaming thread only.
+ */
+public class PositionChangeFilter {
+
+    public static final double DEFAULT_HORIZONTAL_M = 2.0;
+    public static final double DEFAULT_VERTICAL_M = 3.0;
+    public static final double DEFAULT_HEADING_DEG = 2.0;
+    public static final long DEFAULT_MAX_SILENCE_MS = 5000;
+
+    private double horizontalThresholdM = DEFAULT_HORIZONTAL_M;
+    private double verticalThresholdM = DEFAULT_VERTICAL_M;
+    private double headingThresholdDeg = DEFAULT_HEADING_DEG;
+    private long maxSilenceMs = DEFAULT_MAX_SILENCE_MS;
+
+    private final DeadReckoningModel model = new DeadReckoningModel();
+    private double lastAlt;
+    private double lastHeading;
+    private long lastEmitMs;
+
+    private long evaluated;
+    private long suppressed;
+
+    public void setHorizontalThreshold(double meters) {
+        this.horizontalThresholdM = meters;
+    }
+
+    public void setVerticalThreshold(double meters) {
+        this.verticalThresholdM = meters;
+    }
+
+    public void setHeadingThreshold(double degrees) {
+        this.headingThresholdDeg = degrees;
+    }
+
+    public void setMaxSilence(long millis) {
+        this.maxSilenceMs = millis;
+    }
+
+    /**
+     * Decide whether a fix should be sent. If it should, it becomes the new
+     * reference that later fixes are compared against.
+     * @param speed Speed over ground in m/s, as it will be sent in the frame
+     * @param course Course over ground in degrees, as it will be sent in the frame
+     * @return true if the frame should be encoded and sent
+     */
+    public boolean shouldEmit(double lat, double lon, double alt, double heading,
+                              double speed, double course, long nowMs) {
+        evaluated++;
+
+        if (!model.hasReference() || changed(lat, lon, alt, heading, nowMs)
+                || nowMs - lastEmitMs >= maxSilenceMs) {
+            model.setReference(lat, lon, speed, course, nowMs);
+            lastAlt = alt;
+            lastHeading = heading;
+            lastEmitMs = nowMs;
+            return true;
+        }
+
+        suppressed++;
+        return false;
+    }
+
+    private boolean changed(double lat, double lon, double alt, double heading, long nowMs) {
+        if (Math.abs(alt - lastAlt) > verticalThresholdM) {
+            return true;
+        }
+        if (headingDelta(heading, lastHeading) > headingThresholdDeg) {
+            return true;
+        }
+        return model.divergenceMeters(lat, lon, nowMs) > horizontalThresholdM;
+    }
+
+    /**
+     * Smallest absolute difference between two headings, in degrees (0-180)
+     */
+    static double headingDelta(double a, double b) {
+        double d = Math.abs(a - b) % 360.0;
+        return d > 180.0 ? 360.0 - d : d;
+    }
+
+    /**
+     * Forget the last emitted fix so the next call always emits
+     */
+    public void reset() {
+        model.clear();
+    }
+
+    public void resetStats() {
+        evaluated = 0;
+        suppressed = 0;
+    }
+
+    public long getEvaluatedCount() {
+        return evaluated;
+    }
+
+    public long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * Percentage of evaluated frames that were suppressed
+     */
+    public double getSuppressedPercent() {
+        return evaluated > 0 ? 100.0 * suppressed / evaluated : 0.0;
+    }
+}
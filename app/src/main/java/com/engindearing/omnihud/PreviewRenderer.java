@@ -0,0 +1,121 @@
+package com.engindearing.omnihud;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.TextView;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders the dashboard preview at a capped rate, decoupled from the send path.
+ *
+ * Senders {@link #publish} the latest frame into a single atomic slot without
+ * formatting anything; older unrendered frames are simply overwritten. While
+ * the dropdown is visible the UI thread renders the newest frame a few times
+ * per second and only calls setText when the text actually changed, so
+ * streaming rate no longer drives TextView relayouts.
+ */
+public class PreviewRenderer {
+
+    public static final double DEFAULT_RATE_HZ = 4.0;
+
+    /**
+     * Deferred preview content; {@link #render()} runs on the UI thread
+     */
+    public interface Frame {
+        String render();
+    }
+
+    private final AtomicReference<Frame> slot = new AtomicReference<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final TextView target;
+    private final Runnable afterRender;
+    private final long periodMs;
+
+    private boolean visible;
+    private Frame lastFrame;
+    private String lastText;
+    private long renders;
+    private long skippedUnchanged;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!visible) {
+                return;
+            }
+            renderNow();
+            handler.postDelayed(this, periodMs);
+        }
+    };
+
+    /**
+     * @param target View to render into
+     * @param afterRender Extra UI refresh run on every cycle (e.g. link metrics), may be null
+     */
+    public PreviewRenderer(TextView target, Runnable afterRender) {
+        this(target, afterRender, DEFAULT_RATE_HZ);
+    }
+
+    public PreviewRenderer(TextView target, Runnable afterRender, double rateHz) {
+        this.target = target;
+        this.afterRender = afterRender;
+        this.periodMs = Math.max(1, Math.round(1000.0 / rateHz));
+    }
+
+    /**
+     * Replace the pending frame. Safe from any thread; never touches views.
+     */
+    public void publish(Frame frame) {
+        slot.set(frame);
+    }
+
+    public void publish(final String text) {
+        slot.set(() -> text);
+    }
+
+    /**
+     * Start or stop rendering. Call on the UI thread, from onDropDownVisible.
+     */
+    public void setVisible(boolean visible) {
+        if (this.visible == visible) {
+            return;
+        }
+        this.visible = visible;
+        handler.removeCallbacks(refresh);
+        if (visible) {
+            handler.post(refresh);
+        }
+    }
+
+    public void dispose() {
+        visible = false;
+        handler.removeCallbacks(refresh);
+    }
+
+    private void renderNow() {
+        Frame frame = slot.get();
+        if (frame != null && frame != lastFrame) {
+            lastFrame = frame;
+            String text = frame.render();
+            if (text.equals(lastText)) {
+                skippedUnchanged++;
+            } else if (target != null) {
+                target.setText(text);
+                lastText = text;
+                renders++;
+            }
+        }
+        if (afterRender != null) {
+            afterRender.run();
+        }
+    }
+
+    public long getRenderCount() {
+        return renders;
+    }
+
+    public long getSkippedUnchangedCount() {
+        return skippedUnchanged;
+    }
+}
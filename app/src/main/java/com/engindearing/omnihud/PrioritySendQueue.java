@@ -0,0 +1,234 @@
+package com.engindearing.omnihud;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Strict-priority queue of frames waiting for the USB writer thread.
+ *
+ * Each {@link SendPriority} has its own bounded FIFO lane. {@link #take()}
+ * always returns the head of the highest non-empty lane, so an alert only
+ * ever waits behind the frame that is already on the wire. Lower lanes drop
+ * their oldest frame when full rather than building up stale telemetry.
+ *
+ * Keyed frames are counted from enqueue until {@link #complete}, so producers
+ * can check {@link #isPending(String)} and skip work while the previous frame
+ * for the same key is still queued or on the wire.
+ */
+public class PrioritySendQueue {
+
+    private static final SendPriority[] LANES = SendPriority.values();
+
+    private final ArrayDeque<HUDFrame>[] lanes;
+    private final LaneStats[] stats;
+    private final Map<String, Integer> pendingByKey = new HashMap<>();
+    private boolean closed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PrioritySendQueue() {
+        lanes = new ArrayDeque[LANES.length];
+        stats = new LaneStats[LANES.length];
+        for (int i = 0; i < LANES.length; i++) {
+            lanes[i] = new ArrayDeque<>(LANES[i].getCapacity());
+            stats[i] = new LaneStats();
+        }
+    }
+
+    /**
+     * Queue a frame in its lane.
+     * A frame whose coalesce key matches one already queued in the same lane
+     * replaces that frame's payload instead of taking a new slot.
+     * @return false if the queue has been closed
+     */
+    public synchronized boolean offer(HUDFrame frame) {
+        if (closed) {
+            return false;
+        }
+
+        int lane = frame.getPriority().ordinal();
+        ArrayDeque<HUDFrame> queue = lanes[lane];
+        frame.setEnqueueNanos(System.nanoTime());
+        stats[lane].enqueued++;
+
+        String key = frame.getCoalesceKey();
+        if (key != null) {
+            for (HUDFrame queued : queue) {
+                if (key.equals(queued.getCoalesceKey())) {
+                    queued.replacePayload(frame);
+                    stats[lane].coalesced++;
+                    return true;
+                }
+            }
+        }
+
+        if (queue.size() >= frame.getPriority().getCapacity()) {
+            release(queue.pollFirst());
+            stats[lane].dropped++;
+        }
+        queue.addLast(frame);
+        if (key != null) {
+            Integer pending = pendingByKey.get(key);
+            pendingByKey.put(key, pending != null ? pending + 1 : 1);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Block until a frame is available and return the highest-priority one.
+     * @return next frame, or null once the queue is closed
+     */
+    public synchronized HUDFrame take() throws InterruptedException {
+        while (!closed) {
+            for (ArrayDeque<HUDFrame> queue : lanes) {
+                HUDFrame frame = queue.pollFirst();
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * Record that a frame taken from the queue has finished transferring
+     */
+    public synchronized void complete(HUDFrame frame, boolean success) {
+        release(frame);
+        LaneStats lane = stats[frame.getPriority().ordinal()];
+        long latency = System.nanoTime() - frame.getEnqueueNanos();
+        if (success) {
+            lane.sent++;
+        } else {
+            lane.failed++;
+        }
+        lane.totalLatencyNanos += latency;
+        lane.maxLatencyNanos = Math.max(lane.maxLatencyNanos, latency);
+    }
+
+    /**
+     * Drop all queued frames of a lane (e.g. contacts when streaming stops)
+     */
+    public synchronized void clear(SendPriority priority) {
+        releaseAll(lanes[priority.ordinal()]);
+    }
+
+    /**
+     * Drop everything queued. Lane statistics are kept.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<HUDFrame> queue : lanes) {
+            releaseAll(queue);
+        }
+    }
+
+    /**
+     * True while a frame with this coalesce key is queued or taken but not yet completed
+     */
+    public synchronized boolean isPending(String key) {
+        return pendingByKey.containsKey(key);
+    }
+
+    private void releaseAll(ArrayDeque<HUDFrame> queue) {
+        for (HUDFrame frame : queue) {
+            release(frame);
+        }
+        queue.clear();
+    }
+
+    private void release(HUDFrame frame) {
+        String key = frame.getCoalesceKey();
+        if (key == null) {
+            return;
+        }
+        Integer pending = pendingByKey.get(key);
+        if (pending == null || pending <= 1) {
+            pendingByKey.remove(key);
+        } else {
+            pendingByKey.put(key, pending - 1);
+        }
+    }
+
+    /**
+     * Wake the writer and make {@link #take()} return null from now on
+     */
+    public synchronized void close() {
+        closed = true;
+        clear();
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (ArrayDeque<HUDFrame> queue : lanes) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public synchronized int size(SendPriority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    public synchronized void resetStats() {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new LaneStats();
+        }
+    }
+
+    /**
+     * Copy of the statistics for one lane
+     */
+    public synchronized LaneStats getStats(SendPriority priority) {
+        return stats[priority.ordinal()].copy();
+    }
+
+    /**
+     * One line per lane with sent count and average/max enqueue-to-complete latency
+     */
+    public synchronized String getStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LANES.length; i++) {
+            LaneStats lane = stats[i];
+            if (lane.enqueued == 0) {
+                continue;
+            }
+            sb.append(String.format("%-13s sent=%d drop=%d avg=%.1fms max=%.1fms\n",
+                    LANES[i].name(), lane.sent, lane.dropped,
+                    lane.getAverageLatencyMs(), lane.maxLatencyNanos / 1e6));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Counters for a single send lane
+     */
+    public static class LaneStats {
+        public long enqueued;
+        public long coalesced;
+        public long dropped;
+        public long sent;
+        public long failed;
+        public long totalLatencyNanos;
+        public long maxLatencyNanos;
+
+        public double getAverageLatencyMs() {
+            long completed = sent + failed;
+            return completed > 0 ? totalLatencyNanos / 1e6 / completed : 0.0;
+        }
+
+        LaneStats copy() {
+            LaneStats c = new LaneStats();
+            c.enqueued = enqueued;
+            c.coalesced = coalesced;
+            c.dropped = dropped;
+            c.sent = sent;
+            c.failed = failed;
+            c.totalLatencyNanos = totalLatencyNanos;
+            c.maxLatencyNanos = maxLatencyNanos;
+            return c;
+        }
+    }
+}
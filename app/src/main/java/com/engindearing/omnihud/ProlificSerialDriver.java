@@ -0,0 +1,77 @@
+package com.engindearing.omnihud;
+
+import android.hardware.usb.UsbDevice;
+
+/**
+ * Driver for Prolific PL2303 (HX and later) USB-serial chips.
+ * After the vendor start-up sequence the chip accepts the standard CDC
+ * SET_LINE_CODING request; flow control is a vendor register write.
+ */
+public class ProlificSerialDriver extends UsbSerialDriver {
+
+    private static final int VENDOR_READ_REQUEST = 0x01;
+    private static final int VENDOR_WRITE_REQUEST = 0x01;
+
+    private static final int SET_LINE_CODING = 0x20;
+    private static final int SET_CONTROL_LINE_STATE = 0x22;
+
+    private static final int CONTROL_LINE_DTR = 0x01;
+    private static final int CONTROL_LINE_RTS = 0x02;
+
+    // Register 0 of the HX flow control block; 0x61 enables RTS/CTS
+    private static final int FLOW_CONTROL_REG = 0x0000;
+    private static final int FLOW_CONTROL_RTS_CTS = 0x61;
+    private static final int FLOW_CONTROL_NONE = 0x00;
+
+    private static final int MAX_BAUD_RATE = 3000000;
+
+    public ProlificSerialDriver(UsbDevice device) {
+        super(device);
+    }
+
+    @Override
+    public String getChipName() {
+        return "PL2303";
+    }
+
+    @Override
+    public int getMaxBaudRate() {
+        return MAX_BAUD_RATE;
+    }
+
+    @Override
+    public boolean supportsFlowControl() {
+        return true;
+    }
+
+    @Override
+    protected boolean initChip() {
+        // Magic start-up sequence used by the vendor driver
+        byte[] buffer = new byte[1];
+        controlIn(VENDOR_READ_REQUEST, 0x8484, 0, buffer);
+        vendorWrite(0x0404, 0);
+        controlIn(VENDOR_READ_REQUEST, 0x8484, 0, buffer);
+        controlIn(VENDOR_READ_REQUEST, 0x8383, 0, buffer);
+        controlIn(VENDOR_READ_REQUEST, 0x8484, 0, buffer);
+        vendorWrite(0x0404, 1);
+        controlIn(VENDOR_READ_REQUEST, 0x8484, 0, buffer);
+        controlIn(VENDOR_READ_REQUEST, 0x8383, 0, buffer);
+        return vendorWrite(0, 1) && vendorWrite(1, 0) && vendorWrite(2, 0x44);
+    }
+
+    @Override
+    protected boolean applyLineCoding(int baudRate) {
+        return controlOut(REQTYPE_HOST_TO_INTERFACE_CLASS, SET_LINE_CODING, 0, 0, cdcLineCoding(baudRate));
+    }
+
+    @Override
+    protected boolean applyFlowControl(boolean enabled) {
+        return vendorWrite(FLOW_CONTROL_REG, enabled ? FLOW_CONTROL_RTS_CTS : FLOW_CONTROL_NONE)
+                && controlOut(REQTYPE_HOST_TO_INTERFACE_CLASS, SET_CONTROL_LINE_STATE,
+                        CONTROL_LINE_DTR | CONTROL_LINE_RTS, 0);
+    }
+
+    private boolean vendorWrite(int value, int index) {
+        return controlOut(REQTYPE_HOST_TO_DEVICE_VENDOR, VENDOR_WRITE_REQUEST, value, index);
+    }
+}
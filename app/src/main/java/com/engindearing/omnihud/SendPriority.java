@@ -0,0 +1,28 @@
+package com.engindearing.omnihud;
+
+/**
+ * Send lanes for frames going to the HUD, highest priority first.
+ * The send queue always drains a higher lane completely before looking
+ * at a lower one.
+ */
+public enum SendPriority {
+    ALERT(64),
+    TARGET(32),
+    SELF_POSITION(4),
+    WAYPOINTS(16),
+    CONTACTS(128),
+    BACKGROUND(16);
+
+    private final int capacity;
+
+    SendPriority(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Maximum number of frames queued in this lane before the oldest is dropped
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,372 @@
+package com.engindearing.omnihud;
+
+import java.util.Arrays;
+
+/**
+ * Uniform lat/lon grid over point handles for radius, bounding-box and
+ * k-nearest queries.
+ *
+ * Coordinates are stored in primitive arrays indexed by an int handle
+ * returned from {@link #insert}. Each grid cell is an intrusive doubly
+ * linked list through those arrays, and cell heads are found through a
+ * {@link LongIntHashMap}, so moving a point is O(1) and only occupied cells
+ * cost memory. Queries visit just the cells overlapping the search area.
+ * Handles are recycled after {@link #remove}. Longitude wrap at the
+ * antimeridian is not handled. Not thread-safe.
+ */
+public class SpatialIndex {
+
+    /**
+     * Decides during a {@link #nearest} search whether a point may be returned
+     */
+    public interface Accept {
+        boolean accept(int id);
+    }
+
+    /**
+     * About 1.1 km of latitude - a 2 km radius query touches at most 5x5 cells
+     */
+    public static final double DEFAULT_CELL_DEG = 0.01;
+
+    private static final int NONE = -1;
+    private static final double METERS_PER_DEG = DeadReckoningModel.EARTH_RADIUS_M * Math.PI / 180.0;
+
+    private final double cellDeg;
+    private final LongIntHashMap cellHeads;
+
+    private double[] lat;
+    private double[] lon;
+    private long[] cellOf;
+    private int[] next;
+    private int[] prev;
+    private boolean[] live;
+    private int highWater;
+    private int freeHead = NONE;
+    private int size;
+
+    // Reused k-NN heap so queries do not allocate
+    private double[] heapDist = new double[16];
+    private int[] heapId = new int[16];
+
+    public SpatialIndex() {
+        this(DEFAULT_CELL_DEG, 1024);
+    }
+
+    public SpatialIndex(double cellDeg, int initialCapacity) {
+        this.cellDeg = cellDeg;
+        int capacity = Math.max(16, initialCapacity);
+        lat = new double[capacity];
+        lon = new double[capacity];
+        cellOf = new long[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        live = new boolean[capacity];
+        cellHeads = new LongIntHashMap(capacity / 4, NONE);
+    }
+
+    /**
+     * Add a point
+     * @return handle identifying the point until it is removed
+     */
+    public int insert(double latitude, double longitude) {
+        int id;
+        if (freeHead != NONE) {
+            id = freeHead;
+            freeHead = next[id];
+        } else {
+            if (highWater == lat.length) {
+                grow();
+            }
+            id = highWater++;
+        }
+        live[id] = true;
+        lat[id] = latitude;
+        lon[id] = longitude;
+        link(id, cellKey(latitude, longitude));
+        size++;
+        return id;
+    }
+
+    /**
+     * Move a point. Only relinks when it crosses into another cell.
+     */
+    public void update(int id, double latitude, double longitude) {
+        checkLive(id);
+        lat[id] = latitude;
+        lon[id] = longitude;
+        long key = cellKey(latitude, longitude);
+        if (key != cellOf[id]) {
+            unlink(id);
+            link(id, key);
+        }
+    }
+
+    public void remove(int id) {
+        checkLive(id);
+        unlink(id);
+        live[id] = false;
+        next[id] = freeHead;
+        freeHead = id;
+        size--;
+    }
+
+    public void clear() {
+        cellHeads.clear();
+        Arrays.fill(live, 0, highWater, false);
+        highWater = 0;
+        freeHead = NONE;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getLatitude(int id) {
+        return lat[id];
+    }
+
+    public double getLongitude(int id) {
+        return lon[id];
+    }
+
+    /**
+     * Handles of all points within radiusM of the given point, in no particular order
+     * @param out Receives up to out.length handles
+     * @return number of handles written
+     */
+    public int queryRadius(double latitude, double longitude, double radiusM, int[] out) {
+        double dLat = radiusM / METERS_PER_DEG;
+        double dLon = dLat / Math.max(1e-6, Math.cos(Math.toRadians(latitude)));
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        double radiusSq = radiusM * radiusM;
+
+        int count = 0;
+        int row0 = cellIndex(latitude - dLat);
+        int row1 = cellIndex(latitude + dLat);
+        int col0 = cellIndex(longitude - dLon);
+        int col1 = cellIndex(longitude + dLon);
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                for (int id = cellHeads.get(key(row, col)); id != NONE; id = next[id]) {
+                    if (distanceSq(latitude, longitude, cosLat, id) <= radiusSq) {
+                        if (count == out.length) {
+                            return count;
+                        }
+                        out[count++] = id;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Handles of all points inside the box, in no particular order
+     * @return number of handles written to out
+     */
+    public int queryBox(double minLat, double minLon, double maxLat, double maxLon, int[] out) {
+        int count = 0;
+        int row0 = cellIndex(minLat);
+        int row1 = cellIndex(maxLat);
+        int col0 = cellIndex(minLon);
+        int col1 = cellIndex(maxLon);
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                for (int id = cellHeads.get(key(row, col)); id != NONE; id = next[id]) {
+                    if (lat[id] >= minLat && lat[id] <= maxLat && lon[id] >= minLon && lon[id] <= maxLon) {
+                        if (count == out.length) {
+                            return count;
+                        }
+                        out[count++] = id;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The k points nearest the given point within maxRadiusM, closest first.
+     * Searches outward ring by ring and stops once no unvisited cell can
+     * hold anything closer than the current k-th neighbour.
+     * @param out Receives min(k, out.length) handles
+     * @param outDistances Optional, receives the matching distances in metres
+     * @return number of handles written
+     */
+    public int nearest(double latitude, double longitude, int k, double maxRadiusM,
+                       int[] out, double[] outDistances) {
+        return nearest(latitude, longitude, k, maxRadiusM, out, outDistances, null);
+    }
+
+    /**
+     * As above, skipping points the predicate rejects, so the k returned are
+     * the nearest accepted ones. The predicate only sees points in range that
+     * would make the current k nearest.
+     * @param accept May be null to accept every point
+     */
+    public int nearest(double latitude, double longitude, int k, double maxRadiusM,
+                       int[] out, double[] outDistances, Accept accept) {
+        k = Math.min(k, out.length);
+        if (k <= 0 || size == 0) {
+            return 0;
+        }
+        if (heapDist.length < k) {
+            heapDist = new double[k];
+            heapId = new int[k];
+        }
+
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        double maxSq = maxRadiusM * maxRadiusM;
+        // Smallest cell side in metres; a ring r cells out is at least (r - 1) of these away
+        double cellM = cellDeg * METERS_PER_DEG * Math.min(1.0, Math.max(1e-6, cosLat));
+        int centerRow = cellIndex(latitude);
+        int centerCol = cellIndex(longitude);
+        int maxRing = (int) Math.min(Integer.MAX_VALUE / 2, Math.ceil(maxRadiusM / cellM) + 1);
+
+        int found = 0;
+        int visited = 0;
+        for (int ring = 0; ring <= maxRing && visited < size; ring++) {
+            if (found == k) {
+                double bound = (ring - 1) * cellM;
+                if (bound * bound > heapDist[0]) {
+                    break;
+                }
+            }
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int col = centerCol - ring; col <= centerCol + ring; col += Math.max(1, step)) {
+                    for (int id = cellHeads.get(key(row, col)); id != NONE; id = next[id]) {
+                        visited++;
+                        double d = distanceSq(latitude, longitude, cosLat, id);
+                        if (d > maxSq || (found == k && d >= heapDist[0])
+                                || (accept != null && !accept.accept(id))) {
+                            continue;
+                        }
+                        if (found < k) {
+                            heapPush(found++, d, id);
+                        } else if (d < heapDist[0]) {
+                            heapReplaceTop(k, d, id);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Pop the max-heap from the back so results come out closest first
+        for (int n = found; n > 0; n--) {
+            out[n - 1] = heapId[0];
+            if (outDistances != null && n - 1 < outDistances.length) {
+                outDistances[n - 1] = Math.sqrt(heapDist[0]);
+            }
+            heapDist[0] = heapDist[n - 1];
+            heapId[0] = heapId[n - 1];
+            siftDown(0, n - 1);
+        }
+        return found;
+    }
+
+    private void heapPush(int n, double d, int id) {
+        int i = n;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapDist[parent] >= d) {
+                break;
+            }
+            heapDist[i] = heapDist[parent];
+            heapId[i] = heapId[parent];
+            i = parent;
+        }
+        heapDist[i] = d;
+        heapId[i] = id;
+    }
+
+    private void heapReplaceTop(int n, double d, int id) {
+        heapDist[0] = d;
+        heapId[0] = id;
+        siftDown(0, n);
+    }
+
+    private void siftDown(int i, int n) {
+        double d = heapDist[i];
+        int id = heapId[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && heapDist[child + 1] > heapDist[child]) {
+                child++;
+            }
+            if (heapDist[child] <= d) {
+                break;
+            }
+            heapDist[i] = heapDist[child];
+            heapId[i] = heapId[child];
+            i = child;
+        }
+        heapDist[i] = d;
+        heapId[i] = id;
+    }
+
+    private double distanceSq(double latitude, double longitude, double cosLat, int id) {
+        double dy = (lat[id] - latitude) * METERS_PER_DEG;
+        double dx = (lon[id] - longitude) * METERS_PER_DEG * cosLat;
+        return dx * dx + dy * dy;
+    }
+
+    private void link(int id, long key) {
+        int head = cellHeads.get(key);
+        next[id] = head;
+        prev[id] = NONE;
+        if (head != NONE) {
+            prev[head] = id;
+        }
+        cellHeads.put(key, id);
+        cellOf[id] = key;
+    }
+
+    private void unlink(int id) {
+        int p = prev[id];
+        int n = next[id];
+        if (p != NONE) {
+            next[p] = n;
+        } else if (n != NONE) {
+            cellHeads.put(cellOf[id], n);
+        } else {
+            cellHeads.remove(cellOf[id]);
+        }
+        if (n != NONE) {
+            prev[n] = p;
+        }
+    }
+
+    private void grow() {
+        int capacity = lat.length << 1;
+        lat = Arrays.copyOf(lat, capacity);
+        lon = Arrays.copyOf(lon, capacity);
+        cellOf = Arrays.copyOf(cellOf, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        live = Arrays.copyOf(live, capacity);
+    }
+
+    private void checkLive(int id) {
+        if (id < 0 || id >= highWater || !live[id]) {
+            throw new IllegalArgumentException("Unknown handle " + id);
+        }
+    }
+
+    private int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / cellDeg);
+    }
+
+    private long cellKey(double latitude, double longitude) {
+        return key(cellIndex(latitude), cellIndex(longitude));
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+}
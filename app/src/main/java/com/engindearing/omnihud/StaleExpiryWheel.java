@@ -0,0 +1,231 @@
+package com.engindearing.omnihud;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Fires when tracks pass their CoT stale time, without scanning the tracks.
+ *
+ * A hierarchical timer wheel: {@link #LEVELS} wheels of {@link #SLOTS}
+ * slots, one-second ticks at the bottom level and each level above covering
+ * {@link #SLOTS} times the span of the one below (about 64 s, 68 min, 73 h
+ * and 194 days). A timer is placed in the coarsest slot its deadline needs
+ * and cascades down as the wheel turns, so scheduling, cancelling and firing
+ * are O(1) amortized. Timers are intrusive doubly-linked lists over
+ * {@link TrackStore} handles held in int arrays; nothing is allocated per
+ * timer.
+ *
+ * Pushing a stale time later, the common case for a refreshed track, only
+ * rewrites the deadline: the timer stays where it is and is re-placed when
+ * its slot comes up. Deadlines past the top level's span are clamped the
+ * same way. Expired handles are handed to the {@link Listener} from
+ * {@link #advance}; it may schedule or cancel timers, including its own.
+ */
+public class StaleExpiryWheel {
+
+    public interface Listener {
+        void onExpired(int handle);
+    }
+
+    static final long TICK_MS = 1000;
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_SPAN_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+    private static final int NONE = -1;
+
+    private final Listener listener;
+
+    // Head of each slot's list, index level * SLOTS + slot
+    private final int[] heads = new int[LEVELS * SLOTS];
+
+    // Per handle
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+    private int[] slotOf = new int[0];
+    private long[] deadlineMs = new long[0];
+
+    private long currentTick;
+    private int scheduledCount;
+
+    private long scheduled;
+    private long extendedInPlace;
+    private long moved;
+    private long cascaded;
+    private long expired;
+
+    /**
+     * @param nowMs Wall-clock time the wheel starts from
+     */
+    public StaleExpiryWheel(Listener listener, long nowMs) {
+        this.listener = listener;
+        this.currentTick = nowMs / TICK_MS;
+        Arrays.fill(heads, NONE);
+    }
+
+    /**
+     * Set or change a handle's stale time
+     * @param staleMs Wall-clock stale time in milliseconds
+     */
+    public synchronized void schedule(int handle, long staleMs) {
+        ensureHandle(handle);
+        if (slotOf[handle] != NONE) {
+            if (staleMs >= deadlineMs[handle]) {
+                // Later stale: keep the timer where it is, it is re-placed when its slot comes up
+                deadlineMs[handle] = staleMs;
+                extendedInPlace++;
+                return;
+            }
+            unlink(handle);
+            moved++;
+        } else {
+            scheduledCount++;
+            scheduled++;
+        }
+        deadlineMs[handle] = staleMs;
+        place(handle, 1);
+    }
+
+    public synchronized void cancel(int handle) {
+        if (handle >= 0 && handle < slotOf.length && slotOf[handle] != NONE) {
+            unlink(handle);
+            scheduledCount--;
+        }
+    }
+
+    /**
+     * Turn the wheel to {@code nowMs} and fire every timer whose stale time has passed.
+     * Timers fire within one tick after their deadline.
+     */
+    public synchronized void advance(long nowMs) {
+        long target = nowMs / TICK_MS;
+        if (scheduledCount == 0) {
+            currentTick = Math.max(currentTick, target);
+            return;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            cascade(1);
+            int bucket = (int) (currentTick & SLOT_MASK);
+            int handle;
+            while ((handle = heads[bucket]) != NONE) {
+                unlink(handle);
+                if (deadlineTick(handle) > currentTick) {
+                    // Extended in place, or clamped beyond the top level
+                    place(handle, 1);
+                    continue;
+                }
+                scheduledCount--;
+                expired++;
+                listener.onExpired(handle);
+            }
+            if (scheduledCount == 0) {
+                currentTick = target;
+            }
+        }
+    }
+
+    public synchronized boolean isScheduled(int handle) {
+        return handle >= 0 && handle < slotOf.length && slotOf[handle] != NONE;
+    }
+
+    public synchronized int size() {
+        return scheduledCount;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(heads, NONE);
+        Arrays.fill(slotOf, NONE);
+        scheduledCount = 0;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("pending", scheduledCount);
+        json.put("scheduled", scheduled);
+        json.put("extendedInPlace", extendedInPlace);
+        json.put("moved", moved);
+        json.put("cascaded", cascaded);
+        json.put("expired", expired);
+        return json;
+    }
+
+    /**
+     * When a level's lower neighbour wraps, pull its current slot down a level
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+            return;
+        }
+        cascade(level + 1);
+        int bucket = level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        int handle;
+        while ((handle = heads[bucket]) != NONE) {
+            unlink(handle);
+            // Due now lands in the bottom slot about to be fired
+            place(handle, 0);
+            cascaded++;
+        }
+    }
+
+    /**
+     * @param minDelta Earliest tick offset; 1 once the current bottom slot has fired
+     */
+    private void place(int handle, long minDelta) {
+        long delta = deadlineTick(handle) - currentTick;
+        if (delta < minDelta) {
+            delta = minDelta;
+        } else if (delta > MAX_SPAN_TICKS) {
+            delta = MAX_SPAN_TICKS;
+        }
+        long due = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int bucket = level * SLOTS + (int) ((due >>> (SLOT_BITS * level)) & SLOT_MASK);
+        int head = heads[bucket];
+        next[handle] = head;
+        prev[handle] = NONE;
+        if (head != NONE) {
+            prev[head] = handle;
+        }
+        heads[bucket] = handle;
+        slotOf[handle] = bucket;
+    }
+
+    private void unlink(int handle) {
+        int p = prev[handle];
+        int n = next[handle];
+        if (p != NONE) {
+            next[p] = n;
+        } else {
+            heads[slotOf[handle]] = n;
+        }
+        if (n != NONE) {
+            prev[n] = p;
+        }
+        slotOf[handle] = NONE;
+    }
+
+    private long deadlineTick(int handle) {
+        // Round up so a timer never fires before its deadline
+        return (deadlineMs[handle] + TICK_MS - 1) / TICK_MS;
+    }
+
+    private void ensureHandle(int handle) {
+        if (handle < slotOf.length) {
+            return;
+        }
+        int size = Math.max(handle + 1, slotOf.length * 2);
+        int old = slotOf.length;
+        next = Arrays.copyOf(next, size);
+        prev = Arrays.copyOf(prev, size);
+        slotOf = Arrays.copyOf(slotOf, size);
+        Arrays.fill(slotOf, old, size, NONE);
+        deadlineMs = Arrays.copyOf(deadlineMs, size);
+    }
+}
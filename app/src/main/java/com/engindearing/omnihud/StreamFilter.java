@@ -0,0 +1,521 @@
+package com.engindearing.omnihud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which tracks reach the HUD, compiled from user rules.
+ *
+ * One rule per line; a track must pass every rule. {@code #} starts a
+ * comment and a leading {@code not} negates a rule:
+ * <pre>
+ * type a-h, a-u            CoT type starts with any of the prefixes
+ * affiliation assumedHostile pending none
+ * within 5000              metres from the wearer
+ * fresh 120                updated in the last 120 seconds
+ * stale                    past its CoT stale time
+ * moving 1.5               at least 1.5 m/s
+ * callsign ALPHA*          glob, case-insensitive; tracks without one use their UID
+ * aoi Objective North      inside the named area of interest
+ * </pre>
+ * Each rule compiles to a clause with a fixed cost estimate. Clauses run
+ * in order of cost divided by rejection rate, so cheap tests that reject
+ * most tracks go first; the rejection rates start from per-rule guesses
+ * and are re-measured on every {@link #prepare}. Evaluation reads the
+ * {@link TrackStore} columns through its row view and does not allocate:
+ * type prefixes are decided once per interned type id, callsign patterns
+ * reuse one matcher and distance and area tests reject on a bounding box
+ * before doing any trigonometry.
+ *
+ * Not thread-safe; prepare and evaluate on one thread.
+ */
+public class StreamFilter implements TrackStore.RowFilter {
+
+    /**
+     * Resolves {@code aoi} rules when compiling
+     */
+    public interface AreaLookup {
+        /**
+         * @return interleaved lat, lon vertices of the named area, or null if there is none
+         */
+        double[] findArea(String name);
+    }
+
+    private static final double METERS_PER_DEG = DeadReckoningModel.EARTH_RADIUS_M * Math.PI / 180.0;
+    // Observations a clause's prior rejection guess is worth when blending in measured rates
+    private static final double PRIOR_WEIGHT = 100.0;
+
+    private final String source;
+    private final Clause[] clauses;
+
+    private double selfLat;
+    private double selfLon;
+    private double cosSelfLat = 1.0;
+    private long nowMs;
+    private long evaluated;
+    private long accepted;
+
+    private StreamFilter(String source, Clause[] clauses) {
+        this.source = source;
+        this.clauses = clauses;
+        reorder();
+    }
+
+    /**
+     * Compile rules into a filter
+     * @param areas Resolves {@code aoi} rules; may be null if none are used
+     * @throws IllegalArgumentException naming the line of the first bad rule
+     */
+    public static StreamFilter compile(String rules, AreaLookup areas) {
+        List<Clause> clauses = new ArrayList<>();
+        String[] lines = rules != null ? rules.split("\n") : new String[0];
+        for (int n = 0; n < lines.length; n++) {
+            String line = lines[n];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                clauses.add(compileRule(line, areas));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (n + 1) + ": " + e.getMessage());
+            }
+        }
+        return new StreamFilter(rules != null ? rules : "", clauses.toArray(new Clause[0]));
+    }
+
+    /**
+     * A filter that accepts every track
+     */
+    public static StreamFilter acceptAll() {
+        return new StreamFilter("", new Clause[0]);
+    }
+
+    private static Clause compileRule(String line, AreaLookup areas) {
+        boolean negate = false;
+        String[] parts = line.split("\\s+", 2);
+        if (parts[0].equalsIgnoreCase("not")) {
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("'not' needs a rule");
+            }
+            negate = true;
+            parts = parts[1].trim().split("\\s+", 2);
+        }
+        String keyword = parts[0].toLowerCase(Locale.US);
+        String argument = parts.length > 1 ? parts[1].trim() : "";
+
+        Clause clause;
+        switch (keyword) {
+            case "type":
+                clause = new TypeClause(splitList(argument, keyword));
+                break;
+            case "affiliation":
+                clause = new AffiliationClause(splitList(argument, keyword));
+                break;
+            case "within":
+                clause = new WithinClause(parseNumber(argument, keyword));
+                break;
+            case "fresh":
+                clause = new FreshClause((long) (parseNumber(argument, keyword) * 1000));
+                break;
+            case "stale":
+                if (!argument.isEmpty()) {
+                    throw new IllegalArgumentException("'stale' takes no argument");
+                }
+                clause = new StaleClause();
+                break;
+            case "moving":
+                clause = new MovingClause(parseNumber(argument, keyword));
+                break;
+            case "callsign":
+                if (argument.isEmpty()) {
+                    throw new IllegalArgumentException("'callsign' needs a pattern");
+                }
+                clause = new CallsignClause(argument);
+                break;
+            case "aoi":
+                if (argument.isEmpty()) {
+                    throw new IllegalArgumentException("'aoi' needs an area name");
+                }
+                double[] vertices = areas != null ? areas.findArea(argument) : null;
+                if (vertices == null || vertices.length < 6) {
+                    throw new IllegalArgumentException("no area named '" + argument + "'");
+                }
+                clause = new AreaClause(vertices);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown rule '" + parts[0] + "'");
+        }
+        clause.negate = negate;
+        clause.text = line;
+        return clause;
+    }
+
+    private static String[] splitList(String argument, String keyword) {
+        String[] items = argument.split("[,\\s]+");
+        if (argument.isEmpty() || items.length == 0) {
+            throw new IllegalArgumentException("'" + keyword + "' needs at least one value");
+        }
+        return items;
+    }
+
+    private static double parseNumber(String argument, String keyword) {
+        try {
+            double value = Double.parseDouble(argument);
+            if (value < 0 || Double.isNaN(value)) {
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + keyword + "' needs a non-negative number");
+        }
+    }
+
+    /**
+     * Set the wearer's position and the current time for the next evaluations,
+     * and re-order the clauses by the rejection rates measured so far
+     * @param nowMs Wall-clock time
+     */
+    public void prepare(double lat, double lon, long nowMs) {
+        this.selfLat = lat;
+        this.selfLon = lon;
+        this.cosSelfLat = Math.max(0.01, Math.cos(Math.toRadians(lat)));
+        this.nowMs = nowMs;
+        reorder();
+    }
+
+    @Override
+    public boolean accept(TrackStore.Row row) {
+        evaluated++;
+        for (Clause clause : clauses) {
+            clause.evaluated++;
+            if (clause.test(this, row) == clause.negate) {
+                clause.rejected++;
+                return false;
+            }
+        }
+        accepted++;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return clauses.length == 0;
+    }
+
+    /**
+     * Search radius for tracks this filter can accept: the tightest
+     * {@code within} rule, or the given default if there is none
+     */
+    public double getRange(double defaultM) {
+        double range = Double.MAX_VALUE;
+        for (Clause clause : clauses) {
+            if (clause instanceof WithinClause && !clause.negate) {
+                range = Math.min(range, ((WithinClause) clause).radiusM);
+            }
+        }
+        // At least a metre, since rankers normalise distance by the radius
+        return range == Double.MAX_VALUE ? defaultM : Math.max(1.0, range);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Clauses in evaluation order with their measured rejection rates
+     */
+    public String toDisplayString() {
+        if (clauses.length == 0) {
+            return "Stream filter: all tracks";
+        }
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "Stream filter: %d of %d accepted", accepted, evaluated));
+        for (Clause clause : clauses) {
+            sb.append(String.format(Locale.US, "\n  %s (rejects %.0f%%)",
+                    clause.text, clause.rejectRate() * 100.0));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Insertion sort by expected cost per rejection; stable, allocation-free
+     */
+    private void reorder() {
+        for (int i = 1; i < clauses.length; i++) {
+            Clause clause = clauses[i];
+            double rank = clause.rank();
+            int j = i - 1;
+            while (j >= 0 && clauses[j].rank() > rank) {
+                clauses[j + 1] = clauses[j];
+                j--;
+            }
+            clauses[j + 1] = clause;
+        }
+    }
+
+    private abstract static class Clause {
+        // Relative cost of one test, about one column read per unit
+        final double cost;
+        // Guessed share of tracks the rule rejects, before any are measured
+        final double priorRejectRate;
+        boolean negate;
+        String text;
+        long evaluated;
+        long rejected;
+
+        Clause(double cost, double priorRejectRate) {
+            this.cost = cost;
+            this.priorRejectRate = priorRejectRate;
+        }
+
+        abstract boolean test(StreamFilter filter, TrackStore.Row row);
+
+        double rejectRate() {
+            double prior = negate ? 1.0 - priorRejectRate : priorRejectRate;
+            return (rejected + prior * PRIOR_WEIGHT) / (evaluated + PRIOR_WEIGHT);
+        }
+
+        double rank() {
+            return cost / Math.max(0.001, rejectRate());
+        }
+    }
+
+    private static class TypeClause extends Clause {
+        private static final byte UNDECIDED = 0;
+        private static final byte MATCH = 1;
+        private static final byte NO_MATCH = 2;
+
+        private final String[] prefixes;
+        // Decision per interned type id
+        private byte[] decisions = new byte[64];
+
+        TypeClause(String[] prefixes) {
+            super(1.0, 0.6);
+            this.prefixes = prefixes;
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            int id = row.typeId();
+            if (id >= decisions.length) {
+                decisions = Arrays.copyOf(decisions, Math.max(id + 1, decisions.length * 2));
+            }
+            byte decision = decisions[id];
+            if (decision == UNDECIDED) {
+                decision = NO_MATCH;
+                String type = row.type();
+                if (type != null) {
+                    for (String prefix : prefixes) {
+                        if (type.startsWith(prefix)) {
+                            decision = MATCH;
+                            break;
+                        }
+                    }
+                }
+                decisions[id] = decision;
+            }
+            return decision == MATCH;
+        }
+    }
+
+    private static class AffiliationClause extends Clause {
+        // Bit n set when affiliation id n is allowed
+        private final int mask;
+
+        AffiliationClause(String[] names) {
+            super(1.0, 0.7);
+            int bits = 0;
+            for (String name : names) {
+                bits |= 1 << affiliationId(name);
+            }
+            this.mask = bits;
+        }
+
+        private static int affiliationId(String name) {
+            if (name.equalsIgnoreCase("none")) {
+                return 0;
+            }
+            for (AffiliationData.Affiliation affiliation : AffiliationData.Affiliation.values()) {
+                if (affiliation.getValue().equalsIgnoreCase(name)) {
+                    return affiliation.ordinal() + 1;
+                }
+            }
+            throw new IllegalArgumentException("unknown affiliation '" + name + "'");
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            return (mask & (1 << row.affiliationId())) != 0;
+        }
+    }
+
+    private static class WithinClause extends Clause {
+        private final double radiusM;
+        private final double radiusSq;
+        private final double latSpanDeg;
+
+        WithinClause(double radiusM) {
+            super(3.0, 0.8);
+            this.radiusM = radiusM;
+            this.radiusSq = radiusM * radiusM;
+            this.latSpanDeg = radiusM / METERS_PER_DEG;
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            double dLat = row.lat() - filter.selfLat;
+            if (dLat > latSpanDeg || dLat < -latSpanDeg) {
+                return false;
+            }
+            double north = dLat * METERS_PER_DEG;
+            double east = (row.lon() - filter.selfLon) * METERS_PER_DEG * filter.cosSelfLat;
+            if (east > radiusM || east < -radiusM) {
+                return false;
+            }
+            return north * north + east * east <= radiusSq;
+        }
+    }
+
+    private static class FreshClause extends Clause {
+        private final long maxAgeMs;
+
+        FreshClause(long maxAgeMs) {
+            super(1.0, 0.3);
+            this.maxAgeMs = maxAgeMs;
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            return filter.nowMs - row.updatedMs() <= maxAgeMs;
+        }
+    }
+
+    private static class StaleClause extends Clause {
+        StaleClause() {
+            super(1.0, 0.9);
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            long stale = row.staleMs();
+            return stale > 0 && stale <= filter.nowMs;
+        }
+    }
+
+    private static class MovingClause extends Clause {
+        private final float minSpeed;
+
+        MovingClause(double minSpeed) {
+            super(1.0, 0.5);
+            this.minSpeed = (float) minSpeed;
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            return row.speed() >= minSpeed;
+        }
+    }
+
+    private static class CallsignClause extends Clause {
+        // Set when the glob is a plain prefix like "ALPHA*"
+        private final String prefix;
+        private final Matcher matcher;
+
+        CallsignClause(String glob) {
+            super(isPrefixGlob(glob) ? 2.0 : 20.0, 0.8);
+            if (isPrefixGlob(glob)) {
+                prefix = glob.substring(0, glob.length() - 1);
+                matcher = null;
+            } else {
+                prefix = null;
+                matcher = Pattern.compile(globToRegex(glob), Pattern.CASE_INSENSITIVE).matcher("");
+            }
+        }
+
+        private static boolean isPrefixGlob(String glob) {
+            int star = glob.indexOf('*');
+            return star == glob.length() - 1 && glob.indexOf('?') < 0;
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            int literalStart = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char ch = glob.charAt(i);
+                if (ch == '*' || ch == '?') {
+                    if (i > literalStart) {
+                        regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                    }
+                    regex.append(ch == '*' ? ".*" : ".");
+                    literalStart = i + 1;
+                }
+            }
+            if (literalStart < glob.length()) {
+                regex.append(Pattern.quote(glob.substring(literalStart)));
+            }
+            return regex.toString();
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            String callsign = row.callsign();
+            if (callsign == null) {
+                callsign = row.uid();
+            }
+            if (prefix != null) {
+                return callsign.regionMatches(true, 0, prefix, 0, prefix.length());
+            }
+            return matcher.reset(callsign).matches();
+        }
+    }
+
+    private static class AreaClause extends Clause {
+        private final double[] lats;
+        private final double[] lons;
+        private double minLat = Double.MAX_VALUE;
+        private double maxLat = -Double.MAX_VALUE;
+        private double minLon = Double.MAX_VALUE;
+        private double maxLon = -Double.MAX_VALUE;
+
+        AreaClause(double[] vertices) {
+            super(4.0 + vertices.length / 8.0, 0.9);
+            int n = vertices.length / 2;
+            lats = new double[n];
+            lons = new double[n];
+            for (int v = 0; v < n; v++) {
+                lats[v] = vertices[2 * v];
+                lons[v] = vertices[2 * v + 1];
+                minLat = Math.min(minLat, lats[v]);
+                maxLat = Math.max(maxLat, lats[v]);
+                minLon = Math.min(minLon, lons[v]);
+                maxLon = Math.max(maxLon, lons[v]);
+            }
+        }
+
+        @Override
+        boolean test(StreamFilter filter, TrackStore.Row row) {
+            double lat = row.lat();
+            double lon = row.lon();
+            if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+                return false;
+            }
+            // Even-odd ray cast along the latitude line
+            boolean inside = false;
+            for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+                if ((lats[i] > lat) != (lats[j] > lat)
+                        && lon < (lons[j] - lons[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lons[i]) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+}
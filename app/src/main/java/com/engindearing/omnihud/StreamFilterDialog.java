@@ -0,0 +1,53 @@
+package com.engindearing.omnihud;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.widget.EditText;
+import android.widget.Toast;
+
+/**
+ * Editor for the stream filter rules, opened from the dashboard's settings button.
+ * See {@link StreamFilter} for the rule syntax.
+ */
+public class StreamFilterDialog {
+
+    private static final String EXAMPLE_RULES = "type a-h, a-u\nwithin 5000\nnot stale";
+
+    private final Context context;
+    private final OmniHUDDropDownReceiver receiver;
+
+    /**
+     * @param context Activity context, so the dialog has a window token
+     */
+    public StreamFilterDialog(Context context, OmniHUDDropDownReceiver receiver) {
+        this.context = context;
+        this.receiver = receiver;
+    }
+
+    public void show() {
+        final EditText editRules = new EditText(context);
+        editRules.setText(receiver.getStreamFilterRules());
+        editRules.setHint(EXAMPLE_RULES);
+        editRules.setMinLines(6);
+
+        final AlertDialog dialog = new AlertDialog.Builder(context)
+                .setTitle("Stream Filter")
+                .setMessage("One rule per line; a contact must pass every rule. Leave empty to stream all contacts.")
+                .setView(editRules)
+                .setPositiveButton("Save", null)
+                .setNegativeButton("Cancel", null)
+                .create();
+        dialog.show();
+
+        // Set after show() so a rule that does not compile keeps the dialog open
+        dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(v -> {
+            try {
+                receiver.setStreamFilterRules(editRules.getText().toString());
+                Toast.makeText(context, "Stream filter saved", Toast.LENGTH_SHORT).show();
+                dialog.dismiss();
+            } catch (IllegalArgumentException e) {
+                editRules.setError(e.getMessage());
+            }
+        });
+    }
+}
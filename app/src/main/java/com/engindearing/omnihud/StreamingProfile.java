@@ -0,0 +1,42 @@
+package com.engindearing.omnihud;
+
+/**
+ * Streaming rate and payload limits chosen by {@link AdaptiveProfileController},
+ * richest first. The operator's selected rate is an upper bound; a profile
+ * only ever lowers it.
+ */
+public enum StreamingProfile {
+    VEHICLE(10.0, ContactTracker.DEFAULT_MAX_CONTACTS, HeadingStreamer.DEFAULT_RATE_HZ),
+    WALKING(5.0, ContactTracker.DEFAULT_MAX_CONTACTS, HeadingStreamer.DEFAULT_RATE_HZ),
+    STATIONARY(1.0, ContactTracker.DEFAULT_MAX_CONTACTS, 10.0),
+    SAVER(1.0, 8, 5.0),
+    CRITICAL(0.5, 3, 0.0);
+
+    private final double maxRateHz;
+    private final int maxContacts;
+    private final double headingRateHz;
+
+    StreamingProfile(double maxRateHz, int maxContacts, double headingRateHz) {
+        this.maxRateHz = maxRateHz;
+        this.maxContacts = maxContacts;
+        this.headingRateHz = headingRateHz;
+    }
+
+    /**
+     * Position tick rate for this profile given the operator's selected rate
+     */
+    public double effectiveRate(double selectedHz) {
+        return Math.min(selectedHz, maxRateHz);
+    }
+
+    public int getMaxContacts() {
+        return maxContacts;
+    }
+
+    /**
+     * Heading frame rate, 0 to turn heading frames and their sensor off
+     */
+    public double getHeadingRateHz() {
+        return headingRateHz;
+    }
+}
@@ -0,0 +1,323 @@
+package com.engindearing.omnihud;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.atakmap.coremap.log.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fixed-rate tick source for HUD streaming, running on its own HandlerThread
+ * so encoding and USB hand-off never touch the UI thread.
+ *
+ * Tick deadlines are computed from the start time (start + n * period) rather
+ * than chained postDelayed calls, so per-tick jitter does not accumulate into
+ * drift. If the thread falls more than a full period behind, the missed ticks
+ * are skipped instead of being delivered in a burst.
+ *
+ * Event-driven ticks from {@link #requestTick()} are debounced: requests
+ * that arrive while one is pending collapse into it, and consecutive
+ * requested ticks are spaced at least the debounce interval apart.
+ *
+ * With a {@link BusyCheck} installed, a tick that finds the previous frame
+ * still in flight is skipped rather than stacking another send behind it; the
+ * next tick that finds the link free sends the then-current state, so the
+ * skipped update is merged rather than lost. {@link #getStats()} compares the
+ * requested rate with the rate ticks were actually delivered at.
+ */
+public class StreamingScheduler {
+
+    private static final String TAG = StreamingScheduler.class.getSimpleName();
+    private static final long STATS_WINDOW_MS = 2000;
+
+    /**
+     * Reports whether the previous tick's output is still being sent
+     */
+    public interface BusyCheck {
+        boolean isBusy();
+    }
+
+    public interface TickListener {
+        /**
+         * Called on the scheduler thread
+         * @param scheduled true for fixed-rate ticks, false for ticks requested with {@link #requestTick()}
+         */
+        void onTick(boolean scheduled);
+    }
+
+    private final TickListener listener;
+    private volatile BusyCheck busyCheck;
+    private HandlerThread thread;
+    private Handler handler;
+
+    private volatile double rateHz;
+    private long periodMs;
+    private long anchorUptimeMs;
+    private long tickIndex;
+    private long skippedTicks;
+    private volatile boolean running;
+    private long debounceMs;
+    private boolean requestPending;
+    private long lastRequestedUptimeMs;
+    private long coalescedRequests;
+    private long busySkips;
+    private long deliveredTicks;
+    private long statsBaseTicks;
+    private long statsBaseUptimeMs;
+    private double effectiveHz;
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            // A fixed-rate tick already sends the latest state, so it satisfies a pending request
+            cancelPendingRequest();
+            deliver(true);
+            scheduleNext();
+        }
+    };
+
+    private final Runnable requestedTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StreamingScheduler.this) {
+                requestPending = false;
+                lastRequestedUptimeMs = SystemClock.uptimeMillis();
+            }
+            if (!running) {
+                return;
+            }
+            deliver(false);
+        }
+    };
+
+    public StreamingScheduler(TickListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Skip ticks while the check reports busy; null delivers every tick
+     */
+    public void setBusyCheck(BusyCheck busyCheck) {
+        this.busyCheck = busyCheck;
+    }
+
+    private void deliver(boolean scheduled) {
+        BusyCheck check = busyCheck;
+        if (check != null && check.isBusy()) {
+            synchronized (this) {
+                busySkips++;
+            }
+            return;
+        }
+        synchronized (this) {
+            deliveredTicks++;
+        }
+        try {
+            listener.onTick(scheduled);
+        } catch (Exception e) {
+            Log.e(TAG, "Error in " + (scheduled ? "streaming" : "requested streaming") + " tick", e);
+        }
+    }
+
+    /**
+     * Start ticking at the given rate. Restarts the schedule if already running.
+     */
+    public synchronized void start(double hz) {
+        statsBaseTicks = deliveredTicks;
+        statsBaseUptimeMs = SystemClock.uptimeMillis();
+        effectiveHz = 0.0;
+        if (thread == null) {
+            thread = new HandlerThread("OmniHUD-Streaming", Process.THREAD_PRIORITY_DISPLAY);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        running = true;
+        setRate(hz);
+        Log.d(TAG, "Streaming scheduler started at " + hz + " Hz");
+    }
+
+    /**
+     * Change the tick rate. Takes effect from the next tick, re-anchoring the schedule.
+     */
+    public synchronized void setRate(double hz) {
+        if (hz <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + hz);
+        }
+        rateHz = hz;
+        periodMs = Math.max(1, Math.round(1000.0 / hz));
+        if (running && handler != null) {
+            handler.removeCallbacks(tickRunnable);
+            anchorUptimeMs = SystemClock.uptimeMillis();
+            tickIndex = 0;
+            handler.post(tickRunnable);
+        }
+    }
+
+    /**
+     * Minimum spacing between requested ticks. 0 delivers every request immediately.
+     */
+    public synchronized void setDebounce(long millis) {
+        this.debounceMs = Math.max(0, millis);
+    }
+
+    /**
+     * Run one extra tick outside the fixed-rate schedule, as soon as the
+     * debounce interval allows. Requests made while one is pending are coalesced.
+     */
+    public synchronized void requestTick() {
+        if (!running || handler == null) {
+            return;
+        }
+        if (requestPending) {
+            coalescedRequests++;
+            return;
+        }
+        requestPending = true;
+        long earliest = lastRequestedUptimeMs + debounceMs;
+        if (earliest > SystemClock.uptimeMillis()) {
+            handler.postAtTime(requestedTickRunnable, earliest);
+        } else {
+            handler.post(requestedTickRunnable);
+        }
+    }
+
+    private synchronized void cancelPendingRequest() {
+        if (requestPending && handler != null) {
+            handler.removeCallbacks(requestedTickRunnable);
+            requestPending = false;
+            coalescedRequests++;
+        }
+    }
+
+    /**
+     * Post arbitrary work onto the scheduler thread
+     */
+    public synchronized boolean post(Runnable work) {
+        return running && handler != null && handler.post(work);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        requestPending = false;
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
+        }
+        Log.d(TAG, "Streaming scheduler stopped");
+    }
+
+    /**
+     * Stop and release the thread
+     */
+    public synchronized void dispose() {
+        stop();
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public double getRateHz() {
+        return rateHz;
+    }
+
+    public synchronized long getSkippedTicks() {
+        return skippedTicks;
+    }
+
+    /**
+     * Tick requests absorbed by an already pending or fixed-rate tick
+     */
+    public synchronized long getCoalescedRequests() {
+        return coalescedRequests;
+    }
+
+    /**
+     * Ticks dropped because the previous frame was still in flight
+     */
+    public synchronized long getBusySkips() {
+        return busySkips;
+    }
+
+    /**
+     * Counters plus the delivered tick rate over the last couple of seconds
+     */
+    public synchronized Stats getStats() {
+        long now = SystemClock.uptimeMillis();
+        Stats stats = new Stats();
+        stats.requestedHz = running ? rateHz : 0.0;
+        long elapsed = now - statsBaseUptimeMs;
+        // The dashboard polls several times a second; measure over a wider window
+        if (elapsed >= STATS_WINDOW_MS) {
+            effectiveHz = (deliveredTicks - statsBaseTicks) * 1000.0 / elapsed;
+            statsBaseTicks = deliveredTicks;
+            statsBaseUptimeMs = now;
+        }
+        stats.effectiveHz = running ? effectiveHz : 0.0;
+        stats.deliveredTicks = deliveredTicks;
+        stats.busySkips = busySkips;
+        stats.lateSkips = skippedTicks;
+        stats.coalescedRequests = coalescedRequests;
+        return stats;
+    }
+
+    /**
+     * Scheduler counters at one point in time
+     */
+    public static class Stats {
+        public double requestedHz;
+        public double effectiveHz;
+        public long deliveredTicks;
+        public long busySkips;
+        public long lateSkips;
+        public long coalescedRequests;
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("requestedHz", requestedHz);
+            json.put("effectiveHz", effectiveHz);
+            json.put("deliveredTicks", deliveredTicks);
+            json.put("busySkips", busySkips);
+            json.put("lateSkips", lateSkips);
+            json.put("coalescedRequests", coalescedRequests);
+            return json;
+        }
+
+        /**
+         * One line for the dashboard. Busy skips mean the link is the bottleneck,
+         * late skips mean the scheduler thread is.
+         */
+        public String toDisplayString() {
+            return String.format("Ticks: %.1f/%.1f Hz, busy skip=%d late skip=%d",
+                    effectiveHz, requestedHz, busySkips, lateSkips);
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        if (!running || handler == null) {
+            return;
+        }
+        tickIndex++;
+        long next = anchorUptimeMs + tickIndex * periodMs;
+        long now = SystemClock.uptimeMillis();
+        if (now - next >= periodMs) {
+            // Fell behind by at least a whole period - skip ahead rather than burst
+            long behind = (now - next) / periodMs;
+            skippedTicks += behind;
+            tickIndex += behind;
+            next = anchorUptimeMs + tickIndex * periodMs;
+        }
+        handler.postAtTime(tickRunnable, next);
+    }
+}
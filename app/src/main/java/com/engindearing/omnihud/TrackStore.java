@@ -0,0 +1,500 @@
+package com.engindearing.omnihud;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plugin-wide store of per-track state in primitive columns.
+ *
+ * Each UID is interned once to a dense int handle; released handles are
+ * reused. State lives in parallel primitive arrays indexed by handle, split
+ * into fixed-size chunks so growth allocates one more chunk instead of
+ * copying every column. Lookups and {@link #scan} then touch contiguous
+ * memory without boxing. A track costs about 55 bytes of columns plus up to
+ * 16 bytes of UID table, so 100k tracks fit in under 8 MB.
+ *
+ * CoT types are interned to small ids; affiliations are stored as
+ * {@link AffiliationData.Affiliation} ordinal + 1, with 0 meaning none.
+ * All methods are synchronized; scans hold the lock for their duration.
+ */
+public class TrackStore {
+
+    public static final int NONE = -1;
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private static TrackStore instance;
+
+    /**
+     * Visitor for {@link #scan}
+     */
+    public interface Scan {
+        void visit(int handle);
+    }
+
+    /**
+     * Predicate for {@link #select}
+     */
+    public interface RowFilter {
+        boolean accept(Row row);
+    }
+
+    /**
+     * Read-only view of the track being tested. Reads the columns directly,
+     * so it is only valid inside {@link #select} or {@link #test}.
+     */
+    public final class Row {
+        private int handle;
+        private int c;
+        private int i;
+
+        private Row() {
+        }
+
+        void moveTo(int handle) {
+            this.handle = handle;
+            this.c = handle >>> CHUNK_BITS;
+            this.i = handle & CHUNK_MASK;
+        }
+
+        public int handle() {
+            return handle;
+        }
+
+        public String uid() {
+            return uids[handle];
+        }
+
+        public String callsign() {
+            return callsigns[handle];
+        }
+
+        public double lat() {
+            return lat[c][i];
+        }
+
+        public double lon() {
+            return lon[c][i];
+        }
+
+        public float speed() {
+            return speed[c][i];
+        }
+
+        public long updatedMs() {
+            return updatedMs[c][i];
+        }
+
+        public long staleMs() {
+            return staleMs[c][i];
+        }
+
+        /**
+         * Interned type id, stable for the life of the store; 0 means no type
+         */
+        public int typeId() {
+            return typeId[c][i];
+        }
+
+        public String type() {
+            return types[typeId[c][i]];
+        }
+
+        /**
+         * {@link AffiliationData.Affiliation} ordinal + 1, or 0 for none
+         */
+        public int affiliationId() {
+            return affiliationId[c][i];
+        }
+    }
+
+    // UID -> handle, open addressing over parallel arrays
+    private String[] tableKeys;
+    private int[] tableValues;
+    private int tableMask;
+    private int tableResizeAt;
+
+    private String[] uids = new String[0];
+    private String[] callsigns = new String[0];
+    private double[][] lat = new double[0][];
+    private double[][] lon = new double[0][];
+    private float[][] hae = new float[0][];
+    private float[][] course = new float[0][];
+    private float[][] speed = new float[0][];
+    private long[][] updatedMs = new long[0][];
+    private long[][] staleMs = new long[0][];
+    private short[][] typeId = new short[0][];
+    private byte[][] affiliationId = new byte[0][];
+
+    private int[] freeHandles = new int[16];
+    private int freeCount;
+    private int highWater;
+    private int size;
+
+    private final Map<String, Short> typeIds = new HashMap<>();
+    private String[] types = new String[16];
+    private int typeCount;
+
+    private final Row row = new Row();
+
+    public static synchronized TrackStore getInstance() {
+        if (instance == null) {
+            instance = new TrackStore();
+        }
+        return instance;
+    }
+
+    public TrackStore() {
+        allocateTable(1024);
+        // Type id 0 means no type
+        typeCount = 1;
+    }
+
+    /**
+     * Handle for a UID, creating the track if it is new
+     */
+    public synchronized int intern(String uid) {
+        int i = tableSlot(uid);
+        while (tableKeys[i] != null) {
+            if (tableKeys[i].equals(uid)) {
+                return tableValues[i];
+            }
+            i = (i + 1) & tableMask;
+        }
+
+        int handle = freeCount > 0 ? freeHandles[--freeCount] : highWater++;
+        if ((handle >>> CHUNK_BITS) >= lat.length) {
+            addChunk();
+        }
+        uids[handle] = uid;
+        clearRow(handle);
+        tableKeys[i] = uid;
+        tableValues[i] = handle;
+        size++;
+        if (size >= tableResizeAt) {
+            allocateTable(tableKeys.length * 2);
+        }
+        return handle;
+    }
+
+    /**
+     * Handle for a UID, or {@link #NONE} if it is not tracked
+     */
+    public synchronized int find(String uid) {
+        if (uid == null) {
+            return NONE;
+        }
+        int i = tableSlot(uid);
+        while (tableKeys[i] != null) {
+            if (tableKeys[i].equals(uid)) {
+                return tableValues[i];
+            }
+            i = (i + 1) & tableMask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Forget a track; its handle may be handed to the next new UID
+     * @return the released handle, or {@link #NONE} if the UID was not tracked
+     */
+    public synchronized int release(String uid) {
+        int i = tableSlot(uid);
+        while (tableKeys[i] != null) {
+            if (tableKeys[i].equals(uid)) {
+                int handle = tableValues[i];
+                deleteSlot(i);
+                uids[handle] = null;
+                if (freeCount == freeHandles.length) {
+                    freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+                }
+                freeHandles[freeCount++] = handle;
+                size--;
+                return handle;
+            }
+            i = (i + 1) & tableMask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Record a position report. Course and speed are derived from the previous
+     * report when there is one.
+     */
+    public synchronized void updatePosition(int handle, double newLat, double newLon, double newHae, long timeMs) {
+        int c = handle >>> CHUNK_BITS;
+        int i = handle & CHUNK_MASK;
+        long previousMs = updatedMs[c][i];
+        if (previousMs > 0 && timeMs > previousMs) {
+            double north = (newLat - lat[c][i]) * DeadReckoningModel.EARTH_RADIUS_M * Math.PI / 180.0;
+            double east = (newLon - lon[c][i]) * DeadReckoningModel.EARTH_RADIUS_M * Math.PI / 180.0
+                    * Math.cos(Math.toRadians(newLat));
+            speed[c][i] = (float) (Math.sqrt(north * north + east * east) * 1000.0 / (timeMs - previousMs));
+            if (north != 0 || east != 0) {
+                double bearing = Math.toDegrees(Math.atan2(east, north));
+                course[c][i] = (float) (bearing < 0 ? bearing + 360.0 : bearing);
+            }
+        }
+        lat[c][i] = newLat;
+        lon[c][i] = newLon;
+        hae[c][i] = Double.isNaN(newHae) ? Float.NaN : (float) newHae;
+        updatedMs[c][i] = timeMs;
+    }
+
+    public synchronized void setStale(int handle, long staleTimeMs) {
+        staleMs[handle >>> CHUNK_BITS][handle & CHUNK_MASK] = staleTimeMs;
+    }
+
+    public synchronized void setType(int handle, String type) {
+        typeId[handle >>> CHUNK_BITS][handle & CHUNK_MASK] = internType(type);
+    }
+
+    public synchronized void setAffiliation(int handle, AffiliationData.Affiliation affiliation) {
+        affiliationId[handle >>> CHUNK_BITS][handle & CHUNK_MASK] =
+                (byte) (affiliation != null ? affiliation.ordinal() + 1 : 0);
+    }
+
+    public synchronized void setCallsign(int handle, String callsign) {
+        callsigns[handle] = callsign;
+    }
+
+    public synchronized String getCallsign(int handle) {
+        return callsigns[handle];
+    }
+
+    public synchronized String getUid(int handle) {
+        return uids[handle];
+    }
+
+    public synchronized double getLat(int handle) {
+        return lat[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized double getLon(int handle) {
+        return lon[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized double getHae(int handle) {
+        return hae[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized float getCourse(int handle) {
+        return course[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized float getSpeed(int handle) {
+        return speed[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized long getUpdatedMs(int handle) {
+        return updatedMs[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized long getStaleMs(int handle) {
+        return staleMs[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+    }
+
+    public synchronized String getType(int handle) {
+        return types[typeId[handle >>> CHUNK_BITS][handle & CHUNK_MASK]];
+    }
+
+    /**
+     * Affiliation, or null if none has been assigned
+     */
+    public synchronized AffiliationData.Affiliation getAffiliation(int handle) {
+        int id = affiliationId[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+        return id > 0 ? AffiliationData.Affiliation.values()[id - 1] : null;
+    }
+
+    /**
+     * Visit every live handle in handle order
+     */
+    public synchronized void scan(Scan visitor) {
+        for (int handle = 0; handle < highWater; handle++) {
+            if (uids[handle] != null) {
+                visitor.visit(handle);
+            }
+        }
+    }
+
+    /**
+     * Collect the handles of live tracks the filter accepts, in handle order,
+     * holding the lock once for the whole pass
+     * @return number of handles written, at most {@code out.length}
+     */
+    public synchronized int select(RowFilter filter, int[] out) {
+        int count = 0;
+        for (int handle = 0; handle < highWater && count < out.length; handle++) {
+            if (uids[handle] != null) {
+                row.moveTo(handle);
+                if (filter.accept(row)) {
+                    out[count++] = handle;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Test one track against a filter
+     * @return false if the UID is not tracked
+     */
+    public synchronized boolean test(String uid, RowFilter filter) {
+        int handle = find(uid);
+        if (handle == NONE) {
+            return false;
+        }
+        row.moveTo(handle);
+        return filter.accept(row);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(tableKeys, null);
+        Arrays.fill(uids, null);
+        Arrays.fill(callsigns, null);
+        freeCount = 0;
+        highWater = 0;
+        size = 0;
+    }
+
+    /**
+     * Bytes held by the columns and the UID table, excluding the UID strings themselves
+     */
+    public synchronized long estimateBytes() {
+        long perRow = 8 + 8 + 4 + 4 + 4 + 8 + 8 + 2 + 1 + 4 + 4; // columns plus uid and callsign references
+        long perSlot = 4 + 4;
+        return (long) lat.length * CHUNK_SIZE * perRow + (long) tableKeys.length * perSlot
+                + freeHandles.length * 4L;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("tracks", size);
+        json.put("handles", highWater);
+        json.put("chunks", lat.length);
+        json.put("types", typeCount - 1);
+        json.put("estimatedBytes", estimateBytes());
+        return json;
+    }
+
+    private short internType(String type) {
+        if (type == null) {
+            return 0;
+        }
+        Short id = typeIds.get(type);
+        if (id != null) {
+            return id;
+        }
+        if (typeCount == Short.MAX_VALUE) {
+            // Pathological type churn; keep the track but drop its type
+            return 0;
+        }
+        if (typeCount == types.length) {
+            types = Arrays.copyOf(types, typeCount * 2);
+        }
+        short newId = (short) typeCount++;
+        types[newId] = type;
+        typeIds.put(type, newId);
+        return newId;
+    }
+
+    private void clearRow(int handle) {
+        int c = handle >>> CHUNK_BITS;
+        int i = handle & CHUNK_MASK;
+        callsigns[handle] = null;
+        lat[c][i] = 0;
+        lon[c][i] = 0;
+        hae[c][i] = Float.NaN;
+        course[c][i] = 0;
+        speed[c][i] = 0;
+        updatedMs[c][i] = 0;
+        staleMs[c][i] = 0;
+        typeId[c][i] = 0;
+        affiliationId[c][i] = 0;
+    }
+
+    private void addChunk() {
+        int chunks = lat.length + 1;
+        uids = Arrays.copyOf(uids, chunks * CHUNK_SIZE);
+        callsigns = Arrays.copyOf(callsigns, chunks * CHUNK_SIZE);
+        lat = Arrays.copyOf(lat, chunks);
+        lon = Arrays.copyOf(lon, chunks);
+        hae = Arrays.copyOf(hae, chunks);
+        course = Arrays.copyOf(course, chunks);
+        speed = Arrays.copyOf(speed, chunks);
+        updatedMs = Arrays.copyOf(updatedMs, chunks);
+        staleMs = Arrays.copyOf(staleMs, chunks);
+        typeId = Arrays.copyOf(typeId, chunks);
+        affiliationId = Arrays.copyOf(affiliationId, chunks);
+        int c = chunks - 1;
+        lat[c] = new double[CHUNK_SIZE];
+        lon[c] = new double[CHUNK_SIZE];
+        hae[c] = new float[CHUNK_SIZE];
+        course[c] = new float[CHUNK_SIZE];
+        speed[c] = new float[CHUNK_SIZE];
+        updatedMs[c] = new long[CHUNK_SIZE];
+        staleMs[c] = new long[CHUNK_SIZE];
+        typeId[c] = new short[CHUNK_SIZE];
+        affiliationId[c] = new byte[CHUNK_SIZE];
+    }
+
+    private int tableSlot(String uid) {
+        int h = uid.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & tableMask;
+    }
+
+    private void allocateTable(int capacity) {
+        String[] oldKeys = tableKeys;
+        int[] oldValues = tableValues;
+        tableKeys = new String[capacity];
+        tableValues = new int[capacity];
+        tableMask = capacity - 1;
+        tableResizeAt = (int) (capacity * LOAD_FACTOR);
+        if (oldKeys == null) {
+            return;
+        }
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = tableSlot(oldKeys[j]);
+                while (tableKeys[i] != null) {
+                    i = (i + 1) & tableMask;
+                }
+                tableKeys[i] = oldKeys[j];
+                tableValues[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Backward-shift deletion, as in {@link LongIntHashMap}
+     */
+    private void deleteSlot(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & tableMask;
+            String key = tableKeys[i];
+            if (key == null) {
+                break;
+            }
+            int home = tableSlot(key);
+            // Move the entry back if its home slot is not cyclically inside (hole, i]
+            if (((i - home) & tableMask) >= ((i - hole) & tableMask)) {
+                tableKeys[hole] = key;
+                tableValues[hole] = tableValues[i];
+                hole = i;
+            }
+        }
+        tableKeys[hole] = null;
+    }
+}
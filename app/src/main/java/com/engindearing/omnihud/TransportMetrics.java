@@ -0,0 +1,175 @@
+package com.engindearing.omnihud;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transport counters for one HUD device session.
+ *
+ * Writers (the USB send thread) only do atomic updates and readers (the
+ * dashboard) never take a lock, so metrics can be polled at any rate.
+ * {@link #snapshot()} freezes the counters into an immutable {@link Snapshot}
+ * with rates computed since the previous snapshot.
+ */
+public class TransportMetrics {
+
+    private final long sessionStartNanos = System.nanoTime();
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong partialWrites = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong negativeReturns = new AtomicLong();
+    private final AtomicInteger queueDepthHighWater = new AtomicInteger();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicReference<Snapshot> lastSnapshot = new AtomicReference<>();
+
+    /**
+     * Classify the result of one bulkTransfer call.
+     * Android returns -1 for both errors and timeouts, so a negative result
+     * that took at least the timeout is counted as a timeout.
+     * @param requested Bytes passed to bulkTransfer
+     * @param result bulkTransfer return value
+     * @param elapsedNanos Time spent inside bulkTransfer
+     * @param timeoutMs Timeout passed to bulkTransfer
+     */
+    public void recordTransfer(int requested, int result, long elapsedNanos, int timeoutMs) {
+        if (result < 0) {
+            if (elapsedNanos >= timeoutMs * 1000000L) {
+                timeouts.incrementAndGet();
+            } else {
+                negativeReturns.incrementAndGet();
+            }
+            return;
+        }
+        if (result < requested) {
+            partialWrites.incrementAndGet();
+        } else {
+            framesSent.incrementAndGet();
+        }
+        bytesSent.addAndGet(result);
+    }
+
+    /**
+     * Record the time from enqueue to transfer complete for one frame
+     */
+    public void recordLatency(long nanos) {
+        latency.recordNanos(nanos);
+    }
+
+    /**
+     * Record the send queue depth seen at enqueue time
+     */
+    public void recordQueueDepth(int depth) {
+        int high = queueDepthHighWater.get();
+        while (depth > high && !queueDepthHighWater.compareAndSet(high, depth)) {
+            high = queueDepthHighWater.get();
+        }
+    }
+
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * Capture the current counters. Frame and byte rates are averaged over
+     * the time since the previous snapshot, or since the session started.
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        Snapshot previous = lastSnapshot.get();
+
+        Snapshot s = new Snapshot();
+        s.timestampMs = System.currentTimeMillis();
+        s.sessionSeconds = (now - sessionStartNanos) / 1e9;
+        s.framesSent = framesSent.get();
+        s.bytesSent = bytesSent.get();
+        s.partialWrites = partialWrites.get();
+        s.timeouts = timeouts.get();
+        s.negativeReturns = negativeReturns.get();
+        s.queueDepthHighWater = queueDepthHighWater.get();
+        s.latencyCount = latency.getCount();
+        s.latencyMeanMs = latency.getMeanMicros() / 1000.0;
+        s.latencyP50Ms = latency.getPercentileMicros(50) / 1000.0;
+        s.latencyP90Ms = latency.getPercentileMicros(90) / 1000.0;
+        s.latencyP99Ms = latency.getPercentileMicros(99) / 1000.0;
+        s.latencyMaxMs = latency.getMaxMicros() / 1000.0;
+        s.nanoTime = now;
+
+        long sinceNanos = previous != null ? now - previous.nanoTime : now - sessionStartNanos;
+        long baseFrames = previous != null ? previous.framesSent : 0;
+        long baseBytes = previous != null ? previous.bytesSent : 0;
+        double seconds = sinceNanos / 1e9;
+        if (seconds > 0) {
+            s.framesPerSecond = (s.framesSent - baseFrames) / seconds;
+            s.bytesPerSecond = (s.bytesSent - baseBytes) / seconds;
+        }
+
+        lastSnapshot.set(s);
+        return s;
+    }
+
+    /**
+     * Immutable view of the transport counters at one point in time
+     */
+    public static class Snapshot {
+        public long timestampMs;
+        public double sessionSeconds;
+        public long framesSent;
+        public long bytesSent;
+        public double framesPerSecond;
+        public double bytesPerSecond;
+        public long partialWrites;
+        public long timeouts;
+        public long negativeReturns;
+        public int queueDepthHighWater;
+        public long latencyCount;
+        public double latencyMeanMs;
+        public double latencyP50Ms;
+        public double latencyP90Ms;
+        public double latencyP99Ms;
+        public double latencyMaxMs;
+        private long nanoTime;
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("timestamp", timestampMs);
+            json.put("sessionSeconds", sessionSeconds);
+            json.put("framesSent", framesSent);
+            json.put("bytesSent", bytesSent);
+            json.put("framesPerSecond", framesPerSecond);
+            json.put("bytesPerSecond", bytesPerSecond);
+            json.put("partialWrites", partialWrites);
+            json.put("timeouts", timeouts);
+            json.put("negativeReturns", negativeReturns);
+            json.put("queueDepthHighWater", queueDepthHighWater);
+            json.put("latencyCount", latencyCount);
+            json.put("latencyMeanMs", latencyMeanMs);
+            json.put("latencyP50Ms", latencyP50Ms);
+            json.put("latencyP90Ms", latencyP90Ms);
+            json.put("latencyP99Ms", latencyP99Ms);
+            json.put("latencyMaxMs", latencyMaxMs);
+            return json;
+        }
+
+        /**
+         * Compact multi-line summary for the dashboard
+         */
+        public String toDisplayString() {
+            return String.format(
+                    "Link: %.1f fps, %.1f kB/s\n" +
+                    "Latency p50/p90/p99: %.1f/%.1f/%.1f ms\n" +
+                    "Errors: partial=%d timeout=%d fail=%d\n" +
+                    "Queue high-water: %d",
+                    framesPerSecond, bytesPerSecond / 1024.0,
+                    latencyP50Ms, latencyP90Ms, latencyP99Ms,
+                    partialWrites, timeouts, negativeReturns,
+                    queueDepthHighWater);
+        }
+    }
+}
@@ -14,21 +14,43 @@ import com.atakmap.coremap.log.Log;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages USB communication with HUD devices.
  * Handles device discovery, permissions, and connection lifecycle.
+ * Outgoing frames go through a strict-priority send queue drained by a
+ * single writer thread, so alerts overtake queued telemetry.
+ * Every frame gets a sequence number; a reader thread collects the device's
+ * display acks for {@link FrameLatencyTracker}. The sequence sentence only
+ * goes on the wire once the device has sent an ack, so firmware that does
+ * not know it keeps receiving plain CoT.
  */
 public class USBCommunicationManager {
 
     private static final String TAG = USBCommunicationManager.class.getSimpleName();
+    // Coalesce key of self position frames
+    static final String SELF_POSITION_KEY = "self";
+    private static final int ACK_READ_TIMEOUT_MS = 200;
+    private static final int MAX_ACK_LINE = 64;
+    // disconnect() runs on the UI thread; the device is closed first, so workers exit quickly
+    private static final long THREAD_JOIN_MS = 100;
     private static final String ACTION_USB_PERMISSION = "com.engindearing.omnihud.USB_PERMISSION";
 
     private Context context;
     private UsbManager usbManager;
-    private HUDDevice currentDevice;
+    private volatile HUDDevice currentDevice;
     private List<HUDDevice> supportedDevices;
 
+    // Send pipeline: frames are queued by lane and written by one thread
+    private final PrioritySendQueue sendQueue = new PrioritySendQueue();
+    private Thread sendThread;
+    private Thread ackThread;
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    // Set once the device has acked, i.e. understands sequence sentences
+    private volatile boolean sequenceAcks;
+    private final FrameLatencyTracker latencyTracker = new FrameLatencyTracker();
+
     private ConnectionListener connectionListener;
 
     private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
@@ -141,6 +163,16 @@ public class USBCommunicationManager {
         this.connectionListener = listener;
     }
 
+    /**
+     * Serial line settings for every HUD driver, applied on the next connect
+     */
+    public void setSerialParameters(int baudRate, boolean flowControl) {
+        for (HUDDevice hudDevice : supportedDevices) {
+            hudDevice.setSerialParameters(baudRate, flowControl);
+        }
+        Log.d(TAG, "Serial parameters: " + baudRate + " baud, flow control " + (flowControl ? "on" : "off"));
+    }
+
     /**
      * Get list of connected USB devices that could be HUD devices
      */
@@ -252,6 +284,11 @@ public class USBCommunicationManager {
 
                 if (hudDevice.connect(device)) {
                     currentDevice = hudDevice;
+                    sendQueue.resetStats();
+                    latencyTracker.reset();
+                    sequenceAcks = false;
+                    startSendThread();
+                    startAckThread();
                     Log.i(TAG, "========================================");
                     Log.i(TAG, "✓✓✓ CONNECTION SUCCESSFUL ✓✓✓");
                     Log.i(TAG, "HUD Device: " + hudDevice.getDeviceName());
@@ -291,8 +328,15 @@ public class USBCommunicationManager {
      * Disconnect from current HUD device
      */
     public void disconnect() {
-        if (currentDevice != null) {
-            currentDevice.disconnect();
+        HUDDevice device = currentDevice;
+        if (device != null) {
+            interrupt(sendThread);
+            interrupt(ackThread);
+            // Closing the connection makes a transfer stuck on an unplugged adapter return
+            // before the workers are joined, instead of after
+            device.disconnect();
+            stopSendThread();
+            stopAckThread();
             currentDevice = null;
 
             if (connectionListener != null) {
@@ -318,27 +362,282 @@ public class USBCommunicationManager {
     }
 
     /**
-     * Send CoT data to the connected HUD device
+     * Queue CoT data for the connected HUD device in the background lane
      */
     public boolean sendCotData(String cotXml) {
+        return sendCotData(cotXml, SendPriority.BACKGROUND, null);
+    }
+
+    /**
+     * Queue CoT data for the connected HUD device
+     * @param priority Send lane
+     * @param coalesceKey Frames with the same key replace each other while queued; null to always append
+     * @return true if the frame was accepted for sending
+     */
+    public boolean sendCotData(String cotXml, SendPriority priority, String coalesceKey) {
         if (currentDevice == null || !currentDevice.isConnected()) {
             Log.w(TAG, "Cannot send data: not connected to HUD device");
             return false;
         }
 
-        return currentDevice.sendCotData(cotXml);
+        return offerFrame(new HUDFrame(priority, coalesceKey, cotXml));
     }
 
     /**
-     * Send position data to the connected HUD device
+     * Queue position data for the connected HUD device.
+     * Only the latest self position is kept if the link falls behind.
      */
     public boolean sendPosition(double lat, double lon, double alt, double heading, String callsign) {
+        return sendPosition(lat, lon, alt, heading, 0.0, heading, callsign, 0L);
+    }
+
+    /**
+     * Queue a self position frame carrying speed and course for HUD-side dead reckoning
+     * @param fixNanos System.nanoTime() of the self-marker fix, or 0 if unknown
+     */
+    public boolean sendPosition(double lat, double lon, double alt, double heading,
+                                double speed, double course, String callsign, long fixNanos) {
         if (currentDevice == null || !currentDevice.isConnected()) {
             Log.w(TAG, "Cannot send position: not connected to HUD device");
             return false;
         }
 
-        return currentDevice.sendPosition(lat, lon, alt, heading, callsign);
+        String cotXml = CotFormatter.buildPositionCot(lat, lon, alt, heading, speed, course, callsign);
+        HUDFrame frame = new HUDFrame(SendPriority.SELF_POSITION, SELF_POSITION_KEY, cotXml);
+        frame.setFixNanos(fixNanos);
+        return offerFrame(frame);
+    }
+
+    /**
+     * Queue a nearby contact. A newer update for the same UID replaces one still queued.
+     */
+    public boolean sendContact(ContactTracker.Contact contact) {
+        return sendCotData(CotFormatter.buildContactCot(contact), SendPriority.CONTACTS, contact.uid);
+    }
+
+    /**
+     * Queue a delete for a contact the HUD should stop showing.
+     * Shares the contact's coalesce key, so it replaces an update still queued.
+     */
+    public boolean sendContactRemoval(String uid) {
+        return sendRemoval(uid, SendPriority.CONTACTS);
+    }
+
+    /**
+     * Queue a route waypoint cue. A newer cue for the same waypoint replaces one still queued.
+     */
+    public boolean sendWaypoint(WaypointStreamer.Cue cue) {
+        return sendCotData(CotFormatter.buildWaypointCot(cue), SendPriority.WAYPOINTS, cue.uid);
+    }
+
+    /**
+     * Queue a delete in the given lane, coalesced with pending frames for the same UID
+     */
+    public boolean sendRemoval(String uid, SendPriority priority) {
+        return sendCotData(CotFormatter.buildDeleteCot(uid), priority, uid);
+    }
+
+    /**
+     * Drop frames still waiting in one lane
+     */
+    public void clearLane(SendPriority priority) {
+        sendQueue.clear(priority);
+    }
+
+    /**
+     * Queue a compact heading sentence (see {@link HeadingStreamer}).
+     * Only the newest heading is kept if the link falls behind. Heading frames
+     * carry no position fix, so they are left out of fix-to-display latency.
+     */
+    public boolean sendHeading(String sentence) {
+        if (currentDevice == null || !currentDevice.isConnected()) {
+            return false;
+        }
+        return offerFrame(new HUDFrame(SendPriority.SELF_POSITION, "heading", sentence));
+    }
+
+    /**
+     * Queue an alert ahead of all telemetry
+     */
+    public boolean sendAlert(String cotXml, String alertKey) {
+        return sendCotData(cotXml, SendPriority.ALERT, alertKey);
+    }
+
+    private boolean offerFrame(HUDFrame frame) {
+        frame.setSequence(nextSequence.getAndIncrement());
+        boolean accepted = sendQueue.offer(frame);
+        HUDDevice device = currentDevice;
+        if (accepted && device != null) {
+            device.getMetrics().recordQueueDepth(sendQueue.size());
+        }
+        return accepted;
+    }
+
+    /**
+     * Transport metrics for the current device session, or null if not connected
+     */
+    public TransportMetrics getMetrics() {
+        HUDDevice device = currentDevice;
+        return device != null ? device.getMetrics() : null;
+    }
+
+    /**
+     * True while the last self position frame is still queued or being transferred
+     */
+    public boolean isPositionInFlight() {
+        return sendQueue.isPending(SELF_POSITION_KEY);
+    }
+
+    /**
+     * Fix-to-display latency from device acks
+     */
+    public FrameLatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * Per-lane send counts and enqueue-to-complete latency
+     */
+    public String getLaneStatsSummary() {
+        return sendQueue.getStatsSummary();
+    }
+
+    public PrioritySendQueue.LaneStats getLaneStats(SendPriority priority) {
+        return sendQueue.getStats(priority);
+    }
+
+    private void startSendThread() {
+        stopSendThread();
+        final PrioritySendQueue queue = sendQueue;
+        queue.clear();
+        sendThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    HUDFrame frame;
+                    try {
+                        frame = queue.take();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (frame == null) {
+                        break;
+                    }
+
+                    HUDDevice device = currentDevice;
+                    boolean sequenced = sequenceAcks;
+                    boolean success = false;
+                    long startNanos = System.nanoTime();
+                    try {
+                        success = device != null && device.isConnected()
+                                && device.sendCotData(sequenced
+                                        ? frame.getPayload() + FrameLatencyTracker.formatSequence(frame.getSequence())
+                                        : frame.getPayload());
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error writing " + frame.getPriority() + " frame to HUD", e);
+                    }
+                    frame.setTransferNanos(startNanos, System.nanoTime());
+                    if (success && sequenced) {
+                        latencyTracker.onTransferred(frame);
+                    }
+                    queue.complete(frame, success);
+                    if (device != null) {
+                        device.getMetrics().recordLatency(System.nanoTime() - frame.getEnqueueNanos());
+                    }
+                    if (!success) {
+                        Log.w(TAG, "Failed to send " + frame.getPriority() + " frame to HUD");
+                    }
+                }
+                Log.d(TAG, "HUD send thread exiting");
+            }
+        }, "OmniHUD-Send");
+        sendThread.start();
+    }
+
+    private void stopSendThread() {
+        if (sendThread != null) {
+            sendThread.interrupt();
+            joinThread(sendThread);
+            sendThread = null;
+        }
+        sendQueue.clear();
+    }
+
+    private static void interrupt(Thread thread) {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Wait briefly for an interrupted worker to exit, so it no longer uses the device
+     * or competes with its replacement for the send queue
+     */
+    private static void joinThread(Thread thread) {
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(THREAD_JOIN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, thread.getName() + " did not exit within " + THREAD_JOIN_MS + " ms");
+        }
+    }
+
+    /**
+     * Read display acks from the device until disconnected.
+     * Exits straight away for devices without a return channel.
+     */
+    private void startAckThread() {
+        stopAckThread();
+        final HUDDevice device = currentDevice;
+        ackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[256];
+                StringBuilder line = new StringBuilder();
+                while (!Thread.currentThread().isInterrupted() && device.isConnected()) {
+                    int length = device.readData(buffer, ACK_READ_TIMEOUT_MS);
+                    if (length < 0) {
+                        Log.d(TAG, device.getDeviceName() + " has no return channel - fix-to-display latency unavailable");
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    for (int i = 0; i < length; i++) {
+                        char c = (char) (buffer[i] & 0xFF);
+                        if (c == '$') {
+                            line.setLength(0);
+                        }
+                        if (c == '\n') {
+                            long sequence = FrameLatencyTracker.parseAck(line);
+                            if (sequence >= 0 && !sequenceAcks) {
+                                sequenceAcks = true;
+                                Log.i(TAG, device.getDeviceName() + " acks frames - sending sequence sentences");
+                            }
+                            if (sequence > 0) {
+                                latencyTracker.onAck(sequence, now);
+                            }
+                            line.setLength(0);
+                        } else if (line.length() < MAX_ACK_LINE) {
+                            line.append(c);
+                        }
+                    }
+                }
+                Log.d(TAG, "HUD ack thread exiting");
+            }
+        }, "OmniHUD-Ack");
+        ackThread.start();
+    }
+
+    private void stopAckThread() {
+        if (ackThread != null) {
+            ackThread.interrupt();
+            joinThread(ackThread);
+            ackThread = null;
+        }
     }
 
     /**
@@ -347,6 +646,7 @@ public class USBCommunicationManager {
     public void dispose() {
         try {
             disconnect();
+            sendQueue.close();
             context.unregisterReceiver(usbReceiver);
             Log.d(TAG, "USBCommunicationManager disposed");
         } catch (Exception e) {
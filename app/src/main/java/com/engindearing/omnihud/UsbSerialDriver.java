@@ -0,0 +1,329 @@
+package com.engindearing.omnihud;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+import com.atakmap.coremap.log.Log;
+
+/**
+ * Base class for USB-serial chipset drivers.
+ * Each subclass knows the control transfers its chip needs to set the
+ * line coding (baud rate, 8N1 framing) and RTS/CTS flow control.
+ * Bulk writes go straight to the OUT endpoint found when the port is opened.
+ */
+public abstract class UsbSerialDriver {
+
+    private static final String TAG = UsbSerialDriver.class.getSimpleName();
+
+    public static final int DEFAULT_BAUD_RATE = 115200;
+
+    // USB vendor IDs of supported serial chipsets
+    public static final int VENDOR_FTDI = 0x0403;
+    public static final int VENDOR_PROLIFIC = 0x067B;
+    public static final int VENDOR_SILABS = 0x10C4;
+    public static final int VENDOR_QINHENG = 0x1A86;
+
+    protected static final int CONTROL_TIMEOUT_MS = 500;
+
+    // bmRequestType values for host-to-device control transfers
+    protected static final int REQTYPE_HOST_TO_DEVICE_VENDOR = UsbConstants.USB_TYPE_VENDOR | UsbConstants.USB_DIR_OUT;
+    protected static final int REQTYPE_HOST_TO_INTERFACE_VENDOR = 0x41;
+    protected static final int REQTYPE_HOST_TO_INTERFACE_CLASS = 0x21;
+    protected static final int REQTYPE_DEVICE_TO_HOST_VENDOR = UsbConstants.USB_TYPE_VENDOR | UsbConstants.USB_DIR_IN;
+
+    protected final UsbDevice device;
+    protected UsbDeviceConnection connection;
+    protected UsbInterface dataInterface;
+    protected UsbEndpoint endpointOut;
+    protected UsbEndpoint endpointIn;
+
+    private int baudRate = DEFAULT_BAUD_RATE;
+    private boolean flowControl;
+    private String lastError;
+
+    protected UsbSerialDriver(UsbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Pick the driver for a USB device based on its vendor ID.
+     * Anything not recognised is treated as a CDC-ACM device, which also
+     * covers vendor-specific adapters that expose a plain bulk interface.
+     */
+    public static UsbSerialDriver forDevice(UsbDevice device) {
+        switch (device.getVendorId()) {
+            case VENDOR_FTDI:
+                return new FtdiSerialDriver(device);
+            case VENDOR_SILABS:
+                return new Cp210xSerialDriver(device);
+            case VENDOR_QINHENG:
+                return new Ch340SerialDriver(device);
+            case VENDOR_PROLIFIC:
+                return new ProlificSerialDriver(device);
+            default:
+                return new CdcAcmSerialDriver(device);
+        }
+    }
+
+    /**
+     * Human-readable chipset name for logs and status strings
+     */
+    public abstract String getChipName();
+
+    /**
+     * Highest baud rate the chipset can be programmed to
+     */
+    public abstract int getMaxBaudRate();
+
+    /**
+     * Whether the chipset can do hardware RTS/CTS handshaking
+     */
+    public abstract boolean supportsFlowControl();
+
+    /**
+     * Run the chip-specific initialisation sequence after the interface is claimed
+     */
+    protected abstract boolean initChip();
+
+    /**
+     * Send the control transfers that program baud rate and 8N1 framing
+     */
+    protected abstract boolean applyLineCoding(int baudRate);
+
+    /**
+     * Enable or disable RTS/CTS flow control and assert DTR/RTS
+     */
+    protected abstract boolean applyFlowControl(boolean enabled);
+
+    /**
+     * Claim the data interface, locate bulk endpoints and initialise the chip.
+     * @param connection Opened connection to {@link #device}
+     * @return true if the port is ready for {@link #setParameters(int, boolean)}
+     */
+    public boolean open(UsbDeviceConnection connection) {
+        this.connection = connection;
+
+        if (!claimInterfaces()) {
+            return false;
+        }
+
+        if (!findEndpoints(dataInterface)) {
+            lastError = "No bulk OUT endpoint found on " + getChipName() + " interface";
+            return false;
+        }
+
+        if (!initChip()) {
+            if (lastError == null) {
+                lastError = getChipName() + " initialisation failed";
+            }
+            return false;
+        }
+
+        Log.d(TAG, getChipName() + " port opened (interface " + dataInterface.getId() + ")");
+        return true;
+    }
+
+    /**
+     * Claim the interface(s) the chip uses for data.
+     * Single-interface chips use interface 0; CDC-ACM overrides this.
+     */
+    protected boolean claimInterfaces() {
+        if (device.getInterfaceCount() == 0) {
+            lastError = "USB device has no interfaces";
+            return false;
+        }
+        dataInterface = device.getInterface(0);
+        if (!connection.claimInterface(dataInterface, true)) {
+            lastError = "Failed to claim USB interface";
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Program baud rate and flow control.
+     * Requested rates above {@link #getMaxBaudRate()} are clamped; flow control is
+     * ignored with a warning on chips that cannot do it.
+     * @return true if the chip accepted the configuration
+     */
+    public boolean setParameters(int requestedBaudRate, boolean requestedFlowControl) {
+        if (connection == null) {
+            lastError = "Port not open";
+            return false;
+        }
+
+        int rate = requestedBaudRate;
+        if (rate <= 0) {
+            rate = DEFAULT_BAUD_RATE;
+        }
+        if (rate > getMaxBaudRate()) {
+            Log.w(TAG, getChipName() + " cannot run at " + rate + " baud, clamping to " + getMaxBaudRate());
+            rate = getMaxBaudRate();
+        }
+
+        boolean flow = requestedFlowControl;
+        if (flow && !supportsFlowControl()) {
+            Log.w(TAG, getChipName() + " does not support RTS/CTS flow control, continuing without it");
+            flow = false;
+        }
+
+        if (!applyLineCoding(rate)) {
+            lastError = "Failed to set " + getChipName() + " line coding to " + rate + " baud";
+            return false;
+        }
+        if (!applyFlowControl(flow)) {
+            lastError = "Failed to set " + getChipName() + " flow control";
+            return false;
+        }
+
+        baudRate = rate;
+        flowControl = flow;
+        Log.i(TAG, getChipName() + " configured: " + rate + " baud 8N1, flow control " + (flow ? "RTS/CTS" : "off"));
+        return true;
+    }
+
+    /**
+     * Write bytes to the bulk OUT endpoint.
+     * @return bytes transferred, or a negative value on error/timeout
+     */
+    public int write(byte[] data, int length, int timeoutMs) {
+        // Copied, as close() may run on another thread during a transfer
+        UsbDeviceConnection conn = connection;
+        UsbEndpoint endpoint = endpointOut;
+        if (conn == null || endpoint == null) {
+            return -1;
+        }
+        return conn.bulkTransfer(endpoint, data, length, timeoutMs);
+    }
+
+    /**
+     * Read bytes from the bulk IN endpoint.
+     * @return bytes read, 0 if nothing arrived before the timeout, or -1 without an IN endpoint
+     */
+    public int read(byte[] buffer, int timeoutMs) {
+        UsbDeviceConnection conn = connection;
+        UsbEndpoint endpoint = endpointIn;
+        if (conn == null || endpoint == null) {
+            return -1;
+        }
+        // bulkTransfer reports a timeout as -1 too
+        return Math.max(0, conn.bulkTransfer(endpoint, buffer, buffer.length, timeoutMs));
+    }
+
+    /**
+     * Release the claimed interface. The connection itself is owned by the caller.
+     */
+    public void close() {
+        if (connection != null && dataInterface != null) {
+            connection.releaseInterface(dataInterface);
+        }
+        connection = null;
+        dataInterface = null;
+        endpointOut = null;
+        endpointIn = null;
+    }
+
+    public UsbEndpoint getWriteEndpoint() {
+        return endpointOut;
+    }
+
+    public UsbEndpoint getReadEndpoint() {
+        return endpointIn;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public boolean isFlowControlEnabled() {
+        return flowControl;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    protected void setLastError(String error) {
+        this.lastError = error;
+    }
+
+    /**
+     * Find the bulk IN/OUT endpoints on an interface, falling back to the first
+     * OUT endpoint of any type for adapters that only expose interrupt endpoints.
+     */
+    protected boolean findEndpoints(UsbInterface usbInterface) {
+        UsbEndpoint anyOut = null;
+        for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+            UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+            boolean bulk = endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK;
+            if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
+                if (bulk && endpointOut == null) {
+                    endpointOut = endpoint;
+                } else if (anyOut == null) {
+                    anyOut = endpoint;
+                }
+            } else if (bulk && endpointIn == null) {
+                endpointIn = endpoint;
+            }
+        }
+        if (endpointOut == null) {
+            endpointOut = anyOut;
+        }
+        return endpointOut != null;
+    }
+
+    /**
+     * Issue a control OUT transfer with no data stage
+     */
+    protected boolean controlOut(int requestType, int request, int value, int index) {
+        return controlOut(requestType, request, value, index, null);
+    }
+
+    /**
+     * Issue a control OUT transfer, optionally with a data stage
+     */
+    protected boolean controlOut(int requestType, int request, int value, int index, byte[] data) {
+        int length = data != null ? data.length : 0;
+        int result = connection.controlTransfer(requestType, request, value, index, data, length, CONTROL_TIMEOUT_MS);
+        if (result < 0) {
+            Log.w(TAG, String.format("%s control transfer failed: req=0x%02X value=0x%04X index=0x%04X result=%d",
+                    getChipName(), request, value, index, result));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Issue a control IN transfer into {@code buffer}
+     * @return bytes read, or a negative value on failure
+     */
+    protected int controlIn(int request, int value, int index, byte[] buffer) {
+        return connection.controlTransfer(REQTYPE_DEVICE_TO_HOST_VENDOR, request, value, index,
+                buffer, buffer.length, CONTROL_TIMEOUT_MS);
+    }
+
+    /**
+     * Encode a 32-bit value little-endian into {@code dst} at {@code offset}
+     */
+    protected static void putIntLE(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value & 0xFF);
+        dst[offset + 1] = (byte) ((value >> 8) & 0xFF);
+        dst[offset + 2] = (byte) ((value >> 16) & 0xFF);
+        dst[offset + 3] = (byte) ((value >> 24) & 0xFF);
+    }
+
+    /**
+     * Build the 7-byte CDC SET_LINE_CODING payload for 8 data bits, no parity, 1 stop bit
+     */
+    protected static byte[] cdcLineCoding(int baudRate) {
+        byte[] coding = new byte[7];
+        putIntLE(coding, 0, baudRate);
+        coding[4] = 0;  // 1 stop bit
+        coding[5] = 0;  // no parity
+        coding[6] = 8;  // 8 data bits
+        return coding;
+    }
+}
@@ -0,0 +1,308 @@
+package com.engindearing.omnihud;
+
+import com.atakmap.android.routes.Route;
+import com.atakmap.coremap.maps.coords.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Range, bearing and ETA to the next waypoints of the active route.
+ *
+ * Route points are converted to ECEF once, when the route is added or
+ * changed. Each tick computes the local east-north-up rotation at the wearer
+ * once and then needs only a handful of multiplies per waypoint, instead of a
+ * geodesic solve. Values are rounded to what the HUD displays and a waypoint
+ * is only resent when a rounded value changes.
+ *
+ * The active route is the visible route with a waypoint nearest the wearer,
+ * re-chosen when routes change and every few seconds. Route events may arrive
+ * on any thread; {@link #tick} runs on the streaming thread.
+ */
+public class WaypointStreamer {
+
+    public static final int DEFAULT_WAYPOINT_COUNT = 3;
+    static final double ARRIVAL_RADIUS_M = 15.0;
+    static final long RESELECT_INTERVAL_MS = 5000;
+
+    // WGS84
+    private static final double A = 6378137.0;
+    private static final double E2 = 6.69437999014e-3;
+
+    /**
+     * Rounded navigation values for one upcoming waypoint
+     */
+    public static class Cue {
+        public String uid;
+        public String name;
+        public int order;
+        public double lat;
+        public double lon;
+        public double hae;
+        public int rangeM;
+        public int bearingDeg;
+        public int etaS; // -1 when not moving
+
+        boolean sameDisplay(Cue other) {
+            return other != null && uid.equals(other.uid) && order == other.order
+                    && rangeM == other.rangeM && bearingDeg == other.bearingDeg && etaS == other.etaS;
+        }
+    }
+
+    /**
+     * Waypoint frames to send for one tick
+     */
+    public static class Update {
+        public final List<Cue> changed = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+        public String routeTitle;
+        public int nextIndex;
+        public int waypointCount;
+
+        public boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private static class CachedRoute {
+        final String uid;
+        final String title;
+        final double[] lat;
+        final double[] lon;
+        final double[] hae;
+        final double[] x;
+        final double[] y;
+        final double[] z;
+
+        CachedRoute(String uid, String title, GeoPoint[] points) {
+            this.uid = uid;
+            this.title = title;
+            int n = points.length;
+            lat = new double[n];
+            lon = new double[n];
+            hae = new double[n];
+            x = new double[n];
+            y = new double[n];
+            z = new double[n];
+            double[] ecef = new double[3];
+            for (int i = 0; i < n; i++) {
+                lat[i] = points[i].getLatitude();
+                lon[i] = points[i].getLongitude();
+                double h = points[i].getAltitude();
+                hae[i] = Double.isNaN(h) ? 0.0 : h;
+                toEcef(lat[i], lon[i], hae[i], ecef);
+                x[i] = ecef[0];
+                y[i] = ecef[1];
+                z[i] = ecef[2];
+            }
+        }
+    }
+
+    private final Map<String, CachedRoute> routes = new ConcurrentHashMap<>();
+    private volatile boolean routesChanged;
+    private int waypointCount = DEFAULT_WAYPOINT_COUNT;
+
+    private CachedRoute active;
+    private int nextIndex;
+    private long lastReselectMs;
+    private Cue[] sent = new Cue[0];
+
+    // Local tangent frame at the wearer, rebuilt each tick
+    private final double[] selfEcef = new double[3];
+    private double sinLat;
+    private double cosLat;
+    private double sinLon;
+    private double cosLon;
+    private double lastEast;
+    private double lastNorth;
+
+    public void setWaypointCount(int count) {
+        this.waypointCount = count;
+    }
+
+    /**
+     * Cache a route from ITEM_ADDED/ITEM_REFRESH. Hidden or empty routes are dropped.
+     */
+    public void updateRoute(Route route) {
+        GeoPoint[] points = route.getPoints();
+        if (!route.getVisible() || points == null || points.length == 0) {
+            removeRoute(route.getUID());
+            return;
+        }
+        routes.put(route.getUID(), new CachedRoute(route.getUID(), route.getTitle(), points));
+        routesChanged = true;
+    }
+
+    public void removeRoute(String uid) {
+        if (uid != null && routes.remove(uid) != null) {
+            routesChanged = true;
+        }
+    }
+
+    /**
+     * Forget what the HUD holds so the next tick resends every cue
+     * @return UIDs of the cues the HUD was showing
+     */
+    public synchronized List<String> resetStream() {
+        List<String> held = new ArrayList<>(sent.length);
+        for (Cue cue : sent) {
+            held.add(cue.uid);
+        }
+        sent = new Cue[0];
+        active = null;
+        return held;
+    }
+
+    /**
+     * @param speed Wearer speed over ground in m/s, for ETA
+     * @param nowMs Monotonic time
+     */
+    public synchronized Update tick(double selfLat, double selfLon, double selfHae, double speed, long nowMs) {
+        setFrame(selfLat, selfLon, Double.isNaN(selfHae) ? 0.0 : selfHae);
+
+        if (routesChanged || active == null || nowMs - lastReselectMs >= RESELECT_INTERVAL_MS) {
+            routesChanged = false;
+            lastReselectMs = nowMs;
+            selectActiveRoute();
+        }
+
+        Update update = new Update();
+        Cue[] cues = new Cue[0];
+        if (active != null) {
+            // Advance past waypoints we have reached
+            while (nextIndex < active.x.length - 1 && horizontalRange(active, nextIndex) < ARRIVAL_RADIUS_M) {
+                nextIndex++;
+            }
+            int count = Math.min(waypointCount, active.x.length - nextIndex);
+            cues = new Cue[count];
+            for (int i = 0; i < count; i++) {
+                cues[i] = cue(active, nextIndex + i, i, speed);
+            }
+            update.routeTitle = active.title;
+            update.nextIndex = nextIndex;
+            update.waypointCount = active.x.length;
+        }
+
+        for (int i = 0; i < cues.length; i++) {
+            if (!cues[i].sameDisplay(i < sent.length ? sent[i] : null)) {
+                update.changed.add(cues[i]);
+            }
+        }
+        for (Cue old : sent) {
+            if (!contains(cues, old.uid)) {
+                update.removed.add(old.uid);
+            }
+        }
+        sent = cues;
+        return update;
+    }
+
+    private static boolean contains(Cue[] cues, String uid) {
+        for (Cue cue : cues) {
+            if (cue.uid.equals(uid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void selectActiveRoute() {
+        CachedRoute best = null;
+        int bestIndex = 0;
+        double bestRange = Double.MAX_VALUE;
+        for (CachedRoute route : routes.values()) {
+            for (int i = 0; i < route.x.length; i++) {
+                double r = horizontalRange(route, i);
+                if (r < bestRange) {
+                    bestRange = r;
+                    best = route;
+                    bestIndex = i;
+                }
+            }
+        }
+        if (best == null) {
+            active = null;
+            return;
+        }
+        // Keep progress when the same route is re-selected or refreshed
+        if (active == null || !active.uid.equals(best.uid) || nextIndex >= best.x.length) {
+            nextIndex = bestIndex;
+        }
+        active = best;
+    }
+
+    private Cue cue(CachedRoute route, int index, int order, double speed) {
+        double range = horizontalRange(route, index);
+        double bearing = Math.toDegrees(Math.atan2(lastEast, lastNorth));
+
+        Cue cue = new Cue();
+        cue.uid = route.uid + ".wp" + index;
+        cue.name = (route.title != null ? route.title : "Route") + " " + (index + 1);
+        cue.order = order;
+        cue.lat = route.lat[index];
+        cue.lon = route.lon[index];
+        cue.hae = route.hae[index];
+        cue.rangeM = roundRange(range);
+        cue.bearingDeg = (int) Math.round(bearing < 0 ? bearing + 360.0 : bearing) % 360;
+        cue.etaS = speed >= MotionEstimator.STATIONARY_SPEED ? roundEta(range / speed) : -1;
+        return cue;
+    }
+
+    /**
+     * Horizontal distance to a waypoint in the wearer's tangent plane.
+     * Leaves the east/north components in lastEast/lastNorth.
+     */
+    private double horizontalRange(CachedRoute route, int index) {
+        double dx = route.x[index] - selfEcef[0];
+        double dy = route.y[index] - selfEcef[1];
+        double dz = route.z[index] - selfEcef[2];
+        lastEast = -sinLon * dx + cosLon * dy;
+        lastNorth = -sinLat * cosLon * dx - sinLat * sinLon * dy + cosLat * dz;
+        return Math.sqrt(lastEast * lastEast + lastNorth * lastNorth);
+    }
+
+    private void setFrame(double lat, double lon, double hae) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        sinLat = Math.sin(phi);
+        cosLat = Math.cos(phi);
+        sinLon = Math.sin(lambda);
+        cosLon = Math.cos(lambda);
+        toEcef(lat, lon, hae, selfEcef);
+    }
+
+    /**
+     * HUD shows metres below 100 m, tens of metres below 1 km, then 0.1 km
+     */
+    static int roundRange(double meters) {
+        if (meters < 100) {
+            return (int) Math.round(meters);
+        } else if (meters < 1000) {
+            return (int) Math.round(meters / 10) * 10;
+        }
+        return (int) Math.round(meters / 100) * 100;
+    }
+
+    /**
+     * HUD shows seconds under two minutes, then whole minutes
+     */
+    static int roundEta(double seconds) {
+        if (seconds < 120) {
+            return (int) Math.round(seconds);
+        }
+        return (int) Math.round(seconds / 60) * 60;
+    }
+
+    static void toEcef(double lat, double lon, double hae, double[] out) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        double sinPhi = Math.sin(phi);
+        double cosPhi = Math.cos(phi);
+        double n = A / Math.sqrt(1 - E2 * sinPhi * sinPhi);
+        out[0] = (n + hae) * cosPhi * Math.cos(lambda);
+        out[1] = (n + hae) * cosPhi * Math.sin(lambda);
+        out[2] = (n * (1 - E2) + hae) * sinPhi;
+    }
+}
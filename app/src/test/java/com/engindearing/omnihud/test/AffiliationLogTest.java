@@ -0,0 +1,155 @@
+package com.engindearing.omnihud.test;
+
+import static org.junit.Assert.*;
+
+import com.engindearing.omnihud.AffiliationData;
+import com.engindearing.omnihud.AffiliationLog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Crash recovery and background compaction of the affiliation log
+ */
+public class AffiliationLogTest {
+
+    private static final int RECORD_MAGIC = 0x41465231;
+    // magic, length, kind, affiliation, then the timestamp
+    private static final int TIMESTAMP_OFFSET = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reopenDropsFinalRecordWithBadCrc() throws IOException {
+        File file = new File(folder.getRoot(), "affiliations.log");
+        writeTwoRecords(file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long last = lastRecordOffset(raf);
+            raf.seek(last + TIMESTAMP_OFFSET);
+            int b = raf.read();
+            raf.seek(last + TIMESTAMP_OFFSET);
+            raf.write(b ^ 0xFF);
+        }
+
+        assertRecoveredFirstOnly(file);
+    }
+
+    @Test
+    public void reopenDropsFinalRecordWithLengthPastEndOfFile() throws IOException {
+        File file = new File(folder.getRoot(), "affiliations.log");
+        writeTwoRecords(file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long last = lastRecordOffset(raf);
+            raf.seek(last + 4);
+            raf.writeInt((int) (raf.length() - last + 1));
+        }
+
+        assertRecoveredFirstOnly(file);
+    }
+
+    @Test
+    public void compactionKeepsAppendsMadeWhileItRuns() throws Exception {
+        File file = new File(folder.getRoot(), "affiliations.log");
+        AffiliationLog log = new AffiliationLog(file);
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        String notes = new String(padding);
+
+        // One UID rewritten over and over builds garbage; a new UID per pass keeps appending
+        int passes = 2000;
+        for (int i = 0; i < passes; i++) {
+            log.put(entry("hot", AffiliationData.Affiliation.ASSUMED_HOSTILE, notes + i));
+            log.put(entry("cold-" + i, AffiliationData.Affiliation.ASSUMED_FRIENDLY, "n" + i));
+        }
+        awaitCompaction(log);
+        assertTrue(log.getCompactionCount() > 0);
+
+        assertEntries(log, passes, notes);
+        log.close();
+
+        // The compacted file holds the same entries
+        log = new AffiliationLog(file);
+        assertEntries(log, passes, notes);
+        log.close();
+        assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+
+    private static void writeTwoRecords(File file) throws IOException {
+        AffiliationLog log = new AffiliationLog(file);
+        log.put(entry("first", AffiliationData.Affiliation.ASSUMED_FRIENDLY, "kept"));
+        log.put(entry("second", AffiliationData.Affiliation.ASSUMED_HOSTILE, "torn"));
+        log.close();
+    }
+
+    private static void assertRecoveredFirstOnly(File file) throws IOException {
+        AffiliationLog log = new AffiliationLog(file);
+        assertEquals(1, log.size());
+        assertTrue(log.contains("first"));
+        assertFalse(log.contains("second"));
+        assertEquals("kept", log.get("first").getNotes());
+
+        // Appends after recovery replay cleanly on the next open
+        log.put(entry("third", AffiliationData.Affiliation.PENDING, "after"));
+        log.close();
+        log = new AffiliationLog(file);
+        assertEquals(2, log.size());
+        assertEquals(AffiliationData.Affiliation.ASSUMED_FRIENDLY, log.get("first").getAffiliation());
+        assertEquals(AffiliationData.Affiliation.PENDING, log.get("third").getAffiliation());
+        assertFalse(log.contains("second"));
+        log.close();
+    }
+
+    private static void assertEntries(AffiliationLog log, int passes, String notes) {
+        assertEquals(passes + 1, log.size());
+        AffiliationData hot = log.get("hot");
+        assertEquals(AffiliationData.Affiliation.ASSUMED_HOSTILE, hot.getAffiliation());
+        assertEquals(notes + (passes - 1), hot.getNotes());
+        for (int i = 0; i < passes; i++) {
+            AffiliationData cold = log.get("cold-" + i);
+            assertNotNull("cold-" + i, cold);
+            assertEquals("n" + i, cold.getNotes());
+        }
+    }
+
+    private static void awaitCompaction(AffiliationLog log) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((log.getCompactionCount() == 0 || log.isCompacting()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("compaction still running", log.isCompacting());
+    }
+
+    /**
+     * Offset of the last record, found by scanning for its magic
+     */
+    private static long lastRecordOffset(RandomAccessFile raf) throws IOException {
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.seek(0);
+        raf.readFully(bytes);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int last = -1;
+        for (int pos = 8; pos + 4 <= bytes.length; pos++) {
+            if (in.getInt(pos) == RECORD_MAGIC) {
+                last = pos;
+            }
+        }
+        assertTrue(last > 0);
+        return last;
+    }
+
+    private static AffiliationData entry(String uid, AffiliationData.Affiliation affiliation, String notes) {
+        AffiliationData data = new AffiliationData(uid, affiliation, "tester", "server");
+        data.setNotes(notes);
+        return data;
+    }
+}
@@ -0,0 +1,59 @@
+package com.engindearing.omnihud.test;
+
+import static org.junit.Assert.*;
+
+import com.engindearing.omnihud.BreadcrumbStore;
+
+import org.junit.Test;
+
+/**
+ * Block reclamation in the breadcrumb store
+ */
+public class BreadcrumbStoreTest {
+
+    private static final int SAMPLES_PER_TRACK = 4;
+    private static final int BLOCKS = 4;
+    private static final double LAT = 38.9;
+    private static final double LON = -77.0;
+    // About 11 m of latitude, above the sampling distance
+    private static final double STEP_DEG = 0.0001;
+
+    @Test
+    public void evictedTrackResumesFromItsNewestSample() {
+        BreadcrumbStore store = new BreadcrumbStore(BLOCKS * SAMPLES_PER_TRACK, SAMPLES_PER_TRACK);
+
+        // Track 0 takes the first block and keeps three samples
+        assertFalse(store.record(0, LAT, LON, 10, 0));
+        assertTrue(store.record(0, LAT + STEP_DEG, LON, 20, 10000));
+        assertTrue(store.record(0, LAT + 2 * STEP_DEG, LON, 30, 20000));
+
+        // Every other block is taken by a newer track, then one more reclaims track 0's
+        for (int handle = 1; handle <= BLOCKS; handle++) {
+            double lon = LON + handle * 0.01;
+            store.record(handle, LAT, lon, 0, 30000);
+            assertTrue(store.record(handle, LAT + STEP_DEG, lon, 0, 40000));
+        }
+        assertEquals(BLOCKS, store.getTrackCount());
+        long[] time = new long[SAMPLES_PER_TRACK];
+        double[] lat = new double[SAMPLES_PER_TRACK];
+        double[] lon = new double[SAMPLES_PER_TRACK];
+        float[] hae = new float[SAMPLES_PER_TRACK];
+        assertEquals(0, store.read(0, time, lat, lon, hae));
+
+        // Standing where it was last seen is not movement
+        assertFalse(store.record(0, LAT + 2 * STEP_DEG, LON, 30, 50000));
+
+        // Its next move starts from the newest sample it had, not its first-ever one
+        assertTrue(store.record(0, LAT + 3 * STEP_DEG, LON, 40, 60000));
+        assertEquals(2, store.read(0, time, lat, lon, hae));
+        assertEquals(20000, time[0]);
+        assertEquals(LAT + 2 * STEP_DEG, lat[0], 1e-12);
+        assertEquals(30f, hae[0], 0f);
+        assertEquals(60000, time[1]);
+        assertEquals(LAT + 3 * STEP_DEG, lat[1], 1e-12);
+
+        // That block came from the least recently updated track, now track 1
+        assertEquals(0, store.read(1, time, lat, lon, hae));
+        assertEquals(BLOCKS, store.getTrackCount());
+    }
+}
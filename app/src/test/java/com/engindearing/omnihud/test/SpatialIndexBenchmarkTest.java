@@ -0,0 +1,167 @@
+package com.engindearing.omnihud.test;
+
+import static org.junit.Assert.*;
+
+import com.engindearing.omnihud.SpatialIndex;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Correctness checks against brute force plus timings for the contact grid
+ * at 10k and 100k tracks spread over a 50 km square
+ */
+public class SpatialIndexBenchmarkTest {
+
+    private static final double CENTER_LAT = 38.9;
+    private static final double CENTER_LON = -77.0;
+    private static final double SPAN_DEG = 0.45;
+    private static final double RADIUS_M = 2000.0;
+    private static final int K = 20;
+    private static final int QUERIES = 2000;
+    private static final double METERS_PER_DEG = 6371008.8 * Math.PI / 180.0;
+
+    @Test
+    public void benchmark10k() {
+        run(10000);
+    }
+
+    @Test
+    public void benchmark100k() {
+        run(100000);
+    }
+
+    private void run(int tracks) {
+        Random random = new Random(tracks);
+        double[] lat = new double[tracks];
+        double[] lon = new double[tracks];
+        int[] handles = new int[tracks];
+        SpatialIndex index = new SpatialIndex();
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < tracks; i++) {
+            lat[i] = CENTER_LAT + (random.nextDouble() - 0.5) * SPAN_DEG;
+            lon[i] = CENTER_LON + (random.nextDouble() - 0.5) * SPAN_DEG;
+            handles[i] = index.insert(lat[i], lon[i]);
+        }
+        long insertNs = System.nanoTime() - t0;
+        assertEquals(tracks, index.size());
+
+        // ITEM_REFRESH-style small moves
+        t0 = System.nanoTime();
+        for (int i = 0; i < tracks; i++) {
+            lat[i] += (random.nextDouble() - 0.5) * 0.001;
+            lon[i] += (random.nextDouble() - 0.5) * 0.001;
+            index.update(handles[i], lat[i], lon[i]);
+        }
+        long updateNs = System.nanoTime() - t0;
+
+        int[] out = new int[tracks];
+        double[] dist = new double[K];
+        double[][] queries = new double[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = new double[] {
+                    CENTER_LAT + (random.nextDouble() - 0.5) * SPAN_DEG * 0.8,
+                    CENTER_LON + (random.nextDouble() - 0.5) * SPAN_DEG * 0.8 };
+        }
+
+        // Correctness against a linear scan on a sample of queries
+        for (int q = 0; q < 20; q++) {
+            double qLat = queries[q][0];
+            double qLon = queries[q][1];
+            int n = index.queryRadius(qLat, qLon, RADIUS_M, out);
+            assertEquals(bruteRadiusCount(lat, lon, qLat, qLon), n);
+
+            int found = index.nearest(qLat, qLon, K, RADIUS_M, out, dist);
+            double[] expected = bruteNearest(lat, lon, qLat, qLon, 1);
+            assertEquals(Math.min(K, expected.length), found);
+            for (int i = 0; i < found; i++) {
+                assertEquals(expected[i], dist[i], 1e-6);
+            }
+
+            // Filtered search returns the nearest accepted points, not a filtered nearest set
+            found = index.nearest(qLat, qLon, K, RADIUS_M, out, dist, id -> id % 7 == 0);
+            expected = bruteNearest(lat, lon, qLat, qLon, 7);
+            assertEquals(Math.min(K, expected.length), found);
+            for (int i = 0; i < found; i++) {
+                assertEquals(0, out[i] % 7);
+                assertEquals(expected[i], dist[i], 1e-6);
+            }
+        }
+
+        long hits = 0;
+        t0 = System.nanoTime();
+        for (double[] query : queries) {
+            hits += index.queryRadius(query[0], query[1], RADIUS_M, out);
+        }
+        long radiusNs = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for (double[] query : queries) {
+            hits += index.nearest(query[0], query[1], K, RADIUS_M, out, dist);
+        }
+        long knnNs = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for (double[] query : queries) {
+            double half = 0.01;
+            hits += index.queryBox(query[0] - half, query[1] - half, query[0] + half, query[1] + half, out);
+        }
+        long boxNs = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for (int q = 0; q < 200; q++) {
+            hits += bruteRadiusCount(lat, lon, queries[q][0], queries[q][1]);
+        }
+        long scanNs = (System.nanoTime() - t0) * (QUERIES / 200);
+
+        System.out.println(String.format(
+                "SpatialIndex %dk tracks: insert %.0f ns/op, update %.0f ns/op, " +
+                "radius %.1f us/q, kNN %.1f us/q, box %.1f us/q, linear scan %.1f us/q (hits %d)",
+                tracks / 1000, (double) insertNs / tracks, (double) updateNs / tracks,
+                radiusNs / 1e3 / QUERIES, knnNs / 1e3 / QUERIES, boxNs / 1e3 / QUERIES,
+                scanNs / 1e3 / QUERIES, hits));
+
+        // Removal leaves the index empty and every cell unlinked
+        for (int handle : handles) {
+            index.remove(handle);
+        }
+        assertEquals(0, index.size());
+        assertEquals(0, index.queryRadius(CENTER_LAT, CENTER_LON, 100000, out));
+    }
+
+    private static int bruteRadiusCount(double[] lat, double[] lon, double qLat, double qLon) {
+        int count = 0;
+        for (int i = 0; i < lat.length; i++) {
+            if (distance(lat[i], lon[i], qLat, qLon) <= RADIUS_M) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sorted distances within the radius of every point whose handle is a multiple of {@code every}
+     */
+    private static double[] bruteNearest(double[] lat, double[] lon, double qLat, double qLon, int every) {
+        double[] d = new double[lat.length];
+        int n = 0;
+        for (int i = 0; i < lat.length; i += every) {
+            double dist = distance(lat[i], lon[i], qLat, qLon);
+            if (dist <= RADIUS_M) {
+                d[n++] = dist;
+            }
+        }
+        d = Arrays.copyOf(d, n);
+        Arrays.sort(d);
+        return d;
+    }
+
+    private static double distance(double lat, double lon, double qLat, double qLon) {
+        double dy = (lat - qLat) * METERS_PER_DEG;
+        double dx = (lon - qLon) * METERS_PER_DEG * Math.cos(Math.toRadians(qLat));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
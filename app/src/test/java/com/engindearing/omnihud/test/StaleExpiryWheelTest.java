@@ -0,0 +1,139 @@
+package com.engindearing.omnihud.test;
+
+import static org.junit.Assert.*;
+
+import com.engindearing.omnihud.StaleExpiryWheel;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Firing times of the stale timer wheel across levels and when stale times change
+ */
+public class StaleExpiryWheelTest {
+
+    // Deliberately not on a tick boundary
+    private static final long START_MS = 1700000000500L;
+    private static final long TICK_MS = 1000;
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+
+    private final Map<Integer, Long> fired = new HashMap<>();
+    private long nowMs = START_MS;
+    private final StaleExpiryWheel wheel = new StaleExpiryWheel(handle -> {
+        assertNull("handle " + handle + " fired twice", fired.put(handle, nowMs));
+    }, START_MS);
+
+    @Test
+    public void firesOnTheBottomLevel() {
+        wheel.schedule(1, START_MS + 10 * TICK_MS);
+        runUntil(START_MS + 20 * TICK_MS);
+        assertFiredAt(1, START_MS + 10 * TICK_MS);
+    }
+
+    @Test
+    public void cascadesFromTheSecondLevel() {
+        // Past the bottom level's 64 s
+        wheel.schedule(1, START_MS + 100 * TICK_MS);
+        wheel.schedule(2, START_MS + 64 * TICK_MS + 1);
+        runUntil(START_MS + 3 * MINUTE_MS);
+        assertFiredAt(1, START_MS + 100 * TICK_MS);
+        assertFiredAt(2, START_MS + 64 * TICK_MS + 1);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cascadesFromTheThirdLevel() {
+        // Past the second level's 68 min
+        long stale = START_MS + 2 * HOUR_MS + 12345;
+        wheel.schedule(1, stale);
+        wheel.schedule(2, START_MS + 70 * MINUTE_MS);
+        runUntil(START_MS + 3 * HOUR_MS);
+        assertFiredAt(1, stale);
+        assertFiredAt(2, START_MS + 70 * MINUTE_MS);
+    }
+
+    @Test
+    public void staleTimePushedLaterFiresAtTheNewTime() {
+        wheel.schedule(1, START_MS + 10 * TICK_MS);
+        runUntil(START_MS + 5 * TICK_MS);
+
+        // Refreshed: stays in its bottom slot and is re-placed when that slot comes up
+        wheel.schedule(1, START_MS + 30 * MINUTE_MS);
+        runUntil(START_MS + 30 * MINUTE_MS - TICK_MS);
+        assertFalse(fired.containsKey(1));
+        assertTrue(wheel.isScheduled(1));
+
+        runUntil(START_MS + HOUR_MS);
+        assertFiredAt(1, START_MS + 30 * MINUTE_MS);
+    }
+
+    @Test
+    public void staleTimePushedLaterRepeatedly() {
+        // A track refreshed every 20 s with a 60 s stale never expires while refreshed
+        long stale = START_MS + MINUTE_MS;
+        wheel.schedule(1, stale);
+        for (int i = 0; i < 50; i++) {
+            runUntil(nowMs + 20 * TICK_MS);
+            stale = nowMs + MINUTE_MS;
+            wheel.schedule(1, stale);
+        }
+        assertFalse(fired.containsKey(1));
+        runUntil(stale + MINUTE_MS);
+        assertFiredAt(1, stale);
+    }
+
+    @Test
+    public void staleTimeMovedEarlierFiresAtTheNewTime() {
+        wheel.schedule(1, START_MS + 2 * HOUR_MS);
+        wheel.schedule(2, START_MS + 100 * TICK_MS);
+        runUntil(START_MS + 10 * TICK_MS);
+
+        wheel.schedule(1, START_MS + 20 * TICK_MS);
+        wheel.schedule(2, START_MS + 30 * TICK_MS);
+        runUntil(START_MS + 3 * HOUR_MS);
+        assertFiredAt(1, START_MS + 20 * TICK_MS);
+        assertFiredAt(2, START_MS + 30 * TICK_MS);
+    }
+
+    @Test
+    public void staleTimeAlreadyPassedFiresOnTheNextTick() {
+        runUntil(START_MS + 10 * TICK_MS);
+        wheel.schedule(1, START_MS);
+        runUntil(nowMs + TICK_MS);
+        assertTrue(fired.containsKey(1));
+    }
+
+    @Test
+    public void cancelledTimerDoesNotFire() {
+        wheel.schedule(1, START_MS + 100 * TICK_MS);
+        wheel.schedule(2, START_MS + 100 * TICK_MS);
+        wheel.cancel(1);
+        runUntil(START_MS + 5 * MINUTE_MS);
+        assertFalse(fired.containsKey(1));
+        assertFiredAt(2, START_MS + 100 * TICK_MS);
+    }
+
+    /**
+     * Advance one tick at a time, the way the map event worker turns the wheel
+     */
+    private void runUntil(long endMs) {
+        while (nowMs < endMs) {
+            nowMs = Math.min(nowMs + TICK_MS, endMs);
+            wheel.advance(nowMs);
+        }
+    }
+
+    /**
+     * Fired no earlier than its stale time and within one tick after it
+     */
+    private void assertFiredAt(int handle, long staleMs) {
+        Long at = fired.get(handle);
+        assertNotNull("handle " + handle + " did not fire", at);
+        assertTrue("handle " + handle + " fired " + (staleMs - at) + " ms early", at >= staleMs);
+        assertTrue("handle " + handle + " fired " + (at - staleMs) + " ms late", at < staleMs + 2 * TICK_MS);
+        assertFalse(wheel.isScheduled(handle));
+    }
+}
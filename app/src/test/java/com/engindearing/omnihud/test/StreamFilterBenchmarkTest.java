@@ -0,0 +1,161 @@
+package com.engindearing.omnihud.test;
+
+import static org.junit.Assert.*;
+
+import com.engindearing.omnihud.AffiliationData;
+import com.engindearing.omnihud.StreamFilter;
+import com.engindearing.omnihud.TrackStore;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks a 20-rule stream filter against the same rules written out by
+ * hand, then times it over 100k tracks in the track store
+ */
+public class StreamFilterBenchmarkTest {
+
+    private static final int TRACKS = 100000;
+    private static final int PASSES = 20;
+    private static final double CENTER_LAT = 38.9;
+    private static final double CENTER_LON = -77.0;
+    private static final double SPAN_DEG = 0.45;
+    private static final long NOW_MS = 1700000000000L;
+    private static final double METERS_PER_DEG = 6371008.8 * Math.PI / 180.0;
+
+    private static final String[] TYPES = {
+            "a-f-G-U-C", "a-f-A", "a-h-G", "a-h-G-E-V", "a-u-G", "a-n-G", "b-m-p-w", "a-f-G-E-S" };
+
+    private static final String RULES = ""
+            + "# contacts worth a HUD symbol\n"
+            + "type a-f, a-h, a-u, a-n\n"
+            + "not type a-f-A          # no friendly air\n"
+            + "affiliation unknown assumedFriendly assumedHostile none\n"
+            + "not affiliation pending\n"
+            + "within 15000\n"
+            + "not within 100\n"
+            + "fresh 5400\n"
+            + "not stale\n"
+            + "callsign *-*\n"
+            + "not callsign DELTA*\n"
+            + "not callsign *-13\n"
+            + "aoi Box\n"
+            + "not aoi Hole\n"
+            + "moving 0\n"
+            + "not moving 500\n"
+            + "type a-\n"
+            + "within 30000\n"
+            + "fresh 7200\n"
+            + "not callsign ZULU?\n"
+            + "affiliation unknown assumedFriendly assumedHostile pending none\n";
+
+    private static final double BOX = 0.12;
+    private static final double HOLE = 0.02;
+
+    @Test
+    public void benchmark20Rules100k() {
+        Random random = new Random(42);
+        TrackStore store = new TrackStore();
+        String[] prefixes = { "UNIT", "ALPHA", "DELTA", "ZULU" };
+        for (int i = 0; i < TRACKS; i++) {
+            int handle = store.intern("uid-" + i);
+            store.setType(handle, TYPES[random.nextInt(TYPES.length)]);
+            int affiliation = random.nextInt(AffiliationData.Affiliation.values().length + 1);
+            store.setAffiliation(handle, affiliation > 0 ? AffiliationData.Affiliation.values()[affiliation - 1] : null);
+            String prefix = prefixes[random.nextInt(prefixes.length)];
+            store.setCallsign(handle, random.nextInt(10) == 0 ? prefix + "1" : prefix + "-" + random.nextInt(20));
+            double lat = CENTER_LAT + (random.nextDouble() - 0.5) * SPAN_DEG;
+            double lon = CENTER_LON + (random.nextDouble() - 0.5) * SPAN_DEG;
+            long updated = NOW_MS - random.nextInt(7200000);
+            if (random.nextBoolean()) {
+                // An earlier fix gives the track a speed
+                store.updatePosition(handle, lat - random.nextDouble() * 0.001, lon, 0, updated - 10000);
+            }
+            store.updatePosition(handle, lat, lon, 0, updated);
+            store.setStale(handle, updated + 600000 + random.nextInt(3600000));
+        }
+
+        StreamFilter filter = StreamFilter.compile(RULES, name -> {
+            double half = name.equals("Box") ? BOX : name.equals("Hole") ? HOLE : 0;
+            return half == 0 ? null : new double[] {
+                    CENTER_LAT - half, CENTER_LON - half, CENTER_LAT - half, CENTER_LON + half,
+                    CENTER_LAT + half, CENTER_LON + half, CENTER_LAT + half, CENTER_LON - half };
+        });
+        filter.prepare(CENTER_LAT, CENTER_LON, NOW_MS);
+
+        int[] out = new int[TRACKS];
+        int matched = store.select(filter, out);
+        int expected = 0;
+        for (int handle = 0; handle < TRACKS; handle++) {
+            if (bruteAccept(store, handle)) {
+                assertTrue("handle " + handle + " rejected", expected < matched && out[expected] == handle);
+                expected++;
+            }
+        }
+        assertEquals(expected, matched);
+        assertTrue("filter should keep some tracks", matched > 0);
+
+        // Warm up, then time full passes re-ordering between them as streaming does
+        for (int i = 0; i < 5; i++) {
+            filter.prepare(CENTER_LAT, CENTER_LON, NOW_MS);
+            store.select(filter, out);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < PASSES; i++) {
+            filter.prepare(CENTER_LAT, CENTER_LON, NOW_MS);
+            assertEquals(matched, store.select(filter, out));
+        }
+        long elapsed = System.nanoTime() - t0;
+
+        System.out.println(String.format(
+                "StreamFilter 20 rules over %dk tracks: %.1f ms/pass, %.0f ns/track, %.1f M tracks/s, %d kept",
+                TRACKS / 1000, elapsed / 1e6 / PASSES, (double) elapsed / PASSES / TRACKS,
+                (double) PASSES * TRACKS / (elapsed / 1e9) / 1e6, matched));
+        System.out.println(filter.toDisplayString());
+    }
+
+    @Test
+    public void rejectsBadRules() {
+        String[] bad = { "colour red", "within", "within -5", "affiliation friendly", "stale 5", "not", "aoi Nowhere" };
+        for (String rule : bad) {
+            try {
+                StreamFilter.compile("type a-\n" + rule, name -> null);
+                fail("Compiled: " + rule);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2: "));
+            }
+        }
+        assertTrue(StreamFilter.compile("  # nothing\n\n", null).isEmpty());
+    }
+
+    /**
+     * The rules in {@link #RULES}, written out directly
+     */
+    private static boolean bruteAccept(TrackStore store, int handle) {
+        String type = store.getType(handle);
+        AffiliationData.Affiliation affiliation = store.getAffiliation(handle);
+        String callsign = store.getCallsign(handle).toUpperCase();
+        double lat = store.getLat(handle);
+        double lon = store.getLon(handle);
+        long age = NOW_MS - store.getUpdatedMs(handle);
+        double north = (lat - CENTER_LAT) * METERS_PER_DEG;
+        double east = (lon - CENTER_LON) * METERS_PER_DEG * Math.cos(Math.toRadians(CENTER_LAT));
+        double distanceSq = north * north + east * east;
+
+        return (type.startsWith("a-f") || type.startsWith("a-h") || type.startsWith("a-u") || type.startsWith("a-n"))
+                && !type.startsWith("a-f-A")
+                && affiliation != AffiliationData.Affiliation.PENDING
+                && distanceSq <= 15000.0 * 15000.0
+                && distanceSq > 100.0 * 100.0
+                && age <= 5400000
+                && store.getStaleMs(handle) > NOW_MS
+                && callsign.contains("-")
+                && !callsign.startsWith("DELTA")
+                && !callsign.endsWith("-13")
+                && Math.abs(lat - CENTER_LAT) < BOX && Math.abs(lon - CENTER_LON) < BOX
+                && !(Math.abs(lat - CENTER_LAT) < HOLE && Math.abs(lon - CENTER_LON) < HOLE)
+                && store.getSpeed(handle) < 500
+                && !(callsign.startsWith("ZULU") && callsign.length() == 5);
+    }
+}